@@ -0,0 +1,56 @@
+package jiayu.tls;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the ByteQueue the record layer uses to reassemble messages spread over several records.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ByteQueueBenchmark {
+    @Param({"16", "1024", "16384"})
+    public int chunkSize;
+
+    /**
+     * The number of chunks queued before any are taken off, as when a handshake message spans several records.
+     */
+    @Param({"1", "8"})
+    public int chunks;
+
+    private byte[] chunk;
+
+    @Setup
+    public void setUp() {
+        chunk = new byte[chunkSize];
+    }
+
+    @Benchmark
+    public int enqueueThenDequeue() {
+        ByteQueue queue = new ByteQueue();
+        for (int i = 0; i < chunks; i++) queue.enqueue(chunk);
+
+        int dequeued = 0;
+        while (!queue.isEmpty()) dequeued += queue.dequeue(chunkSize).length;
+        return dequeued;
+    }
+
+    @Benchmark
+    public int peekHeaderThenDequeue() {
+        ByteQueue queue = new ByteQueue();
+        for (int i = 0; i < chunks; i++) queue.enqueue(chunk);
+
+        // the record layer peeks at the handshake length before dequeuing each message
+        int dequeued = 0;
+        while (!queue.isEmpty()) {
+            queue.peek(3, 1);
+            dequeued += queue.dequeue(chunkSize).length;
+        }
+        return dequeued;
+    }
+}
@@ -0,0 +1,94 @@
+package jiayu.tls;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures complete handshakes between a client and a server in the same JVM, connected either in memory
+ * or over loopback.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HandshakeBenchmark {
+    @Param({"TLS_RSA_WITH_AES_128_CBC_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"})
+    public CipherSuite cipherSuite;
+
+    @Param({"memory", "loopback"})
+    public String transport;
+
+    private SecureServerSocket serverSocket;
+    private ExecutorService server;
+    private int port;
+
+    private TrustStore trustStore;
+    private CipherSuiteNegotiator negotiator;
+
+    @Setup
+    public void setUp() throws Exception {
+        // the handshake logs at INFO, which would otherwise dominate the measurement
+        Logger.getLogger("jiayu.tls").setLevel(Level.WARNING);
+
+        negotiator = new CipherSuiteNegotiator(cipherSuite);
+
+        serverSocket = new SecureServerSocket();
+        serverSocket.setServerCert(Paths.get("misc/certs/localhostcert.crt"));
+        serverSocket.setServerKey(Paths.get("misc/certs/serverkey.der"));
+        serverSocket.setCipherSuiteNegotiator(negotiator);
+        server = Executors.newSingleThreadExecutor();
+
+        if (transport.equals("loopback")) {
+            serverSocket.bind(0);
+            port = serverSocket.getServerSocket().getLocalPort();
+            server.execute(() -> {
+                while (!serverSocket.getServerSocket().isClosed()) {
+                    try {
+                        serverSocket.acceptSecured().getTransport().close();
+                    } catch (IOException e) {
+                        // the server socket has been closed
+                    }
+                }
+            });
+        }
+
+        trustStore = TrustStore.newInstance();
+        trustStore.load(Paths.get("misc/certs/localhostcert.crt"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (serverSocket.getServerSocket() != null) serverSocket.close();
+        server.shutdown();
+        server.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public SecureSocket handshake() throws Exception {
+        SecureSocket socket = new SecureSocket();
+        socket.setTrustStore(trustStore);
+        socket.setCipherSuiteNegotiator(negotiator);
+
+        if (transport.equals("loopback")) {
+            socket.connectSecured("localhost", port);
+        } else {
+            InMemoryTransport clientEnd = new InMemoryTransport();
+            Future<SecureSocket> accepted = server.submit(() -> serverSocket.acceptSecured(clientEnd.getPeer()));
+            socket.connectSecured(clientEnd, "localhost");
+            accepted.get().getTransport().close();
+        }
+
+        socket.getTransport().close();
+        return socket;
+    }
+}
@@ -0,0 +1,53 @@
+package jiayu.tls;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and parsing of the largest handshake messages. Encoding calls {@code encode()} directly, since
+ * {@code getContent()} only returns the content cached by the first call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandshakeCodecBenchmark {
+    private ClientHello clientHello;
+    private byte[] clientHelloBytes;
+
+    private Certificate certificate;
+    private byte[] certificateBytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        clientHello = new ClientHello("localhost", CipherSuiteNegotiator.getDefault().getPreferences());
+        clientHelloBytes = clientHello.getContent();
+
+        certificate = new Certificate(new ASN1Cert(ServerCredentials.readCertificate(Paths.get("misc/certs/localhostcert.crt"))));
+        certificateBytes = certificate.getContent();
+    }
+
+    @Benchmark
+    public byte[] encodeClientHello() {
+        return clientHello.encode();
+    }
+
+    @Benchmark
+    public HandshakeMessage parseClientHello() throws Exception {
+        return new GenericProtocolMessage(ContentType.HANDSHAKE, clientHelloBytes).asHandshakeMessage(HandshakeType.CLIENT_HELLO);
+    }
+
+    @Benchmark
+    public byte[] encodeCertificate() {
+        return certificate.encode();
+    }
+
+    @Benchmark
+    public HandshakeMessage parseCertificate() throws Exception {
+        return new GenericProtocolMessage(ContentType.HANDSHAKE, certificateBytes).asHandshakeMessage(HandshakeType.CERTIFICATE);
+    }
+}
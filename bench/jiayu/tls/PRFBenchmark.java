@@ -0,0 +1,42 @@
+package jiayu.tls;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the PRF, which derives the master secret, the key block and the Finished verify data.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PRFBenchmark {
+    /**
+     * 12 bytes of verify data, a 48 byte master secret, and the 104 bytes of the largest key block.
+     */
+    @Param({"12", "48", "104"})
+    public int outputLength;
+
+    private byte[] secret;
+    private byte[] seed;
+
+    @Setup
+    public void setUp() {
+        SecureRandom random = new SecureRandom();
+        secret = new byte[48];
+        seed = new byte[2 * Random.BYTES];
+        random.nextBytes(secret);
+        random.nextBytes(seed);
+    }
+
+    @Benchmark
+    public byte[] getBytes() throws Exception {
+        PRF prf = PRF.getInstance(PRFAlgorithm.TLS_PRF_SHA256);
+        prf.init(secret, "key expansion", seed);
+        return prf.getBytes(outputLength);
+    }
+}
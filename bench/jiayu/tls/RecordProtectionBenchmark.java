@@ -0,0 +1,87 @@
+package jiayu.tls;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of protecting and unprotecting a single record of application data.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RecordProtectionBenchmark {
+    @Param({"16", "256", "1024", "4096", "16384"})
+    public int recordSize;
+
+    @Param({"TLS_RSA_WITH_AES_128_CBC_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"})
+    public CipherSuite cipherSuite;
+
+    private ConnectionState writeState;
+    private ConnectionState readState;
+    private GenericProtocolMessage message;
+    private TLSCiphertext ciphertext;
+
+    @Setup
+    public void setUp() throws Exception {
+        SecureRandom random = new SecureRandom();
+        byte[] masterSecret = new byte[48];
+        byte[] clientRandom = new byte[Random.BYTES];
+        byte[] serverRandom = new byte[Random.BYTES];
+        random.nextBytes(masterSecret);
+        random.nextBytes(clientRandom);
+        random.nextBytes(serverRandom);
+
+        writeState = new FixedSequenceConnectionState();
+        writeState.init(securityParameters(ConnectionEnd.CLIENT, masterSecret, clientRandom, serverRandom));
+        readState = new FixedSequenceConnectionState();
+        readState.init(securityParameters(ConnectionEnd.SERVER, masterSecret, clientRandom, serverRandom));
+
+        byte[] content = new byte[recordSize];
+        random.nextBytes(content);
+        message = new GenericProtocolMessage(ContentType.APPLICATION_DATA, content);
+        ciphertext = encrypt();
+    }
+
+    private SecurityParameters securityParameters(ConnectionEnd connectionEnd, byte[] masterSecret, byte[] clientRandom, byte[] serverRandom) {
+        SecurityParameters securityParameters = new SecurityParameters(connectionEnd);
+        securityParameters.setCipherSuite(cipherSuite);
+        securityParameters.setMasterSecret(masterSecret);
+        securityParameters.setClientRandom(clientRandom);
+        securityParameters.setServerRandom(serverRandom);
+        return securityParameters;
+    }
+
+    @Benchmark
+    public TLSCiphertext encrypt() throws Exception {
+        return cipherSuite.bulkCipherAlgorithm.type == CipherType.AEAD
+                ? new TLSCiphertext(GenericAEADCipherEncryptionProvider.encrypt(writeState, message))
+                : new TLSCiphertext(GenericBlockCipherEncryptionProvider.encrypt(writeState, message));
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws Exception {
+        return cipherSuite.bulkCipherAlgorithm.type == CipherType.AEAD
+                ? GenericAEADCipherEncryptionProvider.decrypt(readState, ciphertext)
+                : GenericBlockCipherEncryptionProvider.decrypt(readState, ciphertext);
+    }
+
+    /**
+     * A connection state which stays on the first sequence number, so that the same record can be decrypted
+     * on every invocation.
+     */
+    private static class FixedSequenceConnectionState extends ConnectionState {
+        @Override
+        public long getSequenceNumber() {
+            return 0;
+        }
+
+        @Override
+        public void incrementSequenceNumber() {
+        }
+    }
+}
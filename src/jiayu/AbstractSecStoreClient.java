@@ -1,23 +1,30 @@
 package jiayu;
 
 import jiayu.tls.SecureSocket;
+import jiayu.tls.TrustStore;
+import jiayu.tls.filetransfer.BlockSignatures;
+import jiayu.tls.filetransfer.Compression;
+import jiayu.tls.filetransfer.Delta;
+import jiayu.tls.filetransfer.Metadata;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
-import java.util.HashSet;
 
 public abstract class AbstractSecStoreClient implements SecStoreClient {
 
-    final HashSet<X509Certificate> caCerts;
+    TrustStore trustStore;
 
     boolean connected;
+    boolean compression;
+    boolean deduplication;
+    boolean deltaTransfer;
 
     SecureSocket socket;
     InputStream in;
@@ -25,20 +32,103 @@ public abstract class AbstractSecStoreClient implements SecStoreClient {
 
     AbstractSecStoreClient() {
         connected = false;
-        caCerts = new HashSet<>();
+        // CA certificates added to this client are not trusted by any other
+        trustStore = TrustStore.copyOf(TrustStore.getDefault());
     }
 
     @Override
     public void addCACert(Path caCert) throws CertificateException, IOException {
-        caCerts.add((X509Certificate) CertificateFactory.getInstance("X.509")
-                .generateCertificate(Files.newInputStream(caCert)));
+        trustStore.load(caCert);
+    }
+
+    @Override
+    public void setTrustStore(TrustStore trustStore) {
+        this.trustStore = trustStore;
+    }
+
+    @Override
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    public void setDeduplication(boolean deduplication) {
+        this.deduplication = deduplication;
+    }
+
+    @Override
+    public void setDeltaTransfer(boolean deltaTransfer) {
+        this.deltaTransfer = deltaTransfer;
+    }
+
+    /**
+     * Sends the metadata of a file ahead of its content if deduplication is enabled, and reads whether the server
+     * already has the content.
+     *
+     * @return true if the server has saved the file from content it already had, so the upload is complete
+     */
+    boolean offerMetadata(Metadata metadata) throws IOException {
+        if (!deduplication) return false;
+
+        byte[] metadataBytes = metadata.getBytes();
+        out.write(ByteBuffer.allocate(1 + metadataBytes.length).put((byte) SecStore.DEDUP).put(metadataBytes).array());
+        out.flush();
+
+        int reply = in.read();
+        if (reply < 0) throw new EOFException();
+        return reply == SecStore.CONTENT_STORED;
+    }
+
+    /**
+     * Asks the server for the block signatures of its stored version of a file if delta transfer is enabled.
+     *
+     * @return The signatures, which have no blocks if the server has no such file, or null if delta transfer is
+     * disabled
+     */
+    BlockSignatures requestSignatures(Metadata metadata) throws IOException {
+        if (!deltaTransfer) return null;
+
+        byte[] metadataBytes = metadata.getBytes();
+        out.write(ByteBuffer.allocate(1 + metadataBytes.length).put((byte) SecStore.DELTA).put(metadataBytes).array());
+        out.flush();
+
+        DataInputStream data = new DataInputStream(in);
+        byte[] signatures = new byte[data.readInt()];
+        data.readFully(signatures);
+        return BlockSignatures.fromBytes(signatures);
+    }
+
+    /**
+     * Writes the metadata of a file followed by its content, compressed if compression is enabled and worthwhile.
+     */
+    void writeUpload(OutputStream out, Metadata metadata, byte[] content) throws IOException {
+        writeUpload(out, metadata, content, null);
+    }
+
+    /**
+     * Writes the metadata of a file followed by its content, as a delta against the server's stored version if
+     * there are signatures for it.
+     *
+     * @param base The signatures returned by {@link #requestSignatures(Metadata)}, or null to send the whole content
+     */
+    void writeUpload(OutputStream out, Metadata metadata, byte[] content, BlockSignatures base) throws IOException {
+        if (base != null) {
+            // the literal data of a delta is not compressed
+            out.write(metadata.withCompression(Compression.NONE).getBytes());
+            Delta.encode(content, base, out);
+            return;
+        }
+
+        Compression fileCompression = compression ? Compression.choose(content) : Compression.NONE;
+        out.write(metadata.withCompression(fileCompression).getBytes());
+        fileCompression.encode(content, out);
     }
 
     @Override
     public void connect(String host, int port) throws IOException {
 
         socket = new SecureSocket();
-        caCerts.forEach(caCert -> socket.addCACertificate(caCert));
+        socket.setTrustStore(trustStore);
         System.out.println(String.format("Connecting to server at %s:%d", host, port));
         socket.connectSecured(host, port);
         in = socket.getInputStream();
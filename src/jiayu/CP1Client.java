@@ -61,11 +61,15 @@ public class CP1Client extends AbstractSecStoreClient {
         System.out.println(String.format("Uploading file %s (%d bytes)", metadata.getFilename(), metadata.getFilesize()));
         System.out.println("SHA-256: " + DatatypeConverter.printBase64Binary(metadata.getChecksum()));
 
+        if (offerMetadata(metadata)) {
+            System.out.println("Server already has this content, skipping upload");
+            return true;
+        }
+
         byte[] plaintext = Files.readAllBytes(file);
 
         ByteArrayOutputStream toEncrypt = new ByteArrayOutputStream();
-        toEncrypt.write(metadata.getBytes());
-        toEncrypt.write(plaintext);
+        writeUpload(toEncrypt, metadata, plaintext, requestSignatures(metadata));
 
         ByteBuffer buf = ByteBuffer.wrap(toEncrypt.toByteArray());
 
@@ -47,6 +47,12 @@ public class CP2Client extends AbstractSecStoreClient {
         Metadata metadata = Metadata.get(file);
 
         System.out.println(String.format("Uploading %s (%d bytes)", metadata.getFilename(), metadata.getFilesize()));
+
+        if (offerMetadata(metadata)) {
+            System.out.println("Server already has this content, skipping upload");
+            return true;
+        }
+
         byte[] fileContent = Files.readAllBytes(file);
 
         ByteArrayOutputStream toSend = new ByteArrayOutputStream();
@@ -55,8 +61,7 @@ public class CP2Client extends AbstractSecStoreClient {
         toSend.write(2);
 
         ByteArrayOutputStream toEncrypt = new ByteArrayOutputStream();
-        toEncrypt.write(metadata.getBytes());
-        toEncrypt.write(fileContent);
+        writeUpload(toEncrypt, metadata, fileContent, requestSignatures(metadata));
 
         KeyGenerator kg = null;
         long encTime;
@@ -36,8 +36,7 @@ public class Client extends AbstractSecStoreClient {
         Metadata metadata = Metadata.get(file);
         byte[] fileData = Files.readAllBytes(file);
 
-        out.write(metadata.getBytes());
-        out.write(fileData);
+        writeUpload(out, metadata, fileData);
         out.flush();
 
         return in.read() == 1;
@@ -0,0 +1,438 @@
+package jiayu;
+
+import jiayu.tls.LatencyHistogram;
+import jiayu.tls.SecureSocket;
+import jiayu.tls.TrustStore;
+import jiayu.tls.UInt;
+import jiayu.tls.filetransfer.Metadata;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stress tool which opens many concurrent connections to a SecStore and uploads synthetic files.
+ * <p>
+ * Each connection performs a handshake, uploads one file using the same framing as {@link CP1Client},
+ * {@link CP2Client} or {@link Client}, and waits for the server's response. Throughput and latency percentiles
+ * are printed every second and summarised at the end. With a target rate, latencies are measured from when each
+ * connection was scheduled to start, so a server which falls behind is not hidden by the load generator
+ * waiting for it.
+ * <p>
+ * Usage: java jiayu.LoadGenerator [options], where the options are
+ * <pre>
+ * --host HOST          server host name (localhost)
+ * --port PORT          server port (4443)
+ * --ca FILE            CA certificate to trust (misc/certs/localhostcert.crt)
+ * --connections N      number of concurrent connections (8)
+ * --rate N             target connections per second across all connections, or 0 for as fast as possible (0)
+ * --duration SECONDS   how long to run for (30)
+ * --protocol P         CP1, CP2, PLAIN, or NONE to only perform handshakes (CP2)
+ * --size SPEC          file sizes: a fixed size such as 64K, a uniform range such as 4K-1M,
+ *                      or an exponential distribution such as exp:256K (64K)
+ * --handshake H        full, to verify the server certificate chain on every connection,
+ *                      or resumed, to reuse chains which have already been verified (full)
+ * --verbose            keep the handshake logs
+ * </pre>
+ * SecStore only understands CP1 and CP2 framing; PLAIN is for servers which accept uploads from {@link Client}.
+ */
+public class LoadGenerator {
+    enum Protocol {
+        CP1, CP2, PLAIN, NONE
+    }
+
+    private static final int CP1_BLOCK_SIZE = 117;
+
+    private final String host;
+    private final int port;
+    private final TrustStore trustStore;
+    private final int connections;
+    private final int rate;
+    private final long durationNanos;
+    private final Protocol protocol;
+    private final SizeDistribution sizes;
+    private final boolean resumeHandshakes;
+
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder uploads = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final LatencyHistogram handshakeTime = new LatencyHistogram();
+    private final LatencyHistogram uploadTime = new LatencyHistogram();
+    private final LatencyHistogram totalTime = new LatencyHistogram();
+
+    private final AtomicLong nextStart = new AtomicLong();
+    private long deadline;
+    private long elapsedNanos;
+
+    LoadGenerator(String host, int port, TrustStore trustStore, int connections, int rate, long durationNanos,
+                  Protocol protocol, SizeDistribution sizes, boolean resumeHandshakes) {
+        if (connections < 1) throw new IllegalArgumentException("connections must be positive");
+        if (rate < 0) throw new IllegalArgumentException("rate must not be negative");
+
+        this.host = host;
+        this.port = port;
+        this.trustStore = trustStore;
+        this.connections = connections;
+        this.rate = rate;
+        this.durationNanos = durationNanos;
+        this.protocol = protocol;
+        this.sizes = sizes;
+        this.resumeHandshakes = resumeHandshakes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = 4443;
+        String caCert = "misc/certs/localhostcert.crt";
+        int connections = 8;
+        int rate = 0;
+        int duration = 30;
+        Protocol protocol = Protocol.CP2;
+        String sizes = "64K";
+        String handshake = "full";
+        boolean verbose = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--host":
+                        host = args[++i];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--ca":
+                        caCert = args[++i];
+                        break;
+                    case "--connections":
+                        connections = Integer.parseInt(args[++i]);
+                        break;
+                    case "--rate":
+                        rate = Integer.parseInt(args[++i]);
+                        break;
+                    case "--duration":
+                        duration = Integer.parseInt(args[++i]);
+                        break;
+                    case "--protocol":
+                        protocol = Protocol.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "--size":
+                        sizes = args[++i];
+                        break;
+                    case "--handshake":
+                        handshake = args[++i];
+                        if (!handshake.equals("full") && !handshake.equals("resumed"))
+                            throw new IllegalArgumentException(handshake);
+                        break;
+                    case "--verbose":
+                        verbose = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid arguments! See the LoadGenerator documentation for usage.");
+            return;
+        }
+
+        if (!verbose) Logger.getLogger("jiayu.tls").setLevel(Level.WARNING);
+
+        TrustStore trustStore = TrustStore.newInstance();
+        trustStore.load(Paths.get(caCert));
+
+        LoadGenerator loadGenerator = new LoadGenerator(host, port, trustStore, connections, rate,
+                TimeUnit.SECONDS.toNanos(duration), protocol, SizeDistribution.parse(sizes), handshake.equals("resumed"));
+        System.out.println(String.format("Running %d connections against %s:%d for %d s (%s, %s, %s handshakes)",
+                connections, host, port, duration, protocol, sizes, handshake));
+        loadGenerator.run();
+        loadGenerator.printSummary();
+    }
+
+    void run() throws InterruptedException {
+        long start = System.nanoTime();
+        deadline = start + durationNanos;
+        nextStart.set(start);
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(new Reporter(start), 1, 1, TimeUnit.SECONDS);
+
+        Thread[] workers = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            int worker = i;
+            workers[i] = new Thread(() -> work(worker), "LoadGenerator-" + i);
+            workers[i].start();
+        }
+        for (Thread worker : workers) worker.join();
+
+        reporter.shutdownNow();
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    private void work(int worker) {
+        KeyPair cp1KeyPair = null;
+        if (protocol == Protocol.CP1) {
+            // CP1Client generates a key pair for every upload, which would leave the load generator measuring itself
+            try {
+                KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+                kpg.initialize(1024);
+                cp1KeyPair = kpg.generateKeyPair();
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        byte[] source = new byte[sizes.getMax()];
+        ThreadLocalRandom.current().nextBytes(source);
+        String filename = String.format("loadgen-%d.bin", worker);
+
+        while (true) {
+            long scheduled = schedule();
+            if (scheduled - deadline >= 0) return;
+
+            SecureSocket socket = new SecureSocket();
+            socket.setTrustStore(trustStore);
+            socket.setUseVerifiedChainCache(resumeHandshakes);
+            try {
+                socket.connectSecured(host, port);
+                long handshakeEnd = System.nanoTime();
+                handshakeTime.record(handshakeEnd - scheduled);
+                handshakes.increment();
+
+                if (protocol != Protocol.NONE) {
+                    byte[] content = Arrays.copyOf(source, sizes.next());
+                    byte[] frame = frame(new Metadata(filename, content), content, cp1KeyPair);
+
+                    long uploadStart = System.nanoTime();
+                    OutputStream out = socket.getOutputStream();
+                    InputStream in = socket.getInputStream();
+                    out.write(frame);
+                    if (in.read() != 1) throw new IOException("upload rejected");
+
+                    long uploadEnd = System.nanoTime();
+                    uploadTime.record(uploadEnd - uploadStart);
+                    uploads.increment();
+                    bytesUploaded.add(content.length);
+                }
+
+                totalTime.record(System.nanoTime() - scheduled);
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                failures.increment();
+            } finally {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Waits until the next connection is due to start.
+     *
+     * @return The time the connection was scheduled for
+     */
+    private long schedule() {
+        if (rate == 0) return System.nanoTime();
+
+        long scheduled = nextStart.getAndAdd(TimeUnit.SECONDS.toNanos(1) / rate);
+        long now;
+        while ((now = System.nanoTime()) - scheduled < 0 && scheduled - deadline < 0) LockSupport.parkNanos(scheduled - now);
+        return scheduled;
+    }
+
+    private static void closeQuietly(SecureSocket socket) {
+        try {
+            if (socket.getTransport() != null) socket.getTransport().close();
+        } catch (IOException | RuntimeException ignored) {
+        }
+    }
+
+    private byte[] frame(Metadata metadata, byte[] content, KeyPair cp1KeyPair) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+        plaintext.write(metadata.getBytes());
+        plaintext.write(content);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        switch (protocol) {
+            case CP1: {
+                // the metadata and content are RSA encrypted in 117 byte chunks, as in CP1Client
+                byte[] pubKeyBytes = cp1KeyPair.getPublic().getEncoded();
+                Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+                cipher.init(Cipher.ENCRYPT_MODE, cp1KeyPair.getPrivate());
+
+                ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+                ByteBuffer buf = ByteBuffer.wrap(plaintext.toByteArray());
+                while (buf.hasRemaining()) {
+                    byte[] block = new byte[Math.min(CP1_BLOCK_SIZE, buf.remaining())];
+                    buf.get(block);
+                    ciphertext.write(cipher.doFinal(block));
+                }
+
+                output.write(1);
+                output.write(UInt.itob(pubKeyBytes.length));
+                output.write(pubKeyBytes);
+                output.write(UInt.itob(ciphertext.size()));
+                ciphertext.writeTo(output);
+                break;
+            }
+            case CP2: {
+                // the metadata and content are AES encrypted with a fresh key, as in CP2Client
+                KeyGenerator kg = KeyGenerator.getInstance("AES");
+                kg.init(128);
+                SecretKey secretKey = kg.generateKey();
+                byte[] keyBytes = secretKey.getEncoded();
+
+                Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+                cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+                byte[] encrypted = cipher.doFinal(plaintext.toByteArray());
+
+                output.write(2);
+                output.write(UInt.itob(keyBytes.length));
+                output.write(keyBytes);
+                output.write(UInt.itob(encrypted.length));
+                output.write(encrypted);
+                break;
+            }
+            case PLAIN:
+                plaintext.writeTo(output);
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        return output.toByteArray();
+    }
+
+    void printSummary() {
+        double seconds = elapsedNanos / 1e9;
+
+        System.out.println();
+        System.out.println(String.format("Handshakes: %d (%.1f/s)", handshakes.sum(), handshakes.sum() / seconds));
+        if (protocol != Protocol.NONE)
+            System.out.println(String.format("Uploads:    %d (%.2f MB/s)", uploads.sum(), bytesUploaded.sum() / seconds / (1 << 20)));
+        System.out.println(String.format("Failures:   %d", failures.sum()));
+        System.out.println(String.format("%-10s %10s %10s %10s %10s", "latency", "p50", "p99", "p999", "max"));
+        printLatencies("handshake", handshakeTime);
+        if (protocol != Protocol.NONE) printLatencies("upload", uploadTime);
+        printLatencies("total", totalTime);
+    }
+
+    private static void printLatencies(String name, LatencyHistogram histogram) {
+        System.out.println(String.format("%-10s %8.2fms %8.2fms %8.2fms %8.2fms", name,
+                histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6,
+                histogram.getPercentile(99.9) / 1e6, histogram.getMax() / 1e6));
+    }
+
+    private class Reporter implements Runnable {
+        private final long start;
+        private long lastHandshakes;
+        private long lastBytes;
+
+        private Reporter(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            long handshakes = LoadGenerator.this.handshakes.sum();
+            long bytes = bytesUploaded.sum();
+            System.out.println(String.format("%4ds  %6d handshakes/s  %8.2f MB/s  %d failures  p99 total %.2fms",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                    handshakes - lastHandshakes, (bytes - lastBytes) / (double) (1 << 20),
+                    failures.sum(), totalTime.getPercentile(99) / 1e6));
+            lastHandshakes = handshakes;
+            lastBytes = bytes;
+        }
+    }
+
+    /**
+     * The distribution of synthetic file sizes.
+     */
+    static class SizeDistribution {
+        private final char type;
+        private final int a;
+        private final int b;
+
+        private SizeDistribution(char type, int a, int b) {
+            this.type = type;
+            this.a = a;
+            this.b = b;
+        }
+
+        /**
+         * Parses a fixed size such as 64K, a uniform range such as 4K-1M, or an exponential distribution with
+         * a given mean such as exp:256K. Exponential sizes are capped at eight times the mean.
+         */
+        static SizeDistribution parse(String spec) {
+            if (spec.startsWith("exp:")) return new SizeDistribution('e', parseSize(spec.substring(4)), 0);
+
+            int dash = spec.indexOf('-');
+            if (dash < 0) return new SizeDistribution('f', parseSize(spec), 0);
+
+            int min = parseSize(spec.substring(0, dash));
+            int max = parseSize(spec.substring(dash + 1));
+            if (min > max) throw new IllegalArgumentException(spec);
+            return new SizeDistribution('u', min, max);
+        }
+
+        static int parseSize(String size) {
+            int multiplier = 1;
+            switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+                case 'K':
+                    multiplier = 1 << 10;
+                    break;
+                case 'M':
+                    multiplier = 1 << 20;
+                    break;
+                case 'G':
+                    multiplier = 1 << 30;
+                    break;
+            }
+            if (multiplier > 1) size = size.substring(0, size.length() - 1);
+
+            long bytes = Long.parseLong(size) * multiplier;
+            if (bytes < 0 || bytes > Integer.MAX_VALUE) throw new IllegalArgumentException(size);
+            return (int) bytes;
+        }
+
+        int getMax() {
+            switch (type) {
+                case 'u':
+                    return b;
+                case 'e':
+                    return (int) Math.min(Integer.MAX_VALUE - 8, 8L * a);
+                default:
+                    return a;
+            }
+        }
+
+        int next() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            switch (type) {
+                case 'u':
+                    return a + random.nextInt(b - a + 1);
+                case 'e':
+                    return (int) Math.min(getMax(), -a * Math.log(1 - random.nextDouble()));
+                default:
+                    return a;
+            }
+        }
+    }
+}
@@ -3,7 +3,12 @@ package jiayu;
 import jiayu.tls.SecureServerSocket;
 import jiayu.tls.SecureSocket;
 import jiayu.tls.SecureSocketInputStream;
+import jiayu.tls.filetransfer.BlockSignatures;
+import jiayu.tls.filetransfer.ChecksumIndex;
+import jiayu.tls.filetransfer.Delta;
+import jiayu.tls.filetransfer.Durability;
 import jiayu.tls.filetransfer.Metadata;
+import jiayu.tls.filetransfer.StorageBackend;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -18,7 +23,6 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
@@ -31,14 +35,44 @@ import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SecStore {
     private static final int CP1 = 1;
     private static final int CP2 = 2;
 
+    /**
+     * Sent instead of a protocol before an upload, followed by the file's metadata, to ask whether its content needs
+     * to be sent. The server replies with {@link #CONTENT_STORED} or {@link #CONTENT_WANTED}.
+     */
+    static final int DEDUP = 3;
+
+    /**
+     * The content is already stored and the file has been saved under its new name, so the upload is complete.
+     */
+    static final int CONTENT_STORED = 1;
+
+    /**
+     * The content is not stored, so the client should upload the file as usual.
+     */
+    static final int CONTENT_WANTED = 2;
+
+    /**
+     * Sent instead of a protocol before an upload, followed by the file's metadata, to ask for the
+     * {@link BlockSignatures} of the stored file of the same name. The server replies with the signatures, which
+     * are empty if there is no such file, and the content of the upload which follows is a {@link Delta} against it.
+     */
+    static final int DELTA = 4;
+
+    private static final int ACK_THREADS = 2;
+
     private final ExecutorService executorService;
+    // answers clients once their uploads are stored, apart from the connection threads, which may all be blocked
+    // receiving files
+    private final ExecutorService ackExecutor;
 
-    private Path destDir;
+    private StorageBackend storage;
+    private ChecksumIndex checksumIndex;
     private SecureServerSocket sss;
 
     private boolean listening;
@@ -50,6 +84,13 @@ public class SecStore {
         System.out.println(String.format("Using %d threads.", numCores));
         executorService = Executors.newFixedThreadPool(numCores);
 
+        AtomicInteger ackThreadNumber = new AtomicInteger();
+        ackExecutor = Executors.newFixedThreadPool(ACK_THREADS, r -> {
+            Thread thread = new Thread(r, "secstore-ack-" + ackThreadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
         sss = new SecureServerSocket();
         listening = false;
     }
@@ -62,8 +103,49 @@ public class SecStore {
         sss.setServerKey(serverKey);
     }
 
+    public void addHost(String hostName, Path serverCert, Path serverKey) throws InvalidKeySpecException, NoSuchAlgorithmException, IOException {
+        sss.addServerCredentials(hostName, serverCert, serverKey);
+    }
+
     public void setDestDir(Path path) {
-        destDir = path;
+        setDestDir(path, Durability.NONE);
+    }
+
+    /**
+     * Stores received files in a directory, acknowledging each upload once it is as durable as the policy requires.
+     */
+    public void setDestDir(Path path, Durability durability) {
+        setStorage(StorageBackend.getLocal(path, durability));
+    }
+
+    /**
+     * Stores received files in a directory, packing small files into segment files instead of creating a file for
+     * each of them.
+     */
+    public void setSegmentStore(Path path, Durability durability) throws IOException {
+        setStorage(StorageBackend.getSegmented(path, durability));
+    }
+
+    /**
+     * Sets where received files are stored, and indexes the files it already holds in the background. Until they
+     * are indexed, an upload of content which is already stored is received in full.
+     */
+    public void setStorage(StorageBackend storage) {
+        if (this.storage != null) this.storage.close();
+        this.storage = storage;
+
+        ChecksumIndex index = new ChecksumIndex(storage);
+        checksumIndex = index;
+        Thread indexer = new Thread(() -> {
+            try {
+                int skipped = index.addAll();
+                if (skipped > 0) System.out.println("ERROR: " + skipped + " stored files could not be indexed");
+            } catch (IOException e) {
+                System.out.println("ERROR: failed to index files already in storage");
+            }
+        }, "secstore-index");
+        indexer.setDaemon(true);
+        indexer.start();
     }
 
     public void bind(int port) throws IOException {
@@ -96,7 +178,7 @@ public class SecStore {
     }
 
     public void receiveFile(SecureSocket ss) {
-        if (destDir == null) throw new IllegalStateException("no destination directory set");
+        if (storage == null) throw new IllegalStateException("no destination directory set");
 
         SecureSocketInputStream in = ss.getInputStream();
         OutputStream out = ss.getOutputStream();
@@ -105,15 +187,37 @@ public class SecStore {
         int protocol;
         int keyLength;
         byte[] keyBytes;
+        byte[] deltaBase = null;
+        int deltaBlockSize = 0;
         try {
             in.readFully(buf.array());
 
             protocol = buf.get();
+            while (protocol == DEDUP || protocol == DELTA) {
+                byte[] metadataBytes = new byte[buf.getInt()];
+                in.readFully(metadataBytes);
+                Metadata offered = Metadata.fromBytes(metadataBytes);
+
+                if (protocol == DEDUP) {
+                    if (storeExisting(offered, out)) return;
+                } else {
+                    deltaBase = readStored(offered.getFilename());
+                    BlockSignatures signatures = BlockSignatures.of(deltaBase);
+                    deltaBlockSize = signatures.getBlockSize();
+                    out.write(signatures.getBytes());
+                    out.flush();
+                }
+
+                // the client now uploads the file as usual
+                buf.clear();
+                in.readFully(buf.array());
+                protocol = buf.get();
+            }
             keyLength = buf.getInt();
 
             keyBytes = new byte[keyLength];
             in.readFully(keyBytes);
-        } catch (IOException e) {
+        } catch (IOException | IllegalArgumentException e) {
 //            e.printStackTrace();
             System.out.println("ERROR: receive error");
             try {
@@ -173,12 +277,28 @@ public class SecStore {
         byte[] metadataBytes = new byte[metadataLength];
         buf.get(metadataBytes);
 
-        Metadata metadata = Metadata.fromBytes(metadataBytes);
-        System.out.println(String.format("Receiving file %s (%d bytes)", metadata.getFilename(), metadata.getFilesize()));
-
-        byte[] fileBytes = new byte[metadata.getFilesize()];
-        assert buf.remaining() == fileBytes.length;
-        buf.get(fileBytes);
+        Metadata metadata;
+        byte[] fileBytes;
+        try {
+            metadata = Metadata.fromBytes(metadataBytes);
+            System.out.println(String.format("Receiving file %s (%d bytes, %s compression)", metadata.getFilename(), metadata.getFilesize(), metadata.getCompression()));
+
+            if (deltaBase != null) {
+                System.out.println(String.format("Rebuilding from a %d byte delta against the stored file", buf.remaining()));
+                fileBytes = Delta.apply(deltaBase, deltaBlockSize, buf, metadata.getFilesize());
+            } else {
+                fileBytes = metadata.getCompression().decode(buf, metadata.getFilesize());
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("ERROR: failed to decode file content");
+            try {
+                out.write(0);
+            } catch (IOException e1) {
+                System.out.println("ERROR: failed to notify client of failure");
+                return;
+            }
+            return;
+        }
 
         System.out.println("Received SHA-256 checksum:   " + DatatypeConverter.printBase64Binary(metadata.getChecksum()));
 
@@ -199,27 +319,73 @@ public class SecStore {
 
         String filename = metadata.getFilename();
 
-        try {
-            Files.write(destDir.resolve(filename), fileBytes, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
-            System.out.println(String.format("Successfully saved to %s", destDir.resolve(filename).toAbsolutePath().toString()));
-        } catch (IOException e) {
-            System.out.println("ERROR: failed to write received file to disk");
+        // the client is answered once the file is stored, so this thread can serve others; the answer goes out on
+        // the ack executor so that a slow client never holds up the storage or commit thread, and a batch of files
+        // committed together is never waiting for a connection thread to acknowledge it
+        long startTime = System.currentTimeMillis();
+        storage.write(metadata, fileBytes).whenCompleteAsync((ignored, e) -> {
+            if (e != null) {
+                System.out.println("ERROR: failed to write received file to disk");
+                try {
+                    out.write(0);
+                } catch (IOException e1) {
+                    System.out.println("ERROR: failed to notify client of failure");
+                }
+                return;
+            }
+
+            checksumIndex.add(metadata.getChecksum(), filename);
+            System.out.println(String.format("Successfully saved %s (storage time: %d)", filename, System.currentTimeMillis() - startTime));
+
             try {
-                out.write(0);
+                out.write(1);
+                out.flush();
             } catch (IOException e1) {
-                System.out.println("ERROR: failed to notify client of failure");
-                return;
+//                e1.printStackTrace();
+                System.out.println("ERROR: failed to notify client of success");
             }
-            return;
-        }
+        }, ackExecutor);
+    }
 
+    /**
+     * Answers a client which sent the metadata of a file before uploading it. If content with the same checksum is
+     * already stored, the file is saved by linking to it and the client is told to skip the upload.
+     *
+     * @param metadata The metadata of the file
+     * @param out      The stream to the client
+     * @return true if the file was saved without receiving its content
+     * @throws IOException If the reply could not be sent
+     */
+    private boolean storeExisting(Metadata metadata, OutputStream out) throws IOException {
+        String stored;
         try {
-            out.write(1);
+            stored = checksumIndex.find(metadata.getChecksum());
+            if (stored != null) storage.link(stored, metadata.getFilename());
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("ERROR: failed to reuse stored content");
+            stored = null;
+        }
+
+        if (stored == null) {
+            out.write(CONTENT_WANTED);
             out.flush();
-        } catch (IOException e) {
-//            e.printStackTrace();
-            System.out.println("ERROR: failed to notify client of success");
+            return false;
         }
+
+        System.out.println(String.format("Saved %s (%d bytes) from stored content in %s", metadata.getFilename(), metadata.getFilesize(), stored));
+        out.write(CONTENT_STORED);
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Reads the stored file with the given name, to be the base of a delta upload.
+     *
+     * @return The content of the file, or an empty array if there is no such file
+     */
+    private byte[] readStored(String filename) throws IOException {
+        byte[] stored = storage.read(filename);
+        return stored != null ? stored : new byte[0];
     }
 
     private byte[] decryptCP2(SecureSocketInputStream in, byte[] keyBytes, int dataLength) throws IOException {
@@ -399,13 +565,48 @@ public class SecStore {
                     e.printStackTrace();
                 }
                 break;
+            case "host":
+                try {
+                    if (args.length < 4) {
+                        System.out.println("invalid arguments!");
+                        return;
+                    }
+
+                    addHost(args[1], Paths.get(args[2]), Paths.get(args[3]));
+                    System.out.println("Added server cert and key for " + args[1] + ".");
+                } catch (InvalidKeySpecException | NoSuchAlgorithmException | IOException e) {
+                    System.out.println("ERROR");
+                    e.printStackTrace();
+                }
+                break;
             case "destdir":
                 if (args.length < 2) {
                     System.out.println("invalid arguments!");
                     return;
                 }
-                setDestDir(Paths.get(args[1]));
-                System.out.println("New destination directory set.");
+                try {
+                    Durability durability = args.length < 3 ? Durability.NONE : Durability.parse(args[2]);
+                    setDestDir(Paths.get(args[1]), durability);
+                    System.out.println(String.format("New destination directory set (durability: %s).", durability));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Invalid durability! Expected none, per-file or group-commit.");
+                }
+                break;
+            case "segmentstore":
+                if (args.length < 2) {
+                    System.out.println("invalid arguments!");
+                    return;
+                }
+                try {
+                    Durability durability = args.length < 3 ? Durability.NONE : Durability.parse(args[2]);
+                    setSegmentStore(Paths.get(args[1]), durability);
+                    System.out.println(String.format("New segment store set (durability: %s).", durability));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Invalid durability! Expected none, per-file or group-commit.");
+                } catch (IOException e) {
+                    System.out.println("ERROR");
+                    e.printStackTrace();
+                }
                 break;
             default:
                 System.out.println("Invalid command!");
@@ -1,5 +1,7 @@
 package jiayu;
 
+import jiayu.tls.TrustStore;
+
 import java.io.IOException;
 import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
@@ -19,6 +21,26 @@ public interface SecStoreClient {
 
     void addCACert(Path caCert) throws CertificateException, IOException;
 
+    void setTrustStore(TrustStore trustStore);
+
+    /**
+     * Sets whether files are compressed before they are encrypted and uploaded. Each file is only compressed if a
+     * sample of it shrinks.
+     */
+    void setCompression(boolean compression);
+
+    /**
+     * Sets whether the metadata of each file is sent before its content, so that the server can skip the upload of
+     * content it already has.
+     */
+    void setDeduplication(boolean deduplication);
+
+    /**
+     * Sets whether each file is sent as a delta against the server's stored file of the same name, so that only
+     * the blocks which changed are uploaded.
+     */
+    void setDeltaTransfer(boolean deltaTransfer);
+
     void connect(String host, int port) throws IOException;
 
     boolean uploadFile(String file) throws IOException;
@@ -49,9 +49,13 @@ public class ASN1Cert implements ByteVector {
 
     @Override
     public byte[] toBytes() {
-        return ByteBuffer.allocate(getEntireLength())
-                .put(length)
-                .put(content)
-                .array();
+        ByteBuffer buf = ByteBuffer.allocate(getEntireLength());
+        writeTo(buf);
+        return buf.array();
+    }
+
+    void writeTo(ByteBuffer buf) {
+        buf.put(length)
+                .put(content);
     }
 }
@@ -1,16 +1,14 @@
 package jiayu.tls;
 
-import java.util.HashMap;
-
 public enum AlertDescription {
     CLOSE_NOTIFY(0), UNEXPECTED_MESSAGE(10), HANDSHAKE_FAILURE(40), BAD_CERTIFICATE(42),
-    CERTIFICATE_EXPIRED(45), DECODE_ERROR(50), DECRYPT_ERROR(51), INTERNAL_ERROR(80), BAD_RECORD_MAC(20),
-    USER_CANCELLED(90);
+    CERTIFICATE_EXPIRED(45), ILLEGAL_PARAMETER(47), DECODE_ERROR(50), DECRYPT_ERROR(51), INTERNAL_ERROR(80), BAD_RECORD_MAC(20),
+    RECORD_OVERFLOW(22), USER_CANCELLED(90), UNRECOGNIZED_NAME(112);
 
-    private static HashMap<Byte, AlertDescription> map = new HashMap<>();
+    private static final AlertDescription[] lookupTable = new AlertDescription[256];
 
     static {
-        for (AlertDescription desc : values()) map.put(desc.value, desc);
+        for (AlertDescription desc : values()) lookupTable[desc.value & 0xFF] = desc;
     }
 
     public final byte value;
@@ -21,7 +19,8 @@ public enum AlertDescription {
     }
 
     public static AlertDescription valueOf(byte value) throws FatalAlertException {
-        if (map.containsKey(value)) return map.get(value);
+        AlertDescription desc = lookupTable[value & 0xFF];
+        if (desc != null) return desc;
         else throw new FatalAlertException(DECODE_ERROR);
     }
 }
@@ -1,8 +1,10 @@
 package jiayu.tls;
 
 public enum BulkCipherAlgorithm {
-    NULL(null, "", "", 0, 0, 0),
-    AES_128_CBC(CipherType.BLOCK, "AES/CBC/NoPadding", "AES", 16, 16, 16);
+    NULL(null, "", "", 0, 0, 0, 0, 0),
+    AES_128_CBC(CipherType.BLOCK, "AES/CBC/NoPadding", "AES", 16, 16, 16, 0, 16),
+    AES_128_GCM(CipherType.AEAD, "AES/GCM/NoPadding", "AES", 16, 0, 0, 4, 8),
+    CHACHA20_POLY1305(CipherType.AEAD, "ChaCha20-Poly1305", "ChaCha20", 32, 0, 0, 12, 0);
 
     public final CipherType type;
     public final String transformation;
@@ -10,13 +12,19 @@ public enum BulkCipherAlgorithm {
     public final int encKeyLength;
     public final int ivLength;
     public final int blockSize;
+    // for AEAD
+    public final int fixedIVLength;
+    public final int recordIVLength;
 
-    BulkCipherAlgorithm(CipherType type, String transformation, String keySpec, int encKeyLength, int ivLength, int blockSize) {
+    BulkCipherAlgorithm(CipherType type, String transformation, String keySpec, int encKeyLength, int ivLength, int blockSize,
+                        int fixedIVLength, int recordIVLength) {
         this.type = type;
         this.transformation = transformation;
         this.keySpec = keySpec;
         this.encKeyLength = encKeyLength;
         this.ivLength = ivLength;
         this.blockSize = blockSize;
+        this.fixedIVLength = fixedIVLength;
+        this.recordIVLength = recordIVLength;
     }
 }
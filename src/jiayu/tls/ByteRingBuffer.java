@@ -0,0 +1,141 @@
+package jiayu.tls;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded, blocking pipe between one writing thread and one reading thread.
+ * <p>
+ * Unlike {@link java.io.PipedInputStream}, the pipe does not depend on which threads have used it, so either end
+ * can be handed from thread to thread. Closing the output stream lets the reader drain what has been written
+ * before it sees end-of-stream; closing the input stream makes further writes fail.
+ */
+class ByteRingBuffer {
+    private final byte[] buffer;
+    private int head;
+    private int size;
+
+    private boolean writerClosed;
+    private boolean readerClosed;
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return ByteRingBuffer.this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return ByteRingBuffer.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return ByteRingBuffer.this.available();
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            ByteRingBuffer.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteRingBuffer.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    };
+
+    ByteRingBuffer(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+
+        buffer = new byte[capacity];
+    }
+
+    InputStream getInputStream() {
+        return in;
+    }
+
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+
+        while (size == 0) {
+            if (readerClosed) throw new IOException("pipe closed");
+            if (writerClosed) return -1;
+            await();
+        }
+        if (readerClosed) throw new IOException("pipe closed");
+
+        int n = Math.min(len, size);
+        int first = Math.min(n, buffer.length - head);
+        System.arraycopy(buffer, head, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, n - first);
+
+        head = (head + n) % buffer.length;
+        size -= n;
+        notifyAll();
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (writerClosed || readerClosed) throw new IOException("pipe closed");
+            if (size == buffer.length) {
+                await();
+                continue;
+            }
+
+            int tail = (head + size) % buffer.length;
+            int n = Math.min(len, buffer.length - size);
+            int first = Math.min(n, buffer.length - tail);
+            System.arraycopy(b, off, buffer, tail, first);
+            System.arraycopy(b, off + first, buffer, 0, n - first);
+
+            size += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    private synchronized int available() {
+        return size;
+    }
+
+    synchronized void closeReader() {
+        readerClosed = true;
+        notifyAll();
+    }
+
+    synchronized void closeWriter() {
+        writerClosed = true;
+        notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
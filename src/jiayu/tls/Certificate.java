@@ -6,7 +6,6 @@ import java.nio.ByteBuffer;
 
 public class Certificate extends HandshakeMessage {
     private final int length;
-    private final byte[] header;
 
     private final CertificateList certificateList;
 
@@ -19,45 +18,35 @@ public class Certificate extends HandshakeMessage {
 
         certificateList = certList;
         length = certList.getEntireLength();
-        header = createHeader(length);
     }
 
     public CertificateList getCertificateList() {
         return certificateList;
     }
 
-    private byte[] toBytes() {
-        return ByteBuffer.allocate(HEADER_LENGTH + length)
-                .put(header)
-                .put(certificateList.toBytes())
-                .array();
+    @Override
+    byte[] encode() {
+        ByteBuffer content = writeHeader(ByteBuffer.allocate(HEADER_LENGTH + length), length);
+        certificateList.writeTo(content);
+        return content.array();
     }
 
     public static Certificate interpret(GenericHandshakeMessage handshake) throws FatalAlertException {
         if (handshake.getType() != HandshakeType.CERTIFICATE)
             throw new FatalAlertException(AlertDescription.UNEXPECTED_MESSAGE);
 
-        ByteBuffer content = ByteBuffer.wrap(handshake.getContent());
+        ByteBuffer content = handshake.getBody();
 
         // the buffer should now contain 3 content of (certificates length) and
         // (certificates length) content of certificates
-        byte[] certListLenBytes = new byte[3];
-        content.get(certListLenBytes);
-
-        int certListLength = UInt.btoi(certListLenBytes);
+        if (content.remaining() < CertificateList.LENGTH_BYTES)
+            throw new FatalAlertException(AlertDescription.DECODE_ERROR);
+        int certListLength = (content.get() & 0xFF) << 16 | (content.get() & 0xFF) << 8 | content.get() & 0xFF;
         if (content.remaining() != certListLength)
             throw new FatalAlertException(AlertDescription.DECODE_ERROR);
 
-        byte[] certListBytes = new byte[certListLength];
-        content.get(certListBytes);
-
-        CertificateList certList = CertificateList.fromBytes(certListBytes);
+        CertificateList certList = CertificateList.read(content);
 
         return new Certificate(certList);
     }
-
-    @Override
-    public byte[] getContent() {
-        return toBytes();
-    }
 }
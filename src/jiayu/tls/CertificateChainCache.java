@@ -0,0 +1,114 @@
+package jiayu.tls;
+
+import javax.xml.bind.DatatypeConverter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of server certificate chains which have already been verified against a trusted CA certificate.
+ * <p>
+ * Chains are keyed by the SHA-256 fingerprint of their encoded certificates. An entry is only valid until the
+ * earliest notAfter date in the verified chain, and only while the CA certificate which verified it is still trusted.
+ * When the cache is full, the least recently used chain is evicted.
+ */
+class CertificateChainCache {
+    static final int DEFAULT_CAPACITY = 256;
+
+    private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    CertificateChainCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    CertificateChainCache(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Computes the fingerprint used to identify a certificate chain in this cache.
+     *
+     * @param chain The certificate chain sent by the server
+     * @return The hex-encoded SHA-256 digest of every certificate in the chain
+     */
+    static String fingerprint(CertificateList chain) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is supported in all java implementations
+            throw new AssertionError(e);
+        }
+
+        for (ASN1Cert asn1Cert : chain.getContents()) md.update(asn1Cert.content);
+
+        return DatatypeConverter.printHexBinary(md.digest());
+    }
+
+    /**
+     * Looks up a previously verified certificate chain.
+     *
+     * @param fingerprint The fingerprint of the chain
+     * @param trustStore  The trust store of the caller
+     * @return The server certificate at the head of the chain, or null if the chain has not been verified,
+     * has expired or was verified by a CA certificate that is no longer trusted
+     */
+    synchronized X509Certificate get(String fingerprint, TrustStore trustStore) {
+        Entry entry = entries.get(fingerprint);
+        if (entry == null) return null;
+
+        if (System.currentTimeMillis() >= entry.notAfter || !trustStore.isTrusted(entry.caCert)) {
+            entries.remove(fingerprint);
+            return null;
+        }
+
+        return entry.serverCert;
+    }
+
+    /**
+     * Records a certificate chain as verified.
+     *
+     * @param fingerprint The fingerprint of the chain
+     * @param chain       The decoded chain, starting with the server certificate
+     * @param caCert      The CA certificate which verified the last certificate in the chain
+     */
+    synchronized void put(String fingerprint, X509Certificate[] chain, X509Certificate caCert) {
+        long notAfter = caCert.getNotAfter().getTime();
+        for (X509Certificate cert : chain) notAfter = Math.min(notAfter, cert.getNotAfter().getTime());
+
+        entries.put(fingerprint, new Entry(chain[0], caCert, notAfter));
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    private static class Entry {
+        private final X509Certificate serverCert;
+        private final X509Certificate caCert;
+        private final long notAfter;
+
+        private Entry(X509Certificate serverCert, X509Certificate caCert, long notAfter) {
+            this.serverCert = serverCert;
+            this.caCert = caCert;
+            this.notAfter = notAfter;
+        }
+    }
+}
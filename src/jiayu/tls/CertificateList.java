@@ -31,16 +31,18 @@ public class CertificateList implements Vector<ASN1Cert> {
     }
 
 
-    static CertificateList fromBytes(byte[] bytes) {
-        ByteBuffer buf = ByteBuffer.wrap(bytes);
-
+    /**
+     * Reads the certificates remaining in a buffer, copying each certificate out of it exactly once.
+     *
+     * @throws FatalAlertException If a certificate length runs past the end of the buffer
+     */
+    static CertificateList read(ByteBuffer buf) throws FatalAlertException {
         ArrayList<ASN1Cert> certificateList = new ArrayList<>();
 
-        byte[] length = new byte[3];
-
         while (buf.hasRemaining()) {
-            buf.get(length);
-            int nextCertLength = UInt.btoi(length);
+            if (buf.remaining() < LENGTH_BYTES) throw new FatalAlertException(AlertDescription.DECODE_ERROR);
+            int nextCertLength = (buf.get() & 0xFF) << 16 | (buf.get() & 0xFF) << 8 | buf.get() & 0xFF;
+            if (buf.remaining() < nextCertLength) throw new FatalAlertException(AlertDescription.DECODE_ERROR);
 
             byte[] nextCertBytes = new byte[nextCertLength];
             buf.get(nextCertBytes);
@@ -74,15 +76,19 @@ public class CertificateList implements Vector<ASN1Cert> {
     @Override
     public byte[] getContent() {
         ByteBuffer buf = ByteBuffer.allocate(certificatesLength);
-        certificates.forEach(asn1Cert -> buf.put(asn1Cert.toBytes()));
+        certificates.forEach(asn1Cert -> asn1Cert.writeTo(buf));
         return buf.array();
     }
 
     @Override
     public byte[] toBytes() {
-        return ByteBuffer.allocate(getEntireLength())
-                .put(length)
-                .put(getContent())
-                .array();
+        ByteBuffer buf = ByteBuffer.allocate(getEntireLength());
+        writeTo(buf);
+        return buf.array();
+    }
+
+    void writeTo(ByteBuffer buf) {
+        buf.put(length);
+        certificates.forEach(asn1Cert -> asn1Cert.writeTo(buf));
     }
 }
@@ -4,6 +4,9 @@ import java.util.Arrays;
 import java.util.List;
 
 import static jiayu.tls.BulkCipherAlgorithm.AES_128_CBC;
+import static jiayu.tls.BulkCipherAlgorithm.AES_128_GCM;
+import static jiayu.tls.BulkCipherAlgorithm.CHACHA20_POLY1305;
+import static jiayu.tls.KeyExchangeAlgorithm.ECDHE_RSA;
 import static jiayu.tls.KeyExchangeAlgorithm.RSA;
 import static jiayu.tls.MACAlgorithm.HMAC_SHA256;
 import static jiayu.tls.PRFAlgorithm.TLS_PRF_SHA256;
@@ -12,7 +15,10 @@ import static jiayu.tls.PRFAlgorithm.TLS_PRF_SHA256;
 
 public enum CipherSuite {
     TLS_NULL_WITH_NULL_NULL(0x0000, null, null, null, null),
-    TLS_RSA_WITH_AES_128_CBC_SHA256(0x003C, TLS_PRF_SHA256, RSA, AES_128_CBC, HMAC_SHA256);
+    TLS_RSA_WITH_AES_128_CBC_SHA256(0x003C, TLS_PRF_SHA256, RSA, AES_128_CBC, HMAC_SHA256),
+    // AEAD cipher suites (RFC 5289, RFC 7905) have no separate MAC
+    TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256(0xC02F, TLS_PRF_SHA256, ECDHE_RSA, AES_128_GCM, MACAlgorithm.NULL),
+    TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256(0xCCA8, TLS_PRF_SHA256, ECDHE_RSA, CHACHA20_POLY1305, MACAlgorithm.NULL);
 
     public static final int BYTES = 2;
 
@@ -35,13 +41,26 @@ public enum CipherSuite {
         this.macAlgorithm = macAlgorithm;
     }
 
-    public static CipherSuite fromValue(short value) {
+    // two level lookup table indexed by the high and low bytes of the cipher suite value
+    private static final CipherSuite[][] lookupTable = new CipherSuite[256][];
+
+    static {
         for (CipherSuite cipherSuite : values()) {
-            if (cipherSuite.value == value) {
-                return cipherSuite;
-            }
+            int high = (cipherSuite.value >>> 8) & 0xFF;
+            if (lookupTable[high] == null) lookupTable[high] = new CipherSuite[256];
+            lookupTable[high][cipherSuite.value & 0xFF] = cipherSuite;
         }
-        return null;
+    }
+
+    /**
+     * Looks up a cipher suite by its 16-bit value.
+     *
+     * @param value The cipher suite value
+     * @return The cipher suite, or null if it is not known to this implementation
+     */
+    public static CipherSuite fromValue(short value) {
+        CipherSuite[] row = lookupTable[(value >>> 8) & 0xFF];
+        return row == null ? null : row[value & 0xFF];
     }
 
     public static List<CipherSuite> fromValues(short[] values) {
@@ -0,0 +1,159 @@
+package jiayu.tls;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import java.lang.management.ManagementFactory;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the cipher suite for a connection from those offered in a ClientHello, using the server's
+ * order of preference rather than the client's.
+ * <p>
+ * The default preference order ranks AEAD suites above CBC suites, and ranks AES suites below other suites
+ * when the JVM does not use hardware AES instructions, so each connection ends up on the fastest suite
+ * the hardware supports. Suites whose ciphers are not provided by the JRE are left out.
+ * <p>
+ * The server's AES support says nothing about the client's, so a client which puts a ChaCha20-Poly1305 suite
+ * first, usually because it has no AES instructions of its own, is given its own first choice.
+ */
+public class CipherSuiteNegotiator {
+    private static final Logger logger = Logger.getLogger("jiayu.tls.CipherSuiteNegotiator");
+
+    /**
+     * System property which overrides hardware AES detection when set to true or false.
+     */
+    public static final String AES_ACCELERATION_PROPERTY = "jiayu.tls.aesAcceleration";
+
+    private static volatile CipherSuiteNegotiator defaultNegotiator;
+
+    private final CipherSuite[] preferences;
+
+    /**
+     * Creates a negotiator with an explicit order of preference.
+     *
+     * @param preferences The cipher suites this server supports, most preferred first
+     */
+    public CipherSuiteNegotiator(CipherSuite... preferences) {
+        if (preferences.length == 0) throw new IllegalArgumentException("no cipher suites");
+        if (Arrays.asList(preferences).contains(CipherSuite.TLS_NULL_WITH_NULL_NULL))
+            throw new IllegalArgumentException("cannot negotiate TLS_NULL_WITH_NULL_NULL");
+
+        this.preferences = preferences.clone();
+    }
+
+    /**
+     * Returns a negotiator which prefers the fastest available cipher suites for this machine.
+     */
+    public static CipherSuiteNegotiator getDefault() {
+        if (defaultNegotiator == null) {
+            synchronized (CipherSuiteNegotiator.class) {
+                if (defaultNegotiator == null) {
+                    defaultNegotiator = new CipherSuiteNegotiator(rankForHardware(hasAESAcceleration()));
+                    logger.fine("Cipher suite preferences: " + Arrays.toString(defaultNegotiator.preferences));
+                }
+            }
+        }
+        return defaultNegotiator;
+    }
+
+    /**
+     * Orders every available cipher suite for a machine with or without hardware AES support.
+     *
+     * @param aesAcceleration Whether AES runs on dedicated instructions
+     * @return The available cipher suites, most preferred first
+     */
+    static CipherSuite[] rankForHardware(boolean aesAcceleration) {
+        List<CipherSuite> available = new ArrayList<>();
+        for (CipherSuite cipherSuite : CipherSuite.values()) {
+            if (cipherSuite != CipherSuite.TLS_NULL_WITH_NULL_NULL && isAvailable(cipherSuite.bulkCipherAlgorithm))
+                available.add(cipherSuite);
+        }
+
+        // the sort is stable, so suites of equal rank stay in declaration order
+        available.sort(Comparator.comparingInt(cipherSuite -> rank(cipherSuite, aesAcceleration)));
+        return available.toArray(new CipherSuite[available.size()]);
+    }
+
+    private static int rank(CipherSuite cipherSuite, boolean aesAcceleration) {
+        BulkCipherAlgorithm algorithm = cipherSuite.bulkCipherAlgorithm;
+        boolean slowAES = !aesAcceleration && "AES".equals(algorithm.keySpec);
+
+        return (algorithm.type == CipherType.AEAD ? 0 : 2) + (slowAES ? 1 : 0);
+    }
+
+    private static boolean isAvailable(BulkCipherAlgorithm algorithm) {
+        try {
+            Cipher.getInstance(algorithm.transformation);
+            return true;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether the JVM uses hardware instructions for AES, which is the case when the CPU supports them.
+     */
+    static boolean hasAESAcceleration() {
+        String override = System.getProperty(AES_ACCELERATION_PROPERTY);
+        if (override != null) return Boolean.parseBoolean(override);
+
+        try {
+            HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return hotSpot != null && Boolean.parseBoolean(hotSpot.getVMOption("UseAESIntrinsics").getValue());
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            // not a HotSpot JVM, or a platform without AES intrinsics
+            return false;
+        }
+    }
+
+    /**
+     * Returns the cipher suites supported by this negotiator, most preferred first.
+     */
+    public CipherSuite[] getPreferences() {
+        return preferences.clone();
+    }
+
+    /**
+     * Chooses the most preferred cipher suite which is also offered by the client.
+     *
+     * @param clientHello The ClientHello received from the client
+     * @return The selected cipher suite
+     * @throws FatalAlertException If the client did not offer any supported cipher suite
+     */
+    public CipherSuite negotiate(ClientHello clientHello) throws FatalAlertException {
+        EnumSet<CipherSuite> offered = EnumSet.noneOf(CipherSuite.class);
+        offered.addAll(Arrays.asList(clientHello.getCipherSuites()));
+
+        // the client's most preferred suite among those this server supports
+        CipherSuite clientChoice = null;
+        for (CipherSuite cipherSuite : clientHello.getCipherSuites()) {
+            if (supports(cipherSuite)) {
+                clientChoice = cipherSuite;
+                break;
+            }
+        }
+        if (clientChoice != null && clientChoice.bulkCipherAlgorithm == BulkCipherAlgorithm.CHACHA20_POLY1305)
+            return clientChoice;
+
+        for (CipherSuite cipherSuite : preferences) {
+            if (offered.contains(cipherSuite)) return cipherSuite;
+        }
+
+        throw new FatalAlertException(AlertDescription.HANDSHAKE_FAILURE);
+    }
+
+    private boolean supports(CipherSuite cipherSuite) {
+        for (CipherSuite preference : preferences) {
+            if (preference == cipherSuite) return true;
+        }
+        return false;
+    }
+}
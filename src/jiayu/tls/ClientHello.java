@@ -3,27 +3,31 @@ package jiayu.tls;
 import javax.xml.bind.DatatypeConverter;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * An object that represents a TLS 1.2 ClientHello handshake record.
  * <p>
- * Standards based as far as possible, lacking in support for compression methods (defaults to no compression)
- * and extensions (not supported).
+ * Standards based as far as possible, lacking in support for compression methods (defaults to no compression).
+ * The only extension understood is server_name, but all extensions are preserved.
  */
 public class ClientHello extends HandshakeMessage {
     private static final short CLIENT_VERSION = 0x0303;
     private static final byte[] COMPRESSION_METHODS = new byte[]{(byte) 0x00};
 
     private final int length;
-    private final byte[] header;
 
     private final short clientVersion;
     private final Random random;
     private final UIntVector sessionId;
     private final short cipherSuitesLength;
+    private final short[] cipherSuiteValues;
     private final CipherSuite[] cipherSuites;
     private final byte compressionMethodsLength;
     private final byte[] compressionMethods;
+    private final List<Extension> extensions;
+    private final int extensionsLength;
 
     /**
      * Create a new ClientHello message without specifying a previous session id.
@@ -45,32 +49,56 @@ public class ClientHello extends HandshakeMessage {
                 CLIENT_VERSION,
                 new Random(),
                 new UIntVector(sessionId),
-                cipherSuites,
-                COMPRESSION_METHODS
+                toValues(cipherSuites),
+                COMPRESSION_METHODS,
+                Collections.emptyList()
         );
     }
 
-    private ClientHello(short clientVersion, Random random, UIntVector sessionId, CipherSuite[] cipherSuites, byte[] compressionMethods) {
+    /**
+     * Create a new ClientHello message with a server_name extension.
+     *
+     * @param serverName   The DNS hostname of the server being connected to
+     * @param cipherSuites A list of cipher suites supported by this client
+     */
+    public ClientHello(String serverName, CipherSuite... cipherSuites) {
+        this(
+                CLIENT_VERSION,
+                new Random(),
+                new UIntVector(0),
+                toValues(cipherSuites),
+                COMPRESSION_METHODS,
+                Collections.singletonList(Extension.serverName(serverName))
+        );
+    }
+
+    private ClientHello(short clientVersion, Random random, UIntVector sessionId, short[] cipherSuiteValues, byte[] compressionMethods, List<Extension> extensions) {
         super(HandshakeType.CLIENT_HELLO);
 
         this.clientVersion = clientVersion;
         this.random = random;
         this.sessionId = sessionId;
-        this.cipherSuitesLength = (short) (cipherSuites.length * 2);
-        this.cipherSuites = cipherSuites;
+        this.cipherSuitesLength = (short) (cipherSuiteValues.length * 2);
+        this.cipherSuiteValues = cipherSuiteValues;
+        this.cipherSuites = fromValues(cipherSuiteValues);
         this.compressionMethodsLength = (byte) compressionMethods.length;
         this.compressionMethods = compressionMethods;
+        this.extensions = extensions;
+
+        int extensionsLength = 0;
+        for (Extension extension : extensions) extensionsLength += extension.getEntireLength();
+        this.extensionsLength = extensionsLength;
+
+        length = 2                                                   // client version (2 content)
+                + 32                                                 // random (32 content)
+                + 1                                                  // sessionid.length (1 byte)
+                + sessionId.length                                   // sessionid (sessionid.length)
+                + 2                                                  // ciphersuiteslength (2 content)
+                + cipherSuitesLength                                 // ciphersuites (ciphersuiteslength)
+                + 1                                                  // compressionmethodslength (1 byte)
+                + compressionMethods.length                          // compressionmethods (compressionmethodslength)
+                + (extensions.isEmpty() ? 0 : 2 + extensionsLength); // extensions (optional)
 
-        length = 2                    // client version (2 content)
-                + 32                  // random (32 content)
-                + 1                   // sessionid.length (1 byte)
-                + sessionId.length    // sessionid (sessionid.length)
-                + 2                   // ciphersuiteslength (2 content)
-                + cipherSuitesLength  // ciphersuites (ciphersuiteslength)
-                + 1                   // compressionmethodslength (1 byte)
-                + 1;                  // compressionmethods ( 1 byte)
-
-        header = createHeader(length);
     }
 
     public short getClientVersion() {
@@ -85,26 +113,67 @@ public class ClientHello extends HandshakeMessage {
         return sessionId.getValue();
     }
 
+    /**
+     * Returns the offered cipher suites which are known to this implementation, in the client's order of preference.
+     */
     public CipherSuite[] getCipherSuites() {
         return cipherSuites;
     }
 
+    private static short[] toValues(CipherSuite[] cipherSuites) {
+        short[] values = new short[cipherSuites.length];
+        for (int i = 0; i < cipherSuites.length; i++) values[i] = cipherSuites[i].value;
+        return values;
+    }
+
+    private static CipherSuite[] fromValues(short[] values) {
+        // unknown cipher suites are still sent and hashed, but cannot be selected
+        CipherSuite[] cipherSuites = new CipherSuite[values.length];
+        int known = 0;
+        for (short value : values) {
+            CipherSuite cipherSuite = CipherSuite.fromValue(value);
+            if (cipherSuite != null) cipherSuites[known++] = cipherSuite;
+        }
+        return known == cipherSuites.length ? cipherSuites : Arrays.copyOf(cipherSuites, known);
+    }
+
     public byte[] getCompressionMethods() {
         return compressionMethods;
     }
 
-    private byte[] toBytes() {
-        ByteBuffer content = ByteBuffer.allocate(HEADER_LENGTH + length);
-        content.put(header)                           // header
-                .putShort(clientVersion)              // client version
-                .put(random.toBytes())                // random
-                .put(sessionId.length)                // session id length
+    public List<Extension> getExtensions() {
+        return extensions;
+    }
+
+    /**
+     * Returns the host name requested through the server_name extension.
+     *
+     * @return The requested host name, or null if the client did not send one
+     * @throws FatalAlertException If the server_name extension is malformed
+     */
+    public String getServerName() throws FatalAlertException {
+        for (Extension extension : extensions)
+            if (extension.getType() == Extension.SERVER_NAME) return extension.getServerName();
+        return null;
+    }
+
+    @Override
+    byte[] encode() {
+        ByteBuffer content = writeHeader(ByteBuffer.allocate(HEADER_LENGTH + length), length)  // header
+                .putShort(clientVersion);             // client version
+        random.writeTo(content);                      // random
+        content.put(sessionId.length)                 // session id length
                 .put(sessionId.bytes)                 // session id
                 .putShort(cipherSuitesLength);        // cipher suites length
-        for (CipherSuite cipherSuite : cipherSuites)  // cipher suites
-            content.putShort(cipherSuite.value);
+        for (short cipherSuite : cipherSuiteValues)   // cipher suites
+            content.putShort(cipherSuite);
         content.put(compressionMethodsLength)         // compression methods length
                 .put(compressionMethods);             // compression methods
+        if (!extensions.isEmpty()) {
+            content.putShort((short) extensionsLength);  // extensions length
+            for (Extension extension : extensions)       // extensions
+                extension.writeTo(content);
+        }
         return content.array();
     }
 
@@ -119,7 +188,7 @@ public class ClientHello extends HandshakeMessage {
         if (handshake.getType() != HandshakeType.CLIENT_HELLO)
             throw new FatalAlertException(AlertDescription.UNEXPECTED_MESSAGE);
 
-        ByteBuffer content = ByteBuffer.wrap(handshake.getContent());
+        ByteBuffer content = handshake.getBody();
 
         short clientVersion = content.getShort();                           // get 2 content
         Random random = Random.fromBytes(content);                          // get 32 content
@@ -129,22 +198,18 @@ public class ClientHello extends HandshakeMessage {
         UIntVector sessionId = new UIntVector(sessionIdBytes);
 
         short cipherSuitesLength = content.getShort();                      // get 2 content
-        CipherSuite[] cipherSuites =
-                new CipherSuite[cipherSuitesLength / Short.BYTES];
+        short[] cipherSuites = new short[cipherSuitesLength / Short.BYTES];
 
-        for (int i = 0; i < cipherSuitesLength / Short.BYTES; i++)          // get ciphersuitelength content
-            cipherSuites[i] = CipherSuite.fromValue(content.getShort());
+        for (int i = 0; i < cipherSuites.length; i++)                       // get ciphersuitelength content
+            cipherSuites[i] = content.getShort();
 
         byte compressionMethodsLength = content.get();                      // get 1 byte
         byte[] compressionMethods = new byte[compressionMethodsLength];
-        content.get(compressionMethods);                                    // get 1 byte
+        content.get(compressionMethods);                                    // get compressionmethodslength content
 
-        return new ClientHello(clientVersion, random, sessionId, cipherSuites, compressionMethods);
-    }
+        List<Extension> extensions = Extension.readExtensions(content);     // get remaining content
 
-    @Override
-    public byte[] getContent() {
-        return toBytes();
+        return new ClientHello(clientVersion, random, sessionId, cipherSuites, compressionMethods, extensions);
     }
 
     @Override
@@ -153,6 +218,7 @@ public class ClientHello extends HandshakeMessage {
                 String.format("%n    random: %s", DatatypeConverter.printBase64Binary(random.toBytes())) +
                 String.format("%n    session_id: %d", sessionId.getValue()) +
                 String.format("%n    cipher_suites: %s", Arrays.toString(cipherSuites)) +
-                String.format("%n    compression_methods: %s", Arrays.toString(compressionMethods));
+                String.format("%n    compression_methods: %s", Arrays.toString(compressionMethods)) +
+                String.format("%n    extensions: %d", extensions.size());
     }
 }
@@ -1,10 +1,10 @@
 package jiayu.tls;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class ClientKeyExchange extends HandshakeMessage {
     private int length;
-    private byte[] header;
 
     private byte[] encryptedPremasterSecret;
 
@@ -18,16 +18,37 @@ public class ClientKeyExchange extends HandshakeMessage {
         this.encryptedPremasterSecret = encryptedPremasterSecret;
 
         length = encryptedPremasterSecret.length;
-        header = createHeader(length);
+    }
+
+    /**
+     * Creates a ClientKeyExchange carrying the client's ephemeral ECDH public point.
+     */
+    static ClientKeyExchange fromECDHPublicPoint(byte[] publicPoint) {
+        return new ClientKeyExchange(ByteBuffer.allocate(1 + publicPoint.length)
+                .put((byte) publicPoint.length)
+                .put(publicPoint)
+                .array());
     }
 
     public byte[] getEncryptedPremasterSecret() {
         return encryptedPremasterSecret;
     }
 
-    private byte[] toBytes() {
-        return ByteBuffer.allocate(HEADER_LENGTH + length)
-                .put(header)
+    /**
+     * Returns the client's ephemeral ECDH public point, for ECDHE key exchange.
+     *
+     * @throws FatalAlertException If the message does not contain a single point
+     */
+    byte[] getECDHPublicPoint() throws FatalAlertException {
+        if (encryptedPremasterSecret.length < 1 || (encryptedPremasterSecret[0] & 0xFF) != encryptedPremasterSecret.length - 1)
+            throw new FatalAlertException(AlertDescription.DECODE_ERROR);
+
+        return Arrays.copyOfRange(encryptedPremasterSecret, 1, encryptedPremasterSecret.length);
+    }
+
+    @Override
+    byte[] encode() {
+        return writeHeader(ByteBuffer.allocate(HEADER_LENGTH + length), length)
                 .put(encryptedPremasterSecret)
                 .array();
     }
@@ -43,9 +64,4 @@ public class ClientKeyExchange extends HandshakeMessage {
 
         return new ClientKeyExchange(handshake.getContent());
     }
-
-    @Override
-    public byte[] getContent() {
-        return toBytes();
-    }
 }
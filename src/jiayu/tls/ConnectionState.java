@@ -2,6 +2,7 @@ package jiayu.tls;
 
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ConnectionState {
     private SecurityParameters securityParameters;
@@ -10,12 +11,13 @@ public class ConnectionState {
     private BulkCipherAlgorithm encryptionAlgorithm;
     private MACAlgorithm macAlgorithm;
 
-    private byte[] clientWriteMACKey;
-    private byte[] serverWriteMACKey;
-    private byte[] clientWriteKey;
-    private byte[] serverWriteKey;
+    private KeyMaterial keyMaterial;
+    // created on first use, so that a state only holds copies of the keys for the direction it protects
+    private volatile RecordKeys clientWriteKeys;
+    private volatile RecordKeys serverWriteKeys;
 
-    private long sequenceNumber;
+    // read by monitoring threads while the owning read or write path advances it
+    private final AtomicLong sequenceNumber = new AtomicLong();
 
     public ConnectionState() {
         compressionAlgorithm = null;
@@ -23,29 +25,79 @@ public class ConnectionState {
         macAlgorithm = null;
     }
 
+    /**
+     * Initialises this state with its own key material. Use {@link #init(SecurityParameters, KeyMaterial)} to
+     * share the key block between the read and write states of a connection.
+     */
     public void init(SecurityParameters securityParameters) throws NoSuchAlgorithmException, InvalidKeyException {
+        init(securityParameters, securityParameters.getCipherSuite() == CipherSuite.TLS_NULL_WITH_NULL_NULL
+                ? null
+                : KeyMaterial.derive(securityParameters));
+    }
+
+    /**
+     * Initialises this state with key material which has already been derived from the security parameters.
+     *
+     * @param securityParameters The security parameters
+     * @param keyMaterial        The key block, which may be shared with the other state of the connection
+     */
+    void init(SecurityParameters securityParameters, KeyMaterial keyMaterial) {
         this.securityParameters = securityParameters;
         if (securityParameters.getCipherSuite() == CipherSuite.TLS_NULL_WITH_NULL_NULL) return;
 
         this.compressionAlgorithm = securityParameters.getCompressionMethod();
         this.encryptionAlgorithm = securityParameters.getBulkCipherAlgorithm();
         this.macAlgorithm = securityParameters.getMacAlgorithm();
+        this.keyMaterial = keyMaterial;
+        destroyRecordKeys();
+
+        sequenceNumber.set(0);
+    }
+
+    /**
+     * Wipes the key material of this state, which also wipes it for the other state sharing it, and the record
+     * keys which this state copied from it.
+     */
+    void destroyKeys() {
+        if (keyMaterial != null) keyMaterial.destroy();
+        destroyRecordKeys();
+    }
 
-        PRFAlgorithm prfAlgorithm = securityParameters.getPrfAlgorithm();
-        byte[] masterSecret = securityParameters.getMasterSecret();
-        byte[] serverRandom = securityParameters.getServerRandom();
-        byte[] clientRandom = securityParameters.getClientRandom();
-        int macKeyLength = securityParameters.getMacKeyLength();
-        int encKeyLength = securityParameters.getEncKeyLength();
+    /**
+     * Returns the keys which protect records sent by the client.
+     */
+    RecordKeys getClientWriteKeys() {
+        RecordKeys keys = clientWriteKeys;
+        if (keys != null) return keys;
+
+        synchronized (this) {
+            if (clientWriteKeys == null)
+                clientWriteKeys = new RecordKeys(encryptionAlgorithm, macAlgorithm,
+                        getClientWriteKey(), getClientWriteMACKey(), getClientWriteIV());
+            return clientWriteKeys;
+        }
+    }
 
-        PRF prf = PRF.getInstance(prfAlgorithm);
-        prf.init(masterSecret, "key expansion", serverRandom, clientRandom);
-        clientWriteMACKey = prf.getBytes(macKeyLength);
-        serverWriteMACKey = prf.getBytes(macKeyLength);
-        clientWriteKey = prf.getBytes(encKeyLength);
-        serverWriteKey = prf.getBytes(encKeyLength);
+    /**
+     * Returns the keys which protect records sent by the server.
+     */
+    RecordKeys getServerWriteKeys() {
+        RecordKeys keys = serverWriteKeys;
+        if (keys != null) return keys;
+
+        synchronized (this) {
+            if (serverWriteKeys == null)
+                serverWriteKeys = new RecordKeys(encryptionAlgorithm, macAlgorithm,
+                        getServerWriteKey(), getServerWriteMACKey(), getServerWriteIV());
+            return serverWriteKeys;
+        }
+    }
 
-        sequenceNumber = 0;
+    private synchronized void destroyRecordKeys() {
+        if (clientWriteKeys != null) clientWriteKeys.destroy();
+        if (serverWriteKeys != null) serverWriteKeys.destroy();
+        clientWriteKeys = null;
+        serverWriteKeys = null;
     }
 
     public CompressionMethod getCompressionAlgorithm() {
@@ -65,26 +117,34 @@ public class ConnectionState {
     }
 
     public byte[] getClientWriteMACKey() {
-        return clientWriteMACKey;
+        return keyMaterial == null ? null : keyMaterial.getClientWriteMACKey();
     }
 
     public byte[] getServerWriteMACKey() {
-        return serverWriteMACKey;
+        return keyMaterial == null ? null : keyMaterial.getServerWriteMACKey();
     }
 
     public byte[] getClientWriteKey() {
-        return clientWriteKey;
+        return keyMaterial == null ? null : keyMaterial.getClientWriteKey();
     }
 
     public byte[] getServerWriteKey() {
-        return serverWriteKey;
+        return keyMaterial == null ? null : keyMaterial.getServerWriteKey();
+    }
+
+    public byte[] getClientWriteIV() {
+        return keyMaterial == null ? null : keyMaterial.getClientWriteIV();
+    }
+
+    public byte[] getServerWriteIV() {
+        return keyMaterial == null ? null : keyMaterial.getServerWriteIV();
     }
 
     public long getSequenceNumber() {
-        return sequenceNumber;
+        return sequenceNumber.get();
     }
 
     public void incrementSequenceNumber() {
-        sequenceNumber++;
+        sequenceNumber.incrementAndGet();
     }
 }
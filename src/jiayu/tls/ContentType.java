@@ -1,21 +1,20 @@
 package jiayu.tls;
 
-import java.util.HashMap;
-
 public enum ContentType {
     CHANGE_CIPHER_SPEC(20), ALERT(21), HANDSHAKE(22), APPLICATION_DATA(23);
 
-    private static HashMap<Byte, ContentType> map = new HashMap<>();
+    // indexed by the unsigned value, so that looking up the type of every record does not box a Byte
+    private static final ContentType[] lookupTable = new ContentType[256];
 
     static {
         for (ContentType contentType : values()) {
-            map.put(contentType.value, contentType);
+            lookupTable[contentType.value & 0xFF] = contentType;
         }
     }
 
     public static ContentType valueOf(byte contentType) {
-        assert map.get(contentType) != null;
-        return map.get(contentType);
+        assert lookupTable[contentType & 0xFF] != null;
+        return lookupTable[contentType & 0xFF];
     }
 
     public final byte value;
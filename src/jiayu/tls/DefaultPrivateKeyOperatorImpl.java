@@ -0,0 +1,129 @@
+package jiayu.tls;
+
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Performs private key operations on a fixed pool of daemon threads with a bounded queue.
+ * <p>
+ * When the queue is full, further operations fail immediately with a {@link RejectedExecutionException} instead of
+ * blocking the caller. Each pool thread keeps its own initialised ciphers through {@link RSAPrivateKeyService}.
+ * <p>
+ * Premaster secret decryptions wait in a queue of their own, and whichever thread runs first takes every decryption
+ * waiting, so that a burst of handshakes is decrypted in batches, one per key.
+ */
+class DefaultPrivateKeyOperatorImpl implements PrivateKeyOperator {
+    private static final AtomicInteger poolNumber = new AtomicInteger();
+
+    static final PrivateKeyOperator SHARED =
+            new DefaultPrivateKeyOperatorImpl(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+
+    private final RSAPrivateKeyService keyService = RSAPrivateKeyService.getDefault();
+    private final ThreadPoolExecutor executor;
+    private final Queue<PendingDecrypt> pendingDecrypts = new ConcurrentLinkedQueue<>();
+
+    DefaultPrivateKeyOperatorImpl(int threads, int queueCapacity) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be positive");
+        if (queueCapacity < 1) throw new IllegalArgumentException("queueCapacity must be positive");
+
+        String namePrefix = "tls-crypto-" + poolNumber.incrementAndGet() + "-";
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread thread = new Thread(r, namePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public CompletableFuture<byte[]> decryptPremasterSecret(PrivateKey key, byte[] encryptedPremasterSecret, short clientVersion) {
+        PendingDecrypt decrypt = new PendingDecrypt(key, encryptedPremasterSecret, clientVersion);
+        pendingDecrypts.add(decrypt);
+        try {
+            // one task per decryption, which finds nothing to do if an earlier task has already taken it
+            executor.execute(this::drainDecrypts);
+        } catch (RejectedExecutionException e) {
+            if (pendingDecrypts.remove(decrypt)) decrypt.future.completeExceptionally(e);
+        }
+
+        return decrypt.future;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> sign(PrivateKey key, String algorithm, byte[] data) {
+        return submit(() -> keyService.sign(key, algorithm, data));
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    private void drainDecrypts() {
+        Map<PrivateKey, List<PendingDecrypt>> batches = new IdentityHashMap<>();
+        PendingDecrypt decrypt;
+        while ((decrypt = pendingDecrypts.poll()) != null) {
+            batches.computeIfAbsent(decrypt.key, key -> new ArrayList<>()).add(decrypt);
+        }
+
+        for (Map.Entry<PrivateKey, List<PendingDecrypt>> batch : batches.entrySet()) {
+            List<PendingDecrypt> decrypts = batch.getValue();
+            byte[][] encrypted = new byte[decrypts.size()][];
+            short[] clientVersions = new short[decrypts.size()];
+            for (int i = 0; i < decrypts.size(); i++) {
+                encrypted[i] = decrypts.get(i).encryptedPremasterSecret;
+                clientVersions[i] = decrypts.get(i).clientVersion;
+            }
+
+            try {
+                byte[][] premasterSecrets = keyService.decryptPremasterSecrets(batch.getKey(), encrypted, clientVersions);
+                for (int i = 0; i < decrypts.size(); i++) decrypts.get(i).future.complete(premasterSecrets[i]);
+            } catch (Exception e) {
+                for (PendingDecrypt failed : decrypts) failed.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(operation.call());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    private static final class PendingDecrypt {
+        private final PrivateKey key;
+        private final byte[] encryptedPremasterSecret;
+        private final short clientVersion;
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        private PendingDecrypt(PrivateKey key, byte[] encryptedPremasterSecret, short clientVersion) {
+            this.key = key;
+            this.encryptedPremasterSecret = encryptedPremasterSecret;
+            this.clientVersion = clientVersion;
+        }
+    }
+}
@@ -3,33 +3,79 @@ package jiayu.tls;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import static jiayu.tls.ContentType.*;
 
 class DefaultRecordLayerImpl implements RecordLayer {
-    private final Socket socket;
+    private static final int RECORD_HEADER_LENGTH = Record.HEADER_LENGTH;
+    private static final int MAX_FRAGMENT_LENGTH = MAX_RECORD_LENGTH - RECORD_HEADER_LENGTH;
+
+    private final Transport transport;
 
     private final DataOutputStream out;
     private final DataInputStream in;
 
-    private ConnectionState readState;
-    private ConnectionState writeState;
+    private final TLSMetrics metrics = TLSMetrics.getDefault();
+    private final RecordBufferPool buffers;
+
+    // owned by the reading thread and by whichever thread is draining the pending writes respectively
+    private final byte[] incomingHeader = new byte[RECORD_HEADER_LENGTH];
+    private final ByteBuffer outgoingHeader = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+    // owned in the same way, and only allocated to copy records through when the pool hands out direct buffers
+    private byte[] incomingCopy;
+    private byte[] outgoingCopy;
+
+    // the read state is only used by the reading thread, and the write state by whichever thread is draining the
+    // pending writes, but either may be replaced by the handshake
+    private volatile ConnectionState readState;
+    private volatile ConnectionState writeState;
+
+    private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writing = new AtomicBoolean();
 
     private ContentType leftoversType;
     private ByteQueue inputQueue;
 
-    DefaultRecordLayerImpl(Socket socket, ConnectionState readState, ConnectionState writeState) throws IOException {
-        this.socket = socket;
-        out = new DataOutputStream(socket.getOutputStream());
-        in = new DataInputStream(socket.getInputStream());
+    private final ExecutorService recordPool;
+    private final Queue<Future<TLSPlaintext>> readAhead = new ArrayDeque<>();
+
+    DefaultRecordLayerImpl(Transport transport, ConnectionState readState, ConnectionState writeState) throws IOException {
+        this(transport, readState, writeState, RecordProtectionPool.getDefault(), RecordBufferPool.getDefault());
+    }
+
+    /**
+     * @param recordPool The executor which protects and unprotects records in parallel, or null to process every
+     *                   record on the calling thread
+     * @param buffers    The pool which records are read into and encrypted into
+     */
+    DefaultRecordLayerImpl(Transport transport, ConnectionState readState, ConnectionState writeState,
+                           ExecutorService recordPool, RecordBufferPool buffers) throws IOException {
+        this.transport = transport;
+        this.recordPool = recordPool;
+        this.buffers = buffers;
+        out = new DataOutputStream(new BufferedOutputStream(transport.getOutputStream(), MAX_RECORD_LENGTH + 2048));
+        in = new DataInputStream(transport.getInputStream());
 
         updateWriteState(writeState);
         updateReadState(readState);
@@ -116,69 +162,332 @@ class DefaultRecordLayerImpl implements RecordLayer {
     }
 
     private TLSPlaintext getNextIncomingRecord() throws IOException, FatalAlertException {
-        ByteBuffer recordHeader = ByteBuffer.allocate(5);
+        try {
+            return readNextRecord();
+        } catch (IOException | FatalAlertException | RuntimeException e) {
+            // the records read ahead of one which failed must not be delivered, and their buffers are only
+            // returned to the pool once they have been decrypted
+            discardReadAhead();
+            throw e;
+        }
+    }
+
+    private TLSPlaintext readNextRecord() throws IOException, FatalAlertException {
+        // records which have been read ahead are returned first, in the order they arrived
+        if (!readAhead.isEmpty()) return awaitDecrypted(readAhead.poll());
+
+        IncomingRecord record = readRecord();
+        ConnectionState readState = this.readState;
+        if (readState.getEncryptionAlgorithm() == null) {
+            return new TLSPlaintext(record.contentType, record.protocolVersion, record.takeContent());
+        }
+
+        long seqNum = readState.getSequenceNumber();
+        readState.incrementSequenceNumber();
+
+        // during a bulk transfer, the application data records which have already arrived are read ahead and
+        // decrypted in parallel, each with the sequence number of its position in the stream
+        if (recordPool != null && record.contentType == APPLICATION_DATA) {
+            try {
+                while (readAhead.size() < RecordProtectionPool.MAX_RECORDS_IN_FLIGHT && in.available() >= RECORD_HEADER_LENGTH) {
+                    IncomingRecord nextRecord = readRecord();
+                    long nextSeqNum = readState.getSequenceNumber();
+                    readState.incrementSequenceNumber();
+                    try {
+                        readAhead.add(recordPool.submit(() -> decrypt(readState, nextSeqNum, nextRecord)));
+                    } catch (RuntimeException e) {
+                        nextRecord.release();
+                        throw e;
+                    }
+
+                    // anything other than application data may change what follows, so stop reading ahead
+                    if (nextRecord.contentType != APPLICATION_DATA) break;
+                }
+            } catch (IOException | FatalAlertException | RuntimeException e) {
+                record.release();
+                throw e;
+            }
+        }
+
+        return decrypt(readState, seqNum, record);
+    }
+
+    /**
+     * Reads the next record into a pooled buffer, which is released once its content has been taken.
+     */
+    private IncomingRecord readRecord() throws IOException, FatalAlertException {
         // TODO: 15/04/2016 handle eofexception
-        in.readFully(recordHeader.array());
+        in.readFully(incomingHeader);
 
-        ContentType incRecordType = ContentType.valueOf(recordHeader.get());  // get next record type
-        short incRecordProtocol = recordHeader.getShort();                    // get next record protocol
-        int incRecordLength = recordHeader.getShort();                        // get next record length
+        ContentType incRecordType = ContentType.valueOf(incomingHeader[0]);            // get next record type
+        short incRecordProtocol = (short) ((incomingHeader[1] << 8) | (incomingHeader[2] & 0xFF));  // get next record protocol
+        int incRecordLength = ((incomingHeader[3] & 0xFF) << 8) | (incomingHeader[4] & 0xFF);    // get next record length
+        if (incRecordLength > MAX_RECORD_LENGTH + 2048) throw new FatalAlertException(AlertDescription.RECORD_OVERFLOW);
 
-        byte[] incRecordContent = new byte[incRecordLength];
-        in.readFully(incRecordContent);
+        ByteBuffer fragment = buffers.acquire();
+        try {
+            readFully(fragment, incRecordLength);
+        } catch (IOException e) {
+            buffers.release(fragment);
+            throw e;
+        }
+        fragment.limit(incRecordLength);
 
-        if (readState.getEncryptionAlgorithm() == null) {
-            return new TLSPlaintext(incRecordType, incRecordProtocol, incRecordContent);
-        } else {
-            TLSCiphertext nextIncRecord = new TLSCiphertext(incRecordType, incRecordProtocol, incRecordContent);
+        if (incRecordType != null) metrics.recordIncoming(incRecordType, RECORD_HEADER_LENGTH + incRecordLength);
+
+        return new IncomingRecord(incRecordType, incRecordProtocol, fragment);
+    }
+
+    /**
+     * Reads a fragment into the start of a buffer, without moving its position.
+     */
+    private void readFully(ByteBuffer fragment, int length) throws IOException {
+        if (fragment.hasArray()) {
+            in.readFully(fragment.array(), fragment.arrayOffset(), length);
+            return;
+        }
+
+        if (incomingCopy == null) incomingCopy = new byte[RecordBufferPool.BUFFER_SIZE];
+        in.readFully(incomingCopy, 0, length);
+        fragment.duplicate().put(incomingCopy, 0, length);
+    }
+
+    private TLSPlaintext decrypt(ConnectionState readState, long seqNum, IncomingRecord record) throws FatalAlertException {
+        try {
+            long startTime = System.nanoTime();
+            if (readState.getSecurityParameters().getCipherType() == CipherType.AEAD) {
+                GenericAEADCipherEncryptionProvider.decrypt(readState, seqNum, record.contentType, record.protocolVersion, record.fragment);
+            } else {
+                GenericBlockCipherEncryptionProvider.decrypt(readState, seqNum, record.contentType, record.protocolVersion, record.fragment);
+            }
+            byte[] incContent = record.takeContent();
+            metrics.getDecryptTime().record(System.nanoTime() - startTime);
+            return new TLSPlaintext(record.contentType, record.protocolVersion, incContent);
+        } catch (FatalAlertException e) {
+            if (e.getAlertDescription() == AlertDescription.BAD_RECORD_MAC) metrics.recordMacFailure();
+            throw e;
+        } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException | InvalidAlgorithmParameterException | ShortBufferException e) {
+            e.printStackTrace();
+            throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
+        } finally {
+            record.release();
+        }
+    }
+
+    /**
+     * Waits for the records which have been read ahead to be decrypted, which releases their buffers, and drops
+     * them.
+     */
+    private void discardReadAhead() {
+        Future<TLSPlaintext> record;
+        while ((record = readAhead.poll()) != null) {
             try {
-                byte[] incContent = GenericBlockCipherEncryptionProvider.decrypt(readState, nextIncRecord);
-                return new TLSPlaintext(incRecordType, incRecordProtocol, incContent);
-            } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException | InvalidAlgorithmParameterException e) {
-                e.printStackTrace();
-                throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
+                record.get();
+            } catch (ExecutionException e) {
+                // the buffer was released when decryption failed
+            } catch (InterruptedException e) {
+                // the remaining buffers are left to the garbage collector
+                Thread.currentThread().interrupt();
+                readAhead.clear();
+                return;
             }
         }
     }
 
+    private static TLSPlaintext awaitDecrypted(Future<TLSPlaintext> record) throws IOException, FatalAlertException {
+        try {
+            return record.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FatalAlertException) throw (FatalAlertException) e.getCause();
+            throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
+        }
+    }
+
+    /**
+     * Writes a message, splitting it into as many records as necessary.
+     * <p>
+     * Concurrent writers add their messages to a lock-free queue. Whichever writer finds the write path free drains
+     * the queue, protecting and writing every queued message in order with a single flush at the end, while the
+     * other writers park until their message has been written. The records of one message are never interleaved
+     * with those of another.
+     */
     @Override
     public void putNextOutgoingMessage(ProtocolMessage message) throws IOException {
-        byte[] bytes;
-        String encrypted;
-
-        // if a message is too long we break its contents up into multiple records
-        if (message.getContent().length > MAX_RECORD_LENGTH - 5) {
-            ByteQueue buf = new ByteQueue();
-            buf.enqueue(message.getContent());
-            while (buf.size() > MAX_RECORD_LENGTH - 5) {
-                putNextOutgoingMessage(new GenericProtocolMessage(message.getContentType(), buf.dequeue(MAX_RECORD_LENGTH - 5)));
+        PendingWrite write = new PendingWrite(message);
+        pendingWrites.add(write);
+
+        while (!write.done) {
+            if (writing.compareAndSet(false, true)) {
+                drainPendingWrites();
+            } else {
+                LockSupport.park(this);
             }
-            putNextOutgoingMessage(new GenericProtocolMessage(message.getContentType(), buf.dequeue(buf.size())));
-            return;
         }
 
-        // no encryption
-        if (writeState.getEncryptionAlgorithm() == null) {
-            TLSPlaintext tlsPlaintext = new TLSPlaintext(message);
-            bytes = tlsPlaintext.getBytes();
-            encrypted = "unencrypted";
+        if (write.failure != null) throw new IOException(write.failure);
+    }
+
+    private void drainPendingWrites() {
+        do {
+            List<PendingWrite> written = new ArrayList<>();
+            Throwable failure = null;
+            try {
+                PendingWrite write;
+                while ((write = pendingWrites.poll()) != null) {
+                    written.add(write);
+                    writeRecords(write.message);
+                }
+                out.flush();
+            } catch (Throwable e) {
+                // any failure, not only an IOException, must reach the writers whose messages were polled, or
+                // they would park forever
+                failure = e;
+            } finally {
+                writing.set(false);
+
+                for (PendingWrite write : written) {
+                    write.failure = failure;
+                    write.done = true;
+                    LockSupport.unpark(write.writer);
+                }
+            }
+
+            // a writer may have queued a message after the last poll but before the write path was released
+        } while (!pendingWrites.isEmpty() && writing.compareAndSet(false, true));
+    }
+
+    private void writeRecords(ProtocolMessage message) throws IOException {
+        ContentType contentType = message.getContentType();
+        byte[] content = message.getContent();
+        ConnectionState writeState = this.writeState;
+
+        if (content.length <= MAX_FRAGMENT_LENGTH || recordPool == null || writeState.getEncryptionAlgorithm() == null) {
+            // if a message is too long we break its contents up into multiple records
+            int offset = 0;
+            do {
+                int length = Math.min(content.length - offset, MAX_FRAGMENT_LENGTH);
+                writeRecord(writeState, contentType, content, offset, length);
+                offset += length;
+            } while (offset < content.length);
         } else {
-            // we need to encrypt the message before sending it
+            // the records of a large message are given their sequence numbers up front, encrypted in parallel and
+            // written in order
+            Queue<Future<ByteBuffer>> inFlight = new ArrayDeque<>();
             try {
-                GenericBlockCipher encryptedMessage = GenericBlockCipherEncryptionProvider.encrypt(writeState, message);
-                TLSCiphertext tlsCiphertext = new TLSCiphertext(encryptedMessage);
-                bytes = tlsCiphertext.getBytes();
-                encrypted = "encrypted";
-            } catch (InvalidKeyException | NoSuchAlgorithmException | BadPaddingException | InvalidAlgorithmParameterException | NoSuchPaddingException | IllegalBlockSizeException e) {
-                e.printStackTrace();
-                throw new IOException();
+                for (int offset = 0; offset < content.length; offset += MAX_FRAGMENT_LENGTH) {
+                    int fragmentOffset = offset;
+                    int length = Math.min(content.length - offset, MAX_FRAGMENT_LENGTH);
+                    long seqNum = writeState.getSequenceNumber();
+                    writeState.incrementSequenceNumber();
+                    inFlight.add(recordPool.submit(() -> encrypt(writeState, seqNum, contentType, content, fragmentOffset, length)));
+
+                    if (inFlight.size() == RecordProtectionPool.MAX_RECORDS_IN_FLIGHT) {
+                        writeRecord(contentType, awaitEncrypted(inFlight.poll()));
+                    }
+                }
+
+                while (!inFlight.isEmpty()) writeRecord(contentType, awaitEncrypted(inFlight.poll()));
+            } finally {
+                // only left non-empty if a record failed, after which the records behind it are never written
+                discardEncrypted(inFlight);
             }
         }
 
+        if (message instanceof AlertMessage) metrics.recordAlertSent(((AlertMessage) message).getDescription());
+    }
 
-//        System.out.println(String.format("Sending %d bytes of %s %s", bytes.length, encrypted, message.getContentType().name()));
+    private void writeRecord(ConnectionState writeState, ContentType contentType, byte[] content, int offset, int length) throws IOException {
+        // no encryption
+        if (writeState.getEncryptionAlgorithm() == null) {
+            outgoingHeader.clear();
+            outgoingHeader.put(contentType.value)
+                    .putShort(Record.PROTOCOL_VERSION)
+                    .putShort((short) length);
+            out.write(outgoingHeader.array());
+            out.write(content, offset, length);
+            metrics.recordOutgoing(contentType, RECORD_HEADER_LENGTH + length);
+            return;
+        }
 
-        out.write(bytes);
+        // we need to encrypt the message before sending it
+        long seqNum = writeState.getSequenceNumber();
+        writeState.incrementSequenceNumber();
+        writeRecord(contentType, encrypt(writeState, seqNum, contentType, content, offset, length));
+    }
+
+    /**
+     * Encrypts a fragment into a pooled buffer, which is released once the record has been written.
+     *
+     * @return The buffer, holding the complete record between its position and limit
+     */
+    private ByteBuffer encrypt(ConnectionState writeState, long seqNum, ContentType contentType, byte[] content, int offset, int length) throws IOException {
+        ByteBuffer record = buffers.acquire();
+        try {
+            long startTime = System.nanoTime();
+            if (writeState.getSecurityParameters().getCipherType() == CipherType.AEAD) {
+                GenericAEADCipherEncryptionProvider.encrypt(writeState, seqNum, contentType, content, offset, length, record);
+            } else {
+                GenericBlockCipherEncryptionProvider.encrypt(writeState, seqNum, contentType, content, offset, length, record);
+            }
+            metrics.getEncryptTime().record(System.nanoTime() - startTime);
+            record.flip();
+            return record;
+        } catch (InvalidKeyException | NoSuchAlgorithmException | BadPaddingException | InvalidAlgorithmParameterException | NoSuchPaddingException | IllegalBlockSizeException | ShortBufferException e) {
+            buffers.release(record);
+            e.printStackTrace();
+            throw new IOException();
+        } catch (RuntimeException e) {
+            buffers.release(record);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for records which will not be written to be encrypted, and returns their buffers to the pool.
+     */
+    private void discardEncrypted(Queue<Future<ByteBuffer>> inFlight) {
+        Future<ByteBuffer> record;
+        while ((record = inFlight.poll()) != null) {
+            try {
+                buffers.release(record.get());
+            } catch (ExecutionException e) {
+                // the buffer was released when encryption failed
+            } catch (InterruptedException e) {
+                // the remaining buffers are left to the garbage collector
+                Thread.currentThread().interrupt();
+                inFlight.clear();
+                return;
+            }
+        }
+    }
+
+    private static ByteBuffer awaitEncrypted(Future<ByteBuffer> record) throws IOException {
+        try {
+            return record.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private void writeRecord(ContentType contentType, ByteBuffer record) throws IOException {
+        try {
+            if (record.hasArray()) {
+                out.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+            } else {
+                if (outgoingCopy == null) outgoingCopy = new byte[RecordBufferPool.BUFFER_SIZE];
+                record.duplicate().get(outgoingCopy, 0, record.remaining());
+                out.write(outgoingCopy, 0, record.remaining());
+            }
+            metrics.recordOutgoing(contentType, record.remaining());
+        } finally {
+            buffers.release(record);
+        }
     }
 
     @Override
@@ -193,7 +502,7 @@ class DefaultRecordLayerImpl implements RecordLayer {
 
     @Override
     public ConnectionState getReadState() {
-        return writeState;
+        return readState;
     }
 
     @Override
@@ -203,12 +512,76 @@ class DefaultRecordLayerImpl implements RecordLayer {
 
     @Override
     public void close() throws IOException {
-        putNextOutgoingMessage(AlertMessage.fatal(AlertDescription.USER_CANCELLED));
-        out.close();
+        try {
+            putNextOutgoingMessage(AlertMessage.fatal(AlertDescription.USER_CANCELLED));
+            out.close();
+        } finally {
+            // the read and write states share the key block, but either may still be the initial null state
+            readState.destroyKeys();
+            writeState.destroyKeys();
+        }
+    }
+
+    @Override
+    public Transport getTransport() {
+        return transport;
     }
 
     @Override
     public Socket getSocket() {
-        return socket;
+        return transport.getSocket();
+    }
+
+    /**
+     * A record which has been read but not yet decrypted, whose fragment is held in a pooled buffer.
+     */
+    private final class IncomingRecord {
+        final ContentType contentType;
+        final short protocolVersion;
+        final ByteBuffer fragment;
+        // decryption moves the limit of the fragment back to the end of the plaintext
+        private final int length;
+        private boolean released;
+
+        IncomingRecord(ContentType contentType, short protocolVersion, ByteBuffer fragment) {
+            this.contentType = contentType;
+            this.protocolVersion = protocolVersion;
+            this.fragment = fragment;
+            this.length = fragment.limit();
+        }
+
+        /**
+         * Copies out the content between the position and limit of the fragment, and releases its buffer.
+         */
+        byte[] takeContent() {
+            byte[] content = new byte[fragment.remaining()];
+            fragment.get(content);
+            release();
+            return content;
+        }
+
+        void release() {
+            if (!released) {
+                released = true;
+                fragment.limit(length);
+                buffers.release(fragment);
+            }
+        }
+    }
+
+    /**
+     * A message waiting to be written, and the thread waiting for it.
+     */
+    private static final class PendingWrite {
+        final ProtocolMessage message;
+        final Thread writer = Thread.currentThread();
+
+        // failure is published by the volatile write to done
+        Throwable failure;
+        volatile boolean done;
+
+        PendingWrite(ProtocolMessage message) {
+            this.message = message;
+        }
     }
 }
@@ -0,0 +1,140 @@
+package jiayu.tls;
+
+import javax.security.auth.x500.X500Principal;
+import javax.xml.bind.DatatypeConverter;
+import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+class DefaultTrustStoreImpl implements TrustStore {
+    static final DefaultTrustStoreImpl DEFAULT = new DefaultTrustStoreImpl();
+
+    private static final Logger logger = Logger.getLogger("jiayu.tls.TrustStore");
+
+    private static final String SUBJECT_KEY_IDENTIFIER_OID = "2.5.29.14";
+    private static final String AUTHORITY_KEY_IDENTIFIER_OID = "2.5.29.35";
+
+    private static final byte OCTET_STRING = 0x04;
+    private static final byte SEQUENCE = 0x30;
+    private static final byte KEY_IDENTIFIER_TAG = (byte) 0x80;
+
+    private final Set<X509Certificate> anchors;
+    private final ConcurrentHashMap<X500Principal, List<X509Certificate>> bySubject;
+    private final ConcurrentHashMap<String, List<X509Certificate>> byKeyIdentifier;
+
+    DefaultTrustStoreImpl() {
+        anchors = ConcurrentHashMap.newKeySet();
+        bySubject = new ConcurrentHashMap<>();
+        byKeyIdentifier = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void addTrustAnchor(X509Certificate caCert) {
+        if (!anchors.add(caCert)) return;
+
+        bySubject.computeIfAbsent(caCert.getSubjectX500Principal(), k -> new CopyOnWriteArrayList<>()).add(caCert);
+
+        String keyId = subjectKeyIdentifier(caCert);
+        if (keyId != null) byKeyIdentifier.computeIfAbsent(keyId, k -> new CopyOnWriteArrayList<>()).add(caCert);
+
+        logger.info(String.format("Added CA cert for %s.", caCert.getSubjectX500Principal().getName()));
+    }
+
+    @Override
+    public boolean isTrusted(X509Certificate cert) {
+        return anchors.contains(cert);
+    }
+
+    @Override
+    public List<X509Certificate> getCandidateIssuers(X509Certificate cert) {
+        String keyId = authorityKeyIdentifier(cert);
+        if (keyId != null) {
+            List<X509Certificate> issuers = byKeyIdentifier.get(keyId);
+            if (issuers != null) return issuers;
+        }
+
+        List<X509Certificate> issuers = bySubject.get(cert.getIssuerX500Principal());
+        return issuers == null ? Collections.emptyList() : issuers;
+    }
+
+    @Override
+    public Collection<X509Certificate> getTrustAnchors() {
+        return Collections.unmodifiableSet(anchors);
+    }
+
+    @Override
+    public int size() {
+        return anchors.size();
+    }
+
+    /**
+     * Extracts the subject key identifier of a certificate.
+     * <p>
+     * The extension value is an OCTET STRING wrapping the DER encoded KeyIdentifier, which is itself an OCTET STRING.
+     *
+     * @param cert The certificate
+     * @return The hex-encoded key identifier, or null if the certificate does not have one
+     */
+    static String subjectKeyIdentifier(X509Certificate cert) {
+        byte[] extension = cert.getExtensionValue(SUBJECT_KEY_IDENTIFIER_OID);
+        if (extension == null) return null;
+
+        ByteBuffer buf = ByteBuffer.wrap(extension);
+        if (!enter(buf, OCTET_STRING) || !enter(buf, OCTET_STRING)) return null;
+
+        return DatatypeConverter.printHexBinary(remaining(buf));
+    }
+
+    /**
+     * Extracts the key identifier field of the authority key identifier of a certificate.
+     * <p>
+     * The extension value is an OCTET STRING wrapping a DER encoded AuthorityKeyIdentifier SEQUENCE, whose optional
+     * first field is an implicitly tagged [0] KeyIdentifier.
+     *
+     * @param cert The certificate
+     * @return The hex-encoded key identifier, or null if the certificate does not have one
+     */
+    static String authorityKeyIdentifier(X509Certificate cert) {
+        byte[] extension = cert.getExtensionValue(AUTHORITY_KEY_IDENTIFIER_OID);
+        if (extension == null) return null;
+
+        ByteBuffer buf = ByteBuffer.wrap(extension);
+        if (!enter(buf, OCTET_STRING) || !enter(buf, SEQUENCE) || !enter(buf, KEY_IDENTIFIER_TAG)) return null;
+
+        return DatatypeConverter.printHexBinary(remaining(buf));
+    }
+
+    /**
+     * Reads a DER tag and length, and limits the buffer to the contents of that element.
+     *
+     * @return false if the element does not have the expected tag or is malformed
+     */
+    private static boolean enter(ByteBuffer buf, byte tag) {
+        if (buf.remaining() < 2 || buf.get() != tag) return false;
+
+        int length = buf.get() & 0xFF;
+        if (length > 0x7F) {
+            int lengthBytes = length & 0x7F;
+            if (lengthBytes > 3 || buf.remaining() < lengthBytes) return false;
+
+            length = 0;
+            for (int i = 0; i < lengthBytes; i++) length = length << 8 | buf.get() & 0xFF;
+        }
+        if (length > buf.remaining()) return false;
+
+        buf.limit(buf.position() + length);
+        return true;
+    }
+
+    private static byte[] remaining(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+}
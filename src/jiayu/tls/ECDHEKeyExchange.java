@@ -0,0 +1,100 @@
+package jiayu.tls;
+
+import javax.crypto.KeyAgreement;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.*;
+import java.util.Arrays;
+
+/**
+ * An ephemeral elliptic curve Diffie-Hellman key pair on secp256r1, as used by the ECDHE_RSA key exchange
+ * described in RFC 4492.
+ * <p>
+ * Public keys are exchanged as uncompressed points, and the premaster secret is the x coordinate of the shared point.
+ */
+class ECDHEKeyExchange {
+    static final short SECP256R1 = 23;
+
+    private static final String CURVE_NAME = "secp256r1";
+    private static final byte UNCOMPRESSED = 0x04;
+    private static final int COORDINATE_LENGTH = 32;
+
+    private final KeyPair keyPair;
+    private final ECParameterSpec params;
+
+    ECDHEKeyExchange() throws FatalAlertException {
+        try {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+            kpg.initialize(new ECGenParameterSpec(CURVE_NAME));
+            keyPair = kpg.generateKeyPair();
+        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+            throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
+        }
+
+        params = ((ECPublicKey) keyPair.getPublic()).getParams();
+    }
+
+    /**
+     * Returns the uncompressed encoding of this key pair's public point.
+     */
+    byte[] getPublicPoint() {
+        ECPoint w = ((ECPublicKey) keyPair.getPublic()).getW();
+
+        return ByteBuffer.allocate(1 + 2 * COORDINATE_LENGTH)
+                .put(UNCOMPRESSED)
+                .put(toFixedLength(w.getAffineX()))
+                .put(toFixedLength(w.getAffineY()))
+                .array();
+    }
+
+    /**
+     * Computes the premaster secret shared with the peer.
+     *
+     * @param peerPoint The uncompressed encoding of the peer's public point
+     * @return The premaster secret
+     * @throws FatalAlertException If the peer's point is malformed or not on the curve
+     */
+    PremasterSecret generatePremasterSecret(byte[] peerPoint) throws FatalAlertException {
+        if (peerPoint.length != 1 + 2 * COORDINATE_LENGTH || peerPoint[0] != UNCOMPRESSED)
+            throw new FatalAlertException(AlertDescription.DECODE_ERROR);
+
+        BigInteger x = new BigInteger(1, Arrays.copyOfRange(peerPoint, 1, 1 + COORDINATE_LENGTH));
+        BigInteger y = new BigInteger(1, Arrays.copyOfRange(peerPoint, 1 + COORDINATE_LENGTH, peerPoint.length));
+        if (!isOnCurve(x, y)) throw new FatalAlertException(AlertDescription.ILLEGAL_PARAMETER);
+
+        try {
+            PublicKey peerKey = KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(new ECPoint(x, y), params));
+
+            KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+            keyAgreement.init(keyPair.getPrivate());
+            keyAgreement.doPhase(peerKey, true);
+
+            return PremasterSecret.fromSharedSecret(keyAgreement.generateSecret());
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException e) {
+            throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
+        }
+    }
+
+    // checks y^2 = x^3 + ax + b (mod p), so that an invalid point cannot be used to learn our private key
+    private boolean isOnCurve(BigInteger x, BigInteger y) {
+        BigInteger p = ((ECFieldFp) params.getCurve().getField()).getP();
+        if (x.compareTo(p) >= 0 || y.compareTo(p) >= 0) return false;
+
+        BigInteger lhs = y.multiply(y).mod(p);
+        BigInteger rhs = x.pow(3)
+                .add(params.getCurve().getA().multiply(x))
+                .add(params.getCurve().getB())
+                .mod(p);
+        return lhs.equals(rhs);
+    }
+
+    private static byte[] toFixedLength(BigInteger coordinate) {
+        byte[] bytes = coordinate.toByteArray();
+        byte[] fixed = new byte[COORDINATE_LENGTH];
+        int length = Math.min(bytes.length, COORDINATE_LENGTH);
+        System.arraycopy(bytes, bytes.length - length, fixed, COORDINATE_LENGTH - length, length);
+        return fixed;
+    }
+}
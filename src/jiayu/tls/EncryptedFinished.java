@@ -16,7 +16,7 @@ public class EncryptedFinished extends HandshakeMessage {
     }
 
     @Override
-    public byte[] getContent() {
+    byte[] encode() {
         return content;
     }
 }
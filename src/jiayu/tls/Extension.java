@@ -0,0 +1,116 @@
+package jiayu.tls;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hello extension, as described in RFC 5246 section 7.4.1.4.
+ * <p>
+ * Extensions which are not understood are kept as opaque data so that the hello message
+ * can be re-encoded exactly as it was received.
+ */
+public class Extension {
+    public static final short SERVER_NAME = 0x0000;
+
+    private static final byte HOST_NAME = 0x00;
+
+    private final short type;
+    private final byte[] data;
+
+    public Extension(short type, byte[] data) {
+        this.type = type;
+        this.data = data;
+    }
+
+    /**
+     * Creates a server_name extension as described in RFC 6066 section 3.
+     *
+     * @param hostName The DNS hostname of the server
+     * @return The new extension
+     */
+    public static Extension serverName(String hostName) {
+        byte[] name = hostName.getBytes(StandardCharsets.US_ASCII);
+
+        return new Extension(SERVER_NAME, ByteBuffer.allocate(2 + 1 + 2 + name.length)
+                .putShort((short) (1 + 2 + name.length))  // server name list length
+                .put(HOST_NAME)                            // name type
+                .putShort((short) name.length)             // host name length
+                .put(name)                                 // host name
+                .array());
+    }
+
+    public short getType() {
+        return type;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getEntireLength() {
+        return 2 + 2 + data.length;
+    }
+
+    /**
+     * Extracts the host name from a server_name extension.
+     *
+     * @return The first host_name in the server name list, or null if there is none
+     * @throws FatalAlertException If the server name list is malformed
+     */
+    public String getServerName() throws FatalAlertException {
+        if (type != SERVER_NAME) return null;
+
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            int listLength = buf.getShort() & 0xFFFF;
+            if (listLength != buf.remaining()) throw new FatalAlertException(AlertDescription.DECODE_ERROR);
+
+            while (buf.hasRemaining()) {
+                byte nameType = buf.get();
+                byte[] name = new byte[buf.getShort() & 0xFFFF];
+                buf.get(name);
+                if (nameType == HOST_NAME) return new String(name, StandardCharsets.US_ASCII);
+            }
+            return null;
+        } catch (BufferUnderflowException e) {
+            throw new FatalAlertException(AlertDescription.DECODE_ERROR);
+        }
+    }
+
+    void writeTo(ByteBuffer buf) {
+        buf.putShort(type)
+                .putShort((short) data.length)
+                .put(data);
+    }
+
+    /**
+     * Reads the extensions block at the end of a hello message.
+     *
+     * @param content A buffer positioned at the extensions length field
+     * @return The extensions, or an empty list if the message has no extensions block
+     * @throws FatalAlertException If the extensions block is malformed
+     */
+    static List<Extension> readExtensions(ByteBuffer content) throws FatalAlertException {
+        List<Extension> extensions = new ArrayList<>();
+        if (!content.hasRemaining()) return extensions;
+
+        try {
+            int extensionsLength = content.getShort() & 0xFFFF;
+            if (extensionsLength != content.remaining()) throw new FatalAlertException(AlertDescription.DECODE_ERROR);
+
+            while (content.hasRemaining()) {
+                short type = content.getShort();
+                byte[] data = new byte[content.getShort() & 0xFFFF];
+                content.get(data);
+                extensions.add(new Extension(type, data));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new FatalAlertException(AlertDescription.DECODE_ERROR);
+        }
+
+        return extensions;
+    }
+}
@@ -1,7 +1,5 @@
 package jiayu.tls;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
@@ -14,7 +12,6 @@ public class Finished extends HandshakeMessage {
     private static final int VERIFY_DATA_LENGTH = 12;
 
     private final int length;
-    private final byte[] header;
 
     private final byte[] verifyData;
 
@@ -24,21 +21,23 @@ public class Finished extends HandshakeMessage {
         this.verifyData = verifyData;
 
         length = verifyData.length;
-        header = createHeader(length);
     }
 
     // FIXME: 15/04/2016 should use security parameters
+    /**
+     * Creates the client Finished message.
+     *
+     * @param masterSecret      The master secret
+     * @param handshakeMessages Every handshake message sent or received before the client Finished, in order
+     * @return The client Finished message
+     * @throws FatalAlertException If the verify data could not be computed
+     */
     public static Finished createClientFinishedMessage(MasterSecret masterSecret,
-                                                       ClientHello clientHello,
-                                                       ServerHello serverHello,
-                                                       Certificate certificate,
-                                                       ServerHelloDone serverHelloDone,
-                                                       ClientKeyExchange clientKeyExchange) throws FatalAlertException {
+                                                       HandshakeMessage... handshakeMessages) throws FatalAlertException {
 
         String finishedLabel = CLIENT_FINISHED_LABEL;
 
-        byte[] hash = concatAndHash("SHA-256",
-                clientHello, serverHello, certificate, serverHelloDone, clientKeyExchange);
+        byte[] hash = concatAndHash("SHA-256", handshakeMessages);
 
         byte[] verifyData = PRF(masterSecret, finishedLabel, hash);
 
@@ -52,17 +51,20 @@ public class Finished extends HandshakeMessage {
     }
 
     // FIXME: 15/04/2016 should use security parameters
+    /**
+     * Creates the server Finished message.
+     *
+     * @param masterSecret      The master secret
+     * @param handshakeMessages Every handshake message sent or received before the server Finished,
+     *                          including the client Finished, in order
+     * @return The server Finished message
+     * @throws FatalAlertException If the verify data could not be computed
+     */
     public static Finished createServerFinishedMessage(MasterSecret masterSecret,
-                                                       ClientHello clientHello,
-                                                       ServerHello serverHello,
-                                                       Certificate certificate,
-                                                       ServerHelloDone serverHelloDone,
-                                                       ClientKeyExchange clientKeyExchange,
-                                                       Finished clientFinished) throws FatalAlertException {
+                                                       HandshakeMessage... handshakeMessages) throws FatalAlertException {
         String finishedLabel = SERVER_FINISHED_LABEL;
 
-        byte[] hash = concatAndHash("SHA-256",
-                clientHello, serverHello, certificate, serverHelloDone, clientKeyExchange, clientFinished);
+        byte[] hash = concatAndHash("SHA-256", handshakeMessages);
 
         byte[] verifyData = PRF(masterSecret, finishedLabel, hash);
 
@@ -85,18 +87,13 @@ public class Finished extends HandshakeMessage {
     }
 
     private static byte[] PRF(MasterSecret masterSecret, String finishedLabel, byte[] hash) throws FatalAlertException {
-        Mac hmac;
         try {
-            hmac = Mac.getInstance("HmacSHA256");
-            hmac.init(new SecretKeySpec(masterSecret.getBytes(), "HmacSHA256"));
+            PRF prf = PRF.getInstance(PRFAlgorithm.TLS_PRF_SHA256);
+            prf.init(masterSecret.getBytes(), finishedLabel, hash);
+            return prf.getBytes(VERIFY_DATA_LENGTH);
         } catch (NoSuchAlgorithmException | InvalidKeyException e) {
             throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
         }
-
-        hmac.update(finishedLabel.getBytes());
-        hmac.update(hash);
-
-        return Arrays.copyOf(hmac.doFinal(), VERIFY_DATA_LENGTH);
     }
 
     static Finished interpret(GenericHandshakeMessage handshake) throws FatalAlertException {
@@ -107,15 +104,10 @@ public class Finished extends HandshakeMessage {
         return new Finished(handshake.getContent());
     }
 
-    private byte[] toBytes() {
-        return ByteBuffer.allocate(HEADER_LENGTH + length)
-                .put(header)
+    @Override
+    byte[] encode() {
+        return writeHeader(ByteBuffer.allocate(HEADER_LENGTH + length), length)
                 .put(verifyData)
                 .array();
     }
-
-    @Override
-    public byte[] getContent() {
-        return toBytes();
-    }
 }
@@ -0,0 +1,43 @@
+package jiayu.tls;
+
+import java.nio.ByteBuffer;
+
+public class GenericAEADCipher implements ProtocolMessage {
+    private final ContentType contentType;
+    private final byte[] nonceExplicit;
+    private final byte[] ciphertext;
+
+    /*
+    TLS AEAD ciphers encrypt and authenticate in one step
+
+    the nonce is made of a fixed part derived with the keys (client/server_write_IV)
+    and a per-record part derived from the sequence number, which is sent explicitly for AES-GCM
+    and is implicit for ChaCha20-Poly1305
+
+    the additional data is seq_num + TLSCompressed.type + TLSCompressed.version + TLSCompressed.length
+     */
+
+    public GenericAEADCipher(ContentType contentType, byte[] nonceExplicit, byte[] ciphertext) {
+        this.contentType = contentType;
+        this.nonceExplicit = nonceExplicit;
+        this.ciphertext = ciphertext;
+    }
+
+    public byte[] getNonceExplicit() {
+        return nonceExplicit;
+    }
+
+    public byte[] getCiphertext() {
+        return ciphertext;
+    }
+
+    @Override
+    public ContentType getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public byte[] getContent() {
+        return ByteBuffer.allocate(nonceExplicit.length + ciphertext.length).put(nonceExplicit).put(ciphertext).array();
+    }
+}
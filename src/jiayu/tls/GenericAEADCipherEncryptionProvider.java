@@ -0,0 +1,171 @@
+package jiayu.tls;
+
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+class GenericAEADCipherEncryptionProvider {
+    static final int TAG_LENGTH = 16;
+
+    private GenericAEADCipherEncryptionProvider() {
+
+    }
+
+    static GenericAEADCipher encrypt(ConnectionState writeState, ProtocolMessage message) throws InvalidKeyException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, NoSuchPaddingException, ShortBufferException {
+        GenericAEADCipher ciphertext = encrypt(writeState, writeState.getSequenceNumber(), message);
+        writeState.incrementSequenceNumber();
+        return ciphertext;
+    }
+
+    /**
+     * Encrypts a message with a sequence number which has already been taken from the write state, so that
+     * records can be encrypted concurrently.
+     */
+    static GenericAEADCipher encrypt(ConnectionState writeState, long seqNum, ProtocolMessage message) throws InvalidKeyException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, NoSuchPaddingException, ShortBufferException {
+        byte[] content = message.getContent();
+        ByteBuffer record = ByteBuffer.allocate(RecordBufferPool.BUFFER_SIZE - RecordLayer.MAX_RECORD_LENGTH + content.length);
+        encrypt(writeState, seqNum, message.getContentType(), content, 0, content.length, record);
+
+        int recordIVLength = writeState.getEncryptionAlgorithm().recordIVLength;
+        byte[] nonceExplicit = Arrays.copyOfRange(record.array(), Record.HEADER_LENGTH, Record.HEADER_LENGTH + recordIVLength);
+        byte[] ciphertext = Arrays.copyOfRange(record.array(), Record.HEADER_LENGTH + recordIVLength, record.position());
+        return new GenericAEADCipher(message.getContentType(), nonceExplicit, ciphertext);
+    }
+
+    /**
+     * Encrypts a fragment and writes it as a complete record, header included, at the position of a buffer. The
+     * fragment is encrypted in place in the buffer.
+     *
+     * @param record A buffer with room for the record, whose position is left at the end of the record
+     */
+    static void encrypt(ConnectionState writeState, long seqNum, ContentType contentType, byte[] content, int offset, int length, ByteBuffer record) throws InvalidKeyException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, NoSuchPaddingException, ShortBufferException {
+        assert writeState.getSecurityParameters().getCipherType() == CipherType.AEAD;
+
+        BulkCipherAlgorithm algorithm = writeState.getEncryptionAlgorithm();
+
+        // when encrypting, the write key and IV corresponding to the connection end are used
+        RecordKeys keys = writeState.getSecurityParameters().getConnectionEnd() == ConnectionEnd.CLIENT
+                ? writeState.getClientWriteKeys()
+                : writeState.getServerWriteKeys();
+
+        byte[] nonceExplicit = nonceExplicit(algorithm, seqNum);
+        record.put(contentType.value)
+                .putShort(Record.PROTOCOL_VERSION)
+                .putShort((short) (algorithm.recordIVLength + length + TAG_LENGTH))
+                .put(nonceExplicit);
+
+        int plaintextStart = record.position();
+        record.put(content, offset, length);
+
+        ByteBuffer input = record.duplicate();
+        input.position(plaintextStart).limit(record.position());
+        ByteBuffer output = record.duplicate();
+        output.position(plaintextStart);
+
+        Cipher cipher = keys.takeCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, keys.getEncryptionKey(), nonce(algorithm, keys.getFixedIV(), nonceExplicit, seqNum));
+        cipher.updateAAD(additionalData(seqNum, contentType, Record.PROTOCOL_VERSION, length));
+        cipher.doFinal(input, output);
+        keys.releaseCipher(cipher);
+
+        record.position(output.position());
+    }
+
+    static byte[] decrypt(ConnectionState readState, TLSCiphertext tlsCiphertext) throws FatalAlertException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        byte[] plaintext = decrypt(readState, readState.getSequenceNumber(), tlsCiphertext);
+        readState.incrementSequenceNumber();
+        return plaintext;
+    }
+
+    /**
+     * Decrypts a record with a sequence number which has already been taken from the read state, so that records
+     * can be decrypted concurrently.
+     */
+    static byte[] decrypt(ConnectionState readState, long seqNum, TLSCiphertext tlsCiphertext) throws FatalAlertException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        ByteBuffer fragment = ByteBuffer.wrap(tlsCiphertext.getContent().clone());
+        decrypt(readState, seqNum, tlsCiphertext.getContentType(), tlsCiphertext.getProtocolVersion(), fragment);
+        return Arrays.copyOfRange(fragment.array(), fragment.position(), fragment.limit());
+    }
+
+    /**
+     * Decrypts the fragment of a record in place.
+     *
+     * @param fragment A buffer holding the fragment between its position and limit, which are moved to the
+     *                 plaintext once it has been decrypted and authenticated
+     */
+    static void decrypt(ConnectionState readState, long seqNum, ContentType contentType, short protocolVersion, ByteBuffer fragment) throws FatalAlertException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        assert readState.getSecurityParameters().getCipherType() == CipherType.AEAD;
+
+        BulkCipherAlgorithm algorithm = readState.getEncryptionAlgorithm();
+
+        // when decrypting, the write key and IV corresponding to the opposite connection end are used
+        RecordKeys keys = readState.getSecurityParameters().getConnectionEnd() == ConnectionEnd.CLIENT
+                ? readState.getServerWriteKeys()
+                : readState.getClientWriteKeys();
+
+        int plaintextLength = fragment.remaining() - algorithm.recordIVLength - TAG_LENGTH;
+        if (plaintextLength < 0) throw new FatalAlertException(AlertDescription.BAD_RECORD_MAC);
+
+        // the sender may choose the explicit nonce freely (RFC 5288 section 3), and the order of records is
+        // protected by the sequence number in the additional data
+        byte[] nonceExplicit = new byte[algorithm.recordIVLength];
+        fragment.get(nonceExplicit);
+
+        Cipher cipher = keys.takeCipher();
+        cipher.init(Cipher.DECRYPT_MODE, keys.getEncryptionKey(), nonce(algorithm, keys.getFixedIV(), nonceExplicit, seqNum));
+        cipher.updateAAD(additionalData(seqNum, contentType, protocolVersion, plaintextLength));
+
+        try {
+            cipher.doFinal(fragment.duplicate(), fragment.duplicate());
+        } catch (AEADBadTagException e) {
+            throw new FatalAlertException(AlertDescription.BAD_RECORD_MAC);
+        }
+        keys.releaseCipher(cipher);
+
+        fragment.limit(fragment.position() + plaintextLength);
+    }
+
+    private static byte[] nonceExplicit(BulkCipherAlgorithm algorithm, long seqNum) {
+        // AES-GCM sends the sequence number as the explicit part of the nonce (RFC 5288 section 3)
+        if (algorithm.recordIVLength == 0) return new byte[0];
+        return ByteBuffer.allocate(algorithm.recordIVLength).putLong(seqNum).array();
+    }
+
+    /**
+     * @param nonceExplicit The explicit part of the nonce sent in the record, which is empty for ChaCha20-Poly1305
+     */
+    private static AlgorithmParameterSpec nonce(BulkCipherAlgorithm algorithm, byte[] fixedIV, byte[] nonceExplicit, long seqNum) {
+        switch (algorithm) {
+            case AES_128_GCM:
+                // salt || nonce_explicit
+                byte[] gcmNonce = ByteBuffer.allocate(fixedIV.length + algorithm.recordIVLength)
+                        .put(fixedIV)
+                        .put(nonceExplicit)
+                        .array();
+                return new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, gcmNonce);
+            case CHACHA20_POLY1305:
+                // the padded sequence number XORed with the write IV (RFC 7905 section 2)
+                byte[] chachaNonce = Arrays.copyOf(fixedIV, fixedIV.length);
+                for (int i = 0; i < Long.BYTES; i++)
+                    chachaNonce[chachaNonce.length - 1 - i] ^= (byte) (seqNum >>> (8 * i));
+                return new IvParameterSpec(chachaNonce);
+            default:
+                throw new IllegalArgumentException(algorithm.name() + " is not an AEAD cipher");
+        }
+    }
+
+    private static byte[] additionalData(long seqNum, ContentType contentType, short protocolVersion, int length) {
+        return ByteBuffer.allocate(Long.BYTES + 1 + Short.BYTES + Short.BYTES)
+                .putLong(seqNum)
+                .put(contentType.value)
+                .putShort(protocolVersion)
+                .putShort((short) length)
+                .array();
+    }
+}
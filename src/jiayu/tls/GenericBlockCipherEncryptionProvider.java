@@ -2,12 +2,11 @@ package jiayu.tls;
 
 import javax.crypto.*;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.Arrays;
 
 class GenericBlockCipherEncryptionProvider {
@@ -15,7 +14,34 @@ class GenericBlockCipherEncryptionProvider {
 
     }
 
-    static GenericBlockCipher encrypt(ConnectionState writeState, ProtocolMessage message) throws InvalidKeyException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, NoSuchPaddingException {
+    static GenericBlockCipher encrypt(ConnectionState writeState, ProtocolMessage message) throws InvalidKeyException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, NoSuchPaddingException, ShortBufferException {
+        GenericBlockCipher ciphertext = encrypt(writeState, writeState.getSequenceNumber(), message);
+        writeState.incrementSequenceNumber();
+        return ciphertext;
+    }
+
+    /**
+     * Encrypts a message with a sequence number which has already been taken from the write state, so that
+     * records can be encrypted concurrently.
+     */
+    static GenericBlockCipher encrypt(ConnectionState writeState, long seqNum, ProtocolMessage message) throws InvalidKeyException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, NoSuchPaddingException, ShortBufferException {
+        byte[] content = message.getContent();
+        ByteBuffer record = ByteBuffer.allocate(RecordBufferPool.BUFFER_SIZE - RecordLayer.MAX_RECORD_LENGTH + content.length);
+        encrypt(writeState, seqNum, message.getContentType(), content, 0, content.length, record);
+
+        int ivLength = writeState.getEncryptionAlgorithm().ivLength;
+        byte[] iv = Arrays.copyOfRange(record.array(), Record.HEADER_LENGTH, Record.HEADER_LENGTH + ivLength);
+        byte[] ciphertext = Arrays.copyOfRange(record.array(), Record.HEADER_LENGTH + ivLength, record.position());
+        return new GenericBlockCipher(message.getContentType(), iv, ciphertext);
+    }
+
+    /**
+     * Encrypts a fragment and writes it as a complete record, header included, at the position of a buffer. The
+     * fragment is encrypted in place in the buffer.
+     *
+     * @param record A buffer with room for the record, whose position is left at the end of the record
+     */
+    static void encrypt(ConnectionState writeState, long seqNum, ContentType contentType, byte[] content, int offset, int length, ByteBuffer record) throws InvalidKeyException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, NoSuchPaddingException, ShortBufferException {
         assert writeState.getSecurityParameters().getCipherSuite() != CipherSuite.TLS_NULL_WITH_NULL_NULL;
 
         BulkCipherAlgorithm algorithm = writeState.getEncryptionAlgorithm();
@@ -24,50 +50,75 @@ class GenericBlockCipherEncryptionProvider {
         MACAlgorithm macAlgorithm = writeState.getMacAlgorithm();
         int macLength = macAlgorithm.macLength;
 
-        long seqNum = writeState.getSequenceNumber();
-
-        // when encrypting, the write key corresponding to the connection end is used
-        byte[] encKey = writeState.getSecurityParameters().getConnectionEnd() == ConnectionEnd.CLIENT ?
-                writeState.getClientWriteKey()
-                : writeState.getServerWriteKey();
-        byte[] macKey = writeState.getSecurityParameters().getConnectionEnd() == ConnectionEnd.CLIENT
-                ? writeState.getClientWriteMACKey()
-                : writeState.getServerWriteMACKey();
-
-        TLSPlaintext tlsPlaintext = new TLSPlaintext(message);
-        byte[] plaintext = tlsPlaintext.getContent();
-
-        // tls uses mac-then-encrypt and includes a sequence number and the TLSPlaintext type, version and length
-        byte[] plaintextMAC = MAC(macAlgorithm, macKey, seqNum, tlsPlaintext);
+        // when encrypting, the write keys corresponding to the connection end are used
+        RecordKeys keys = writeState.getSecurityParameters().getConnectionEnd() == ConnectionEnd.CLIENT
+                ? writeState.getClientWriteKeys()
+                : writeState.getServerWriteKeys();
 
         // a GenericBlockCipher encrypts the plaintext mac, plaintext, padding and padding_length byte
         // calculate minimum padding required
-        int lengthBefPad = plaintext.length + macLength + 1;
+        int lengthBefPad = length + macLength + 1;
         int minPaddingReq = blockSize - lengthBefPad % blockSize;
 
         // randomise the padding length up to the max length of 255
         int extraPadMultiples = (255 - minPaddingReq) / blockSize;
-        int padAmount = minPaddingReq + new SecureRandom().nextInt(extraPadMultiples) * blockSize;
+        int padAmount = minPaddingReq + Math.floorMod(RandomnessService.getDefault().nextInt(), extraPadMultiples) * blockSize;
 
         assert padAmount < 255;
         assert (lengthBefPad + padAmount) % blockSize == 0;
 
-        ByteBuffer fragment = ByteBuffer.allocate(lengthBefPad + padAmount);
-        fragment.put(plaintext)
-                .put(plaintextMAC);
-        Arrays.fill(fragment.array(), lengthBefPad - 1, fragment.capacity(), (byte) padAmount);
+        int recordStart = record.position();
+        int fragmentLength = ivLength + lengthBefPad + padAmount;
+        record.put(contentType.value)
+                .putShort(Record.PROTOCOL_VERSION)
+                .putShort((short) fragmentLength);
 
         byte[] iv = new byte[ivLength];
-        new SecureRandom().nextBytes(iv);
-        Cipher cipher = Cipher.getInstance(algorithm.transformation);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(encKey, algorithm.keySpec), new IvParameterSpec(iv));
-        byte[] ciphertext = cipher.doFinal(fragment.array());
+        RandomnessService.getDefault().nextBytes(iv);
+        record.put(iv);
 
-        writeState.incrementSequenceNumber();
-        return new GenericBlockCipher(message.getContentType(), iv, ciphertext);
+        // tls uses mac-then-encrypt and includes a sequence number and the TLSPlaintext type, version and length
+        int plaintextStart = record.position();
+        record.put(content, offset, length)
+                .put(MAC(keys, seqNum, contentType, Record.PROTOCOL_VERSION, content, offset, length));
+        for (int i = 0; i <= padAmount; i++) record.put((byte) padAmount);
+
+        ByteBuffer input = record.duplicate();
+        input.position(plaintextStart).limit(record.position());
+        ByteBuffer output = record.duplicate();
+        output.position(plaintextStart);
+
+        Cipher cipher = keys.takeCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, keys.getEncryptionKey(), new IvParameterSpec(iv));
+        cipher.doFinal(input, output);
+        keys.releaseCipher(cipher);
+
+        assert record.position() - recordStart == Record.HEADER_LENGTH + fragmentLength;
     }
 
-    static byte[] decrypt(ConnectionState readState, TLSCiphertext tlsCiphertext) throws FatalAlertException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+    static byte[] decrypt(ConnectionState readState, TLSCiphertext tlsCiphertext) throws FatalAlertException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        byte[] plaintext = decrypt(readState, readState.getSequenceNumber(), tlsCiphertext);
+        readState.incrementSequenceNumber();
+        return plaintext;
+    }
+
+    /**
+     * Decrypts a record with a sequence number which has already been taken from the read state, so that records
+     * can be decrypted concurrently.
+     */
+    static byte[] decrypt(ConnectionState readState, long seqNum, TLSCiphertext tlsCiphertext) throws FatalAlertException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        ByteBuffer fragment = ByteBuffer.wrap(tlsCiphertext.getContent().clone());
+        decrypt(readState, seqNum, tlsCiphertext.getContentType(), tlsCiphertext.getProtocolVersion(), fragment);
+        return Arrays.copyOfRange(fragment.array(), fragment.position(), fragment.limit());
+    }
+
+    /**
+     * Decrypts the fragment of a record in place.
+     *
+     * @param fragment A buffer holding the fragment between its position and limit, which are moved to the
+     *                 plaintext once it has been decrypted and its mac verified
+     */
+    static void decrypt(ConnectionState readState, long seqNum, ContentType contentType, short protocolVersion, ByteBuffer fragment) throws FatalAlertException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
         assert readState.getSecurityParameters().getCipherSuite() != CipherSuite.TLS_NULL_WITH_NULL_NULL;
 
         BulkCipherAlgorithm algorithm = readState.getEncryptionAlgorithm();
@@ -75,52 +126,64 @@ class GenericBlockCipherEncryptionProvider {
         MACAlgorithm macAlgorithm = readState.getMacAlgorithm();
         int macLength = macAlgorithm.macLength;
 
-        long seqNum = readState.getSequenceNumber();
+        // when decrypting, the write keys corresponding to the opposite connection end are used
+        RecordKeys keys = readState.getSecurityParameters().getConnectionEnd() != ConnectionEnd.CLIENT
+                ? readState.getClientWriteKeys()
+                : readState.getServerWriteKeys();
 
-        // when decrypting, the write key corresponding to the opposite connection end is used
-        byte[] encKey = readState.getSecurityParameters().getConnectionEnd() != ConnectionEnd.CLIENT
-                ? readState.getClientWriteKey()
-                : readState.getServerWriteKey();
-        byte[] macKey = readState.getSecurityParameters().getConnectionEnd() != ConnectionEnd.CLIENT
-                ? readState.getClientWriteMACKey()
-                : readState.getServerWriteMACKey();
+        int cipherTextLength = fragment.remaining() - ivLength;
+        if (cipherTextLength < macLength + 1 || cipherTextLength % algorithm.blockSize != 0)
+            throw new FatalAlertException(AlertDescription.BAD_RECORD_MAC);
 
-        byte[] iv = Arrays.copyOf(tlsCiphertext.getContent(), ivLength);
-        byte[] cipherText = Arrays.copyOfRange(tlsCiphertext.getContent(), ivLength, tlsCiphertext.getContent().length);
+        byte[] iv = new byte[ivLength];
+        fragment.get(iv);
 
-        Cipher cipher = Cipher.getInstance(algorithm.transformation);
-        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(encKey, algorithm.keySpec), new IvParameterSpec(iv));
+        Cipher cipher = keys.takeCipher();
+        cipher.init(Cipher.DECRYPT_MODE, keys.getEncryptionKey(), new IvParameterSpec(iv));
 
         // the decrypted fragment is comprised of the plaintext, the plaintext mac and the padding
-        byte[] fragment = cipher.doFinal(cipherText);
+        int plaintextStart = fragment.position();
+        cipher.doFinal(fragment.duplicate(), fragment.duplicate());
+        keys.releaseCipher(cipher);
 
-        int paddingLength = fragment[fragment.length - 1] & 0xFF;
-        int plaintextLength = fragment.length - paddingLength - macLength - 1;
+        int paddingLength = fragment.get(fragment.limit() - 1) & 0xFF;
+        int plaintextLength = cipherTextLength - paddingLength - macLength - 1;
+        if (plaintextLength < 0) throw new FatalAlertException(AlertDescription.BAD_RECORD_MAC);
 
         for (int i = 0; i < paddingLength; i++) {
-            if ((fragment[plaintextLength + macLength + i] & 0xFF) != paddingLength)
+            if ((fragment.get(plaintextStart + plaintextLength + macLength + i) & 0xFF) != paddingLength)
                 throw new FatalAlertException(AlertDescription.BAD_RECORD_MAC);
         }
 
-        byte[] plaintext = Arrays.copyOf(fragment, plaintextLength);
-        byte[] mac = Arrays.copyOfRange(fragment, plaintextLength, plaintextLength + macLength);
-
-        TLSPlaintext tlsPlaintext = new TLSPlaintext(tlsCiphertext.getContentType(), tlsCiphertext.getProtocolVersion(), plaintext);
-        byte[] macVerify = MAC(macAlgorithm, macKey, seqNum, tlsPlaintext);
+        byte[] mac = new byte[macLength];
+        ByteBuffer received = fragment.duplicate();
+        received.position(plaintextStart + plaintextLength);
+        received.get(mac);
 
-        if (!Arrays.equals(mac, macVerify)) throw new FatalAlertException(AlertDescription.BAD_RECORD_MAC);
+        fragment.limit(plaintextStart + plaintextLength);
+        byte[] macVerify = MAC(keys, seqNum, contentType, protocolVersion, fragment.duplicate());
 
-        readState.incrementSequenceNumber();
-        return plaintext;
+        if (!MessageDigest.isEqual(mac, macVerify)) throw new FatalAlertException(AlertDescription.BAD_RECORD_MAC);
     }
 
-    private static byte[] MAC(MACAlgorithm algorithm, byte[] macWriteKey, long seqNum, TLSPlaintext tlsPlaintext) throws NoSuchAlgorithmException, InvalidKeyException {
-        Mac mac = Mac.getInstance(algorithm.name);
-        mac.init(new SecretKeySpec(macWriteKey, algorithm.name));
-
-        mac.update(ByteBuffer.allocate(Long.BYTES).putLong(seqNum).array());
-        mac.update(tlsPlaintext.getBytes());
+    private static byte[] MAC(RecordKeys keys, long seqNum, ContentType contentType, short protocolVersion, byte[] content, int offset, int length) throws NoSuchAlgorithmException, InvalidKeyException {
+        return MAC(keys, seqNum, contentType, protocolVersion, ByteBuffer.wrap(content, offset, length));
+    }
 
-        return mac.doFinal();
+    private static byte[] MAC(RecordKeys keys, long seqNum, ContentType contentType, short protocolVersion, ByteBuffer content) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = keys.takeMac();
+
+        // the sequence number followed by the header of the TLSPlaintext
+        mac.update(ByteBuffer.allocate(Long.BYTES + Record.HEADER_LENGTH)
+                .putLong(seqNum)
+                .put(contentType.value)
+                .putShort(protocolVersion)
+                .putShort((short) content.remaining())
+                .array());
+        mac.update(content);
+
+        byte[] result = mac.doFinal();
+        keys.releaseMac(mac);
+        return result;
     }
 }
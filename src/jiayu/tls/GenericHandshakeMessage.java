@@ -1,16 +1,30 @@
 package jiayu.tls;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+/**
+ * A handshake message which has been received but not yet interpreted.
+ * <p>
+ * The message body is not copied: {@link #getBody()} returns a view of the received bytes, which the message
+ * classes parse in place.
+ */
 public class GenericHandshakeMessage {
     private final HandshakeType type;
     private final int length;
-    private final byte[] content;
+    private final byte[] encoded;
+    private final ByteBuffer body;
 
     public GenericHandshakeMessage(byte[] content) throws FatalAlertException {
+        if (content.length < HandshakeMessage.HEADER_LENGTH) throw new FatalAlertException(AlertDescription.DECODE_ERROR);
+
         type = HandshakeType.valueOf(content[0]);
-        length = UInt.btoi(Arrays.copyOfRange(content, 1, 4));
-        this.content = Arrays.copyOfRange(content, 4, content.length);
+        length = (content[1] & 0xFF) << 16 | (content[2] & 0xFF) << 8 | content[3] & 0xFF;
+        if (length != content.length - HandshakeMessage.HEADER_LENGTH)
+            throw new FatalAlertException(AlertDescription.DECODE_ERROR);
+
+        encoded = content;
+        body = ByteBuffer.wrap(content, HandshakeMessage.HEADER_LENGTH, length).slice();
     }
 
     public HandshakeType getType() {
@@ -21,7 +35,24 @@ public class GenericHandshakeMessage {
         return length;
     }
 
+    /**
+     * Returns a copy of the message body.
+     */
     public byte[] getContent() {
-        return content;
+        return Arrays.copyOfRange(encoded, HandshakeMessage.HEADER_LENGTH, encoded.length);
+    }
+
+    /**
+     * Returns a read-only view of the message body, positioned at its start, which the caller may consume.
+     */
+    ByteBuffer getBody() {
+        return body.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the message as it was received, header included.
+     */
+    byte[] getEncoded() {
+        return encoded;
     }
 }
@@ -39,23 +39,37 @@ public class GenericProtocolMessage implements ProtocolMessage {
 
         GenericHandshakeMessage handshake = new GenericHandshakeMessage(content);
 
+        HandshakeMessage message;
         switch (type) {
             case CLIENT_HELLO:
-                return ClientHello.interpret(handshake);
+                message = ClientHello.interpret(handshake);
+                break;
             case SERVER_HELLO:
-                return ServerHello.interpret(handshake);
+                message = ServerHello.interpret(handshake);
+                break;
             case CERTIFICATE:
-                return Certificate.interpret(handshake);
+                message = Certificate.interpret(handshake);
+                break;
+            case SERVER_KEY_EXCHANGE:
+                message = ServerKeyExchange.interpret(handshake);
+                break;
             case SERVER_HELLO_DONE:
-                return ServerHelloDone.interpret(handshake);
+                message = ServerHelloDone.interpret(handshake);
+                break;
             case CLIENT_KEY_EXCHANGE:
-                return ClientKeyExchange.interpret(handshake);
+                message = ClientKeyExchange.interpret(handshake);
+                break;
             case FINISHED:
                 // TODO: 15/04/2016
-                return Finished.interpret(handshake);
+                message = Finished.interpret(handshake);
+                break;
             default:
                 throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
         }
+
+        // the message is hashed into the transcript exactly as it was received
+        message.receivedAs(handshake);
+        return message;
     }
 
     public ApplicationData asApplicationData() throws FatalAlertException {
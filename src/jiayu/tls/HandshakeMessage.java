@@ -2,21 +2,34 @@ package jiayu.tls;
 
 import java.nio.ByteBuffer;
 
+/**
+ * A handshake message, whose content is its encoding with the handshake header included.
+ * <p>
+ * A message is encoded at most once. A message which was received keeps the bytes it was received as, so that the
+ * transcript hashed into the Finished messages is exactly what the peer sent and nothing is re-serialized.
+ */
 abstract class HandshakeMessage implements ProtocolMessage {
     public static final ContentType CONTENT_TYPE = ContentType.HANDSHAKE;
     static final int HEADER_LENGTH = 4;
 
     private final HandshakeType handshakeType;
 
+    // only used by the thread performing the handshake
+    private byte[] encoded;
+
     HandshakeMessage(HandshakeType handshakeType) {
         this.handshakeType = handshakeType;
     }
 
     byte[] createHeader(int length) {
-        return ByteBuffer.allocate(HEADER_LENGTH)
-                .put(handshakeType.value)
-                .put(UInt.itob(length, 3))
-                .array();
+        return writeHeader(ByteBuffer.allocate(HEADER_LENGTH), length).array();
+    }
+
+    ByteBuffer writeHeader(ByteBuffer buf, int length) {
+        return buf.put(handshakeType.value)
+                .put((byte) (length >>> 16))
+                .put((byte) (length >>> 8))
+                .put((byte) length);
     }
 
     static int interpretHeader(ByteBuffer content, HandshakeType expectedType) throws FatalAlertException {
@@ -46,4 +59,25 @@ abstract class HandshakeMessage implements ProtocolMessage {
     public ContentType getContentType() {
         return ContentType.HANDSHAKE;
     }
+
+    /**
+     * Returns the encoded message, header included. The returned array is shared and must not be modified.
+     */
+    @Override
+    public final byte[] getContent() {
+        if (encoded == null) encoded = encode();
+        return encoded;
+    }
+
+    /**
+     * Encodes the message, header included.
+     */
+    abstract byte[] encode();
+
+    /**
+     * Keeps the bytes a message was received as, to be returned as its content instead of encoding it again.
+     */
+    void receivedAs(GenericHandshakeMessage handshake) {
+        encoded = handshake.getEncoded();
+    }
 }
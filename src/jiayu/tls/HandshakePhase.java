@@ -0,0 +1,27 @@
+package jiayu.tls;
+
+/**
+ * The phases of a handshake which are timed separately by {@link TLSMetrics}.
+ */
+public enum HandshakePhase {
+    /**
+     * From the ClientHello up to and including the ServerHelloDone.
+     */
+    HELLO,
+    /**
+     * Verifying the server certificate chain. Only the client goes through this phase.
+     */
+    AUTHENTICATION,
+    /**
+     * Exchanging the premaster secret and deriving the master secret and connection keys.
+     */
+    KEY_EXCHANGE,
+    /**
+     * Exchanging ChangeCipherSpec and Finished messages.
+     */
+    FINISHED,
+    /**
+     * The whole handshake.
+     */
+    TOTAL
+}
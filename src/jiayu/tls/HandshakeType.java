@@ -1,23 +1,22 @@
 package jiayu.tls;
 
-import java.util.HashMap;
-
 public enum HandshakeType {
-    CLIENT_HELLO(1), SERVER_HELLO(2), CERTIFICATE(11),
+    CLIENT_HELLO(1), SERVER_HELLO(2), CERTIFICATE(11), SERVER_KEY_EXCHANGE(12),
     SERVER_HELLO_DONE(14), CLIENT_KEY_EXCHANGE(16), FINISHED(20);
 
     public static final int BYTES = 1;
 
-    private static HashMap<Byte, HandshakeType> map = new HashMap<>();
+    private static final HandshakeType[] lookupTable = new HandshakeType[256];
 
     static {
         for (HandshakeType handshakeType : values()) {
-            map.put(handshakeType.value, handshakeType);
+            lookupTable[handshakeType.value & 0xFF] = handshakeType;
         }
     }
 
     static HandshakeType valueOf(byte value) throws FatalAlertException {
-        if (map.containsKey(value)) return map.get(value);
+        HandshakeType handshakeType = lookupTable[value & 0xFF];
+        if (handshakeType != null) return handshakeType;
         else throw new FatalAlertException(AlertDescription.DECODE_ERROR);
     }
 
@@ -0,0 +1,137 @@
+package jiayu.tls;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * P_hash from RFC 5246 section 5:
+ * <pre>
+ *     P_hash(secret, seed) = HMAC_hash(secret, A(1) + seed) +
+ *                            HMAC_hash(secret, A(2) + seed) + ...
+ *     A(0) = seed
+ *     A(i) = HMAC_hash(secret, A(i-1))
+ * </pre>
+ * where the seed is the label followed by the PRF seed.
+ * <p>
+ * Every instance clones an unkeyed {@code Mac} prototype instead of looking up the provider again, keys it once,
+ * and relies on {@code doFinal} resetting it to its keyed state. Whole blocks are written directly into the output
+ * buffer; only a block that is split between two calls is buffered.
+ */
+class HmacPRF implements PRF {
+    private static final Mac[] prototypes = new Mac[PRFAlgorithm.values().length];
+
+    private final PRFAlgorithm algorithm;
+    private final Mac hmac;
+
+    private byte[] labelAndSeed;
+    private final byte[] a;             // A(i)
+    private final byte[] block;         // the current block of output, when it is split between calls
+    private int blockPosition;          // the number of bytes of block which have been returned
+
+    HmacPRF(PRFAlgorithm algorithm) throws NoSuchAlgorithmException {
+        this.algorithm = algorithm;
+
+        hmac = newMac(algorithm);
+        a = new byte[algorithm.hashLength];
+        block = new byte[algorithm.hashLength];
+    }
+
+    private static Mac newMac(PRFAlgorithm algorithm) throws NoSuchAlgorithmException {
+        synchronized (prototypes) {
+            Mac prototype = prototypes[algorithm.ordinal()];
+            if (prototype == null) {
+                prototype = Mac.getInstance(algorithm.hmacAlgorithm);
+                prototypes[algorithm.ordinal()] = prototype;
+            }
+
+            try {
+                return (Mac) prototype.clone();
+            } catch (CloneNotSupportedException e) {
+                return Mac.getInstance(algorithm.hmacAlgorithm);
+            }
+        }
+    }
+
+    @Override
+    public void init(byte[] key, String label, byte[] seed) throws InvalidKeyException {
+        init(key, label, new byte[][]{seed});
+    }
+
+    @Override
+    public void init(byte[] key, String label, byte[]... seed) throws InvalidKeyException {
+        hmac.init(new SecretKeySpec(key, algorithm.hmacAlgorithm));
+
+        byte[] labelBytes = label.getBytes(StandardCharsets.US_ASCII);
+        int length = labelBytes.length;
+        for (byte[] bytes : seed) length += bytes.length;
+
+        labelAndSeed = new byte[length];
+        System.arraycopy(labelBytes, 0, labelAndSeed, 0, labelBytes.length);
+        int offset = labelBytes.length;
+        for (byte[] bytes : seed) {
+            System.arraycopy(bytes, 0, labelAndSeed, offset, bytes.length);
+            offset += bytes.length;
+        }
+
+        // A(1) = HMAC_hash(secret, A(0))
+        hmac.update(labelAndSeed);
+        doFinal(a, 0);
+        blockPosition = block.length;
+    }
+
+    @Override
+    public byte[] getBytes(int numBytes) {
+        byte[] output = new byte[numBytes];
+        getBytes(output, 0, numBytes);
+        return output;
+    }
+
+    @Override
+    public void getBytes(byte[] output, int offset, int length) {
+        if (labelAndSeed == null) throw new IllegalStateException();
+
+        // the rest of a block left over from the previous call
+        int n = Math.min(length, block.length - blockPosition);
+        System.arraycopy(block, blockPosition, output, offset, n);
+        blockPosition += n;
+        offset += n;
+        length -= n;
+
+        // whole blocks straight into the output
+        while (length >= block.length) {
+            nextBlock(output, offset);
+            offset += block.length;
+            length -= block.length;
+        }
+
+        if (length > 0) {
+            nextBlock(block, 0);
+            System.arraycopy(block, 0, output, offset, length);
+            blockPosition = length;
+        }
+    }
+
+    private void nextBlock(byte[] output, int offset) {
+        // HMAC_hash(secret, A(i) + seed)
+        hmac.update(a);
+        hmac.update(labelAndSeed);
+        doFinal(output, offset);
+
+        // A(i + 1) = HMAC_hash(secret, A(i))
+        hmac.update(a);
+        doFinal(a, 0);
+    }
+
+    private void doFinal(byte[] output, int offset) {
+        try {
+            hmac.doFinal(output, offset);
+        } catch (ShortBufferException e) {
+            // callers always leave room for a whole block
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package jiayu.tls;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One end of an in-process connection, for connecting a client and a server {@link SecureSocket} without the
+ * network stack.
+ * <p>
+ * Each direction is a bounded ring buffer, so a writer blocks once the peer has fallen a buffer behind,
+ * as it would with a socket whose send buffer is full.
+ * <pre>
+ * InMemoryTransport clientEnd = new InMemoryTransport();
+ * // in another thread: serverSocket.acceptSecured(clientEnd.getPeer());
+ * client.connectSecured(clientEnd, "localhost");
+ * </pre>
+ */
+public class InMemoryTransport implements Transport {
+    /**
+     * Large enough for a few maximum length records in each direction.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final ByteRingBuffer inbound;
+    private final ByteRingBuffer outbound;
+    private final InMemoryTransport peer;
+
+    public InMemoryTransport() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates one end of a connection, whose other end is available through {@link #getPeer()}.
+     *
+     * @param bufferSize The number of bytes which can be in flight in each direction
+     */
+    public InMemoryTransport(int bufferSize) {
+        inbound = new ByteRingBuffer(bufferSize);
+        outbound = new ByteRingBuffer(bufferSize);
+        peer = new InMemoryTransport(this);
+    }
+
+    private InMemoryTransport(InMemoryTransport peer) {
+        this.inbound = peer.outbound;
+        this.outbound = peer.inbound;
+        this.peer = peer;
+    }
+
+    /**
+     * Returns the other end of this connection.
+     */
+    public InMemoryTransport getPeer() {
+        return peer;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inbound.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outbound.getOutputStream();
+    }
+
+    @Override
+    public void close() {
+        outbound.closeWriter();
+        inbound.closeReader();
+    }
+
+    @Override
+    public String toString() {
+        return "in-memory";
+    }
+}
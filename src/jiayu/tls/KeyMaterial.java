@@ -0,0 +1,109 @@
+package jiayu.tls;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The key block derived from the master secret, shared by the read and write states of a connection.
+ * <p>
+ * The key block is derived with a single PRF pass, as described in RFC 5246 section 6.3, and is kept in a direct
+ * buffer outside the Java heap, so that it is not copied around by the garbage collector and can be reliably wiped
+ * with {@link #destroy()} when the connection closes. Keys are copied out of the buffer only when they are needed.
+ */
+final class KeyMaterial {
+    private static final String KEY_EXPANSION_LABEL = "key expansion";
+
+    private final ByteBuffer keyBlock;
+    private final int macKeyLength;
+    private final int encKeyLength;
+    private final int fixedIVLength;
+
+    private volatile boolean destroyed;
+
+    private KeyMaterial(ByteBuffer keyBlock, int macKeyLength, int encKeyLength, int fixedIVLength) {
+        this.keyBlock = keyBlock;
+        this.macKeyLength = macKeyLength;
+        this.encKeyLength = encKeyLength;
+        this.fixedIVLength = fixedIVLength;
+    }
+
+    /**
+     * Derives the key block for the cipher suite, master secret and randoms in the security parameters.
+     *
+     * @param securityParameters The security parameters negotiated in the handshake
+     * @return The key material
+     * @throws NoSuchAlgorithmException If the PRF is not supported
+     * @throws InvalidKeyException      If the master secret cannot be used as a PRF key
+     */
+    static KeyMaterial derive(SecurityParameters securityParameters) throws NoSuchAlgorithmException, InvalidKeyException {
+        int macKeyLength = securityParameters.getMacKeyLength();
+        int encKeyLength = securityParameters.getEncKeyLength();
+        int fixedIVLength = securityParameters.getFixedIVLength();
+        int length = 2 * (macKeyLength + encKeyLength + fixedIVLength);
+
+        PRF prf = PRF.getInstance(securityParameters.getPrfAlgorithm());
+        prf.init(securityParameters.getMasterSecret(), KEY_EXPANSION_LABEL,
+                securityParameters.getServerRandom(), securityParameters.getClientRandom());
+
+        byte[] bytes = new byte[length];
+        prf.getBytes(bytes, 0, length);
+
+        ByteBuffer keyBlock = ByteBuffer.allocateDirect(length);
+        keyBlock.put(bytes);
+        Arrays.fill(bytes, (byte) 0);
+
+        return new KeyMaterial(keyBlock, macKeyLength, encKeyLength, fixedIVLength);
+    }
+
+    // client_write_MAC_key, server_write_MAC_key, client_write_key, server_write_key, client_write_IV, server_write_IV
+
+    byte[] getClientWriteMACKey() {
+        return copy(0, macKeyLength);
+    }
+
+    byte[] getServerWriteMACKey() {
+        return copy(macKeyLength, macKeyLength);
+    }
+
+    byte[] getClientWriteKey() {
+        return copy(2 * macKeyLength, encKeyLength);
+    }
+
+    byte[] getServerWriteKey() {
+        return copy(2 * macKeyLength + encKeyLength, encKeyLength);
+    }
+
+    byte[] getClientWriteIV() {
+        return copy(2 * (macKeyLength + encKeyLength), fixedIVLength);
+    }
+
+    byte[] getServerWriteIV() {
+        return copy(2 * (macKeyLength + encKeyLength) + fixedIVLength, fixedIVLength);
+    }
+
+    /**
+     * Overwrites the key block with zeros. Keys can no longer be read afterwards.
+     */
+    void destroy() {
+        destroyed = true;
+        synchronized (keyBlock) {
+            for (int i = 0; i < keyBlock.capacity(); i++) keyBlock.put(i, (byte) 0);
+        }
+    }
+
+    boolean isDestroyed() {
+        return destroyed;
+    }
+
+    private byte[] copy(int offset, int length) {
+        if (destroyed) throw new IllegalStateException("key material has been destroyed");
+
+        byte[] bytes = new byte[length];
+        ByteBuffer view = keyBlock.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return bytes;
+    }
+}
@@ -3,13 +3,15 @@ package jiayu.tls;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
+/**
+ * The TLS 1.2 pseudorandom function, PRF(secret, label, seed) = P_hash(secret, label + seed), described in RFC 5246
+ * section 5.
+ * <p>
+ * After initialisation, successive calls to {@code getBytes} continue the same output stream.
+ */
 public interface PRF {
     static PRF getInstance(PRFAlgorithm prfAlgorithm) throws NoSuchAlgorithmException {
-        switch (prfAlgorithm) {
-            case TLS_PRF_SHA256:
-                return new TLS_PRF_SHA256();
-        }
-        throw new NoSuchAlgorithmException();
+        return new HmacPRF(prfAlgorithm);
     }
 
     void init(byte[] key, String label, byte[]... seed) throws InvalidKeyException;
@@ -18,4 +20,12 @@ public interface PRF {
 
     byte[] getBytes(int numBytes);
 
+    /**
+     * Writes the next bytes of output into a buffer.
+     *
+     * @param output The buffer
+     * @param offset The offset of the first byte to write
+     * @param length The number of bytes to write
+     */
+    void getBytes(byte[] output, int offset, int length);
 }
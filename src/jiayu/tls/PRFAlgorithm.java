@@ -1,5 +1,14 @@
 package jiayu.tls;
 
 public enum PRFAlgorithm {
-    TLS_PRF_SHA256
+    TLS_PRF_SHA256("HmacSHA256", 32),
+    TLS_PRF_SHA384("HmacSHA384", 48);
+
+    public final String hmacAlgorithm;
+    public final int hashLength;
+
+    PRFAlgorithm(String hmacAlgorithm, int hashLength) {
+        this.hmacAlgorithm = hmacAlgorithm;
+        this.hashLength = hashLength;
+    }
 }
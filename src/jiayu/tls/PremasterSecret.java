@@ -17,7 +17,7 @@ public class PremasterSecret {
 
     public static PremasterSecret newRSAPremasterSecret(short clientVersion) {
         byte[] random = new byte[46];
-        new SecureRandom().nextBytes(random);
+        RandomnessService.getDefault().nextBytes(random);
 
         byte[] bytes = ByteBuffer.allocate(48)
                 .putShort(clientVersion)
@@ -27,6 +27,20 @@ public class PremasterSecret {
         return new PremasterSecret(bytes);
     }
 
+    /**
+     * Wraps the shared secret computed by a Diffie-Hellman key agreement, which is used as the premaster secret as is.
+     */
+    static PremasterSecret fromSharedSecret(byte[] sharedSecret) {
+        return new PremasterSecret(sharedSecret);
+    }
+
+    /**
+     * Wraps a premaster secret which has already been decrypted by the server.
+     */
+    static PremasterSecret fromDecryptedBytes(byte[] premasterSecret) {
+        return new PremasterSecret(premasterSecret);
+    }
+
     public static PremasterSecret fromBytes(byte[] bytes) {
         byte[] encryptedPremasterSecret = Arrays.copyOfRange(bytes, 2, bytes.length);
         assert ByteBuffer.wrap(bytes).getShort() == encryptedPremasterSecret.length;
@@ -39,24 +53,10 @@ public class PremasterSecret {
         return ByteBuffer.allocate(130).putShort((short) 128).put(cipher.doFinal(this.bytes)).array();
     }
 
-    public void decrypt(Key serverKey, short clientVersion) throws BadPaddingException, IllegalBlockSizeException, InvalidKeyException, NoSuchPaddingException, NoSuchAlgorithmException {
-        byte[] random = new byte[46];
-        new SecureRandom().nextBytes(random);
-
-        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-        cipher.init(Cipher.DECRYPT_MODE, serverKey);
-        bytes = cipher.doFinal(bytes);
+    public void decrypt(Key serverKey, short clientVersion) throws InvalidKeyException, NoSuchPaddingException, NoSuchAlgorithmException {
+        if (!(serverKey instanceof PrivateKey)) throw new InvalidKeyException("not a private key");
 
-        // as described in https://tools.ietf.org/html/rfc5246#ref-KPR03
-        byte[] clientVersionBytes = ByteBuffer.allocate(2).putShort(clientVersion).array();
-        byte[] bytes = new byte[48];
-        System.arraycopy(clientVersionBytes, 0, bytes, 0, 2);
-        if (bytes.length != 48) {
-            System.arraycopy(random, 0, bytes, 2, 46);
-        } else {
-            System.arraycopy(this.bytes, 2, bytes, 2, 46);
-        }
-        this.bytes = bytes;
+        bytes = RSAPrivateKeyService.getDefault().decryptPremasterSecret((PrivateKey) serverKey, bytes, clientVersion);
     }
 
     public byte[] getBytes() {
@@ -0,0 +1,64 @@
+package jiayu.tls;
+
+import java.security.PrivateKey;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Performs the private key operations of the server side of the handshake asynchronously, so that the thread
+ * driving the handshake does not have to wait for them.
+ * <p>
+ * Implementations may run the operations on a local thread pool, as the default implementation does, or hand them
+ * off to a remote signing service or hardware module. Failures are reported by completing the future exceptionally.
+ */
+public interface PrivateKeyOperator {
+    int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Returns the operator shared by all server sockets, which uses one thread per available processor.
+     */
+    static PrivateKeyOperator getDefault() {
+        return DefaultPrivateKeyOperatorImpl.SHARED;
+    }
+
+    /**
+     * Creates an operator which performs private key operations on its own bounded pool of threads.
+     *
+     * @param threads       The number of threads in the pool
+     * @param queueCapacity The number of operations which may wait for a thread before further operations are
+     *                      rejected
+     * @return The new operator
+     */
+    static PrivateKeyOperator newLocalInstance(int threads, int queueCapacity) {
+        return new DefaultPrivateKeyOperatorImpl(threads, queueCapacity);
+    }
+
+    /**
+     * Decrypts an RSA-encrypted premaster secret. As described in RFC 5246 section 7.4.7.1, a malformed premaster
+     * secret must result in a random premaster secret rather than a failure.
+     *
+     * @param key                      The server private key
+     * @param encryptedPremasterSecret The encrypted premaster secret, without its length prefix
+     * @param clientVersion            The version offered in the ClientHello
+     * @return A future for the 48-byte premaster secret
+     */
+    CompletableFuture<byte[]> decryptPremasterSecret(PrivateKey key, byte[] encryptedPremasterSecret, short clientVersion);
+
+    /**
+     * Signs data with the server private key.
+     *
+     * @param key       The server private key
+     * @param algorithm The JCA signature algorithm, for example SHA256withRSA
+     * @param data      The data to sign
+     * @return A future for the signature
+     */
+    CompletableFuture<byte[]> sign(PrivateKey key, String algorithm, byte[] data);
+
+    /**
+     * Returns the number of operations which have been submitted but not yet started.
+     *
+     * @return The queue depth, or 0 if this operator does not queue operations
+     */
+    default int getQueueDepth() {
+        return 0;
+    }
+}
@@ -0,0 +1,161 @@
+package jiayu.tls;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Performs the RSA private key operations of the server side of the handshake.
+ * <p>
+ * Each thread keeps its own RSA cipher, already initialised for decryption, for every private key it has used, so
+ * the cost of {@code Cipher.getInstance} and {@code Cipher.init} is paid once per thread and key instead of once per
+ * handshake. Keys should be in CRT form (see {@link #toCrtForm(PrivateKey)}); the SunRsaSign provider blinds every
+ * CRT private key operation.
+ */
+class RSAPrivateKeyService {
+    private static final Logger logger = Logger.getLogger("jiayu.tls.RSAPrivateKeyService");
+
+    private static final String TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+    private static final int PREMASTER_SECRET_LENGTH = 48;
+
+    private static final RSAPrivateKeyService DEFAULT = new RSAPrivateKeyService();
+
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Map<PrivateKey, Cipher>> ciphers = ThreadLocal.withInitial(IdentityHashMap::new);
+    private final ThreadLocal<Map<String, Signature>> signatures = ThreadLocal.withInitial(HashMap::new);
+
+    static RSAPrivateKeyService getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns an equivalent RSA private key which carries its CRT parameters, so that private key operations use
+     * the faster and blinded CRT code path.
+     *
+     * @param key An RSA private key
+     * @return The key itself if it is already in CRT form, otherwise the key re-read as an RSAPrivateCrtKey, or the
+     * original key if it does not contain CRT parameters
+     */
+    static PrivateKey toCrtForm(PrivateKey key) {
+        if (key instanceof RSAPrivateCrtKey || !(key instanceof RSAPrivateKey)) return key;
+
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            return keyFactory.generatePrivate(keyFactory.getKeySpec(key, RSAPrivateCrtKeySpec.class));
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            logger.warning("RSA private key has no CRT parameters, private key operations will be slower");
+            return key;
+        }
+    }
+
+    /**
+     * Decrypts an RSA-encrypted premaster secret as described in RFC 5246 section 7.4.7.1.
+     * <p>
+     * If the encrypted premaster secret is malformed, a random premaster secret is returned instead of an error, so
+     * that the handshake fails at the Finished message without revealing why.
+     *
+     * @param key           The server private key
+     * @param encrypted     The encrypted premaster secret, without its length prefix
+     * @param clientVersion The version offered in the ClientHello
+     * @return The 48-byte premaster secret
+     * @throws InvalidKeyException      If the key cannot be used for RSA decryption
+     * @throws NoSuchPaddingException   If PKCS #1 padding is not supported
+     * @throws NoSuchAlgorithmException If RSA is not supported
+     */
+    byte[] decryptPremasterSecret(PrivateKey key, byte[] encrypted, short clientVersion) throws InvalidKeyException, NoSuchPaddingException, NoSuchAlgorithmException {
+        return decrypt(getCipher(key), key, encrypted, clientVersion);
+    }
+
+    /**
+     * Decrypts several RSA-encrypted premaster secrets with the same key, as queued up by a busy
+     * {@link PrivateKeyOperator}.
+     *
+     * @see #decryptPremasterSecret(PrivateKey, byte[], short)
+     */
+    byte[][] decryptPremasterSecrets(PrivateKey key, byte[][] encrypted, short[] clientVersions) throws InvalidKeyException, NoSuchPaddingException, NoSuchAlgorithmException {
+        if (encrypted.length != clientVersions.length) throw new IllegalArgumentException("one client version is required per premaster secret");
+
+        byte[][] premasterSecrets = new byte[encrypted.length][];
+        for (int i = 0; i < encrypted.length; i++) {
+            // looked up for each secret in case a provider failure dropped the cipher
+            premasterSecrets[i] = decrypt(getCipher(key), key, encrypted[i], clientVersions[i]);
+        }
+
+        return premasterSecrets;
+    }
+
+    /**
+     * Signs data with the server private key.
+     *
+     * @param key       The server private key
+     * @param algorithm The JCA signature algorithm, for example SHA256withRSA
+     * @param data      The data to sign
+     * @return The signature
+     * @throws InvalidKeyException      If the key cannot be used with the algorithm
+     * @throws NoSuchAlgorithmException If the signature algorithm is not supported
+     * @throws SignatureException       If the data could not be signed
+     */
+    byte[] sign(PrivateKey key, String algorithm, byte[] data) throws InvalidKeyException, NoSuchAlgorithmException, SignatureException {
+        Map<String, Signature> threadSignatures = signatures.get();
+
+        Signature signer = threadSignatures.get(algorithm);
+        if (signer == null) {
+            signer = Signature.getInstance(algorithm);
+            threadSignatures.put(algorithm, signer);
+        }
+
+        signer.initSign(key, random);
+        signer.update(data);
+        return signer.sign();
+    }
+
+    private byte[] decrypt(Cipher cipher, PrivateKey key, byte[] encrypted, short clientVersion) {
+        // generated before decrypting so that a bad padding takes as long as a good one
+        byte[] premasterSecret = new byte[PREMASTER_SECRET_LENGTH];
+        RandomnessService.getDefault().nextBytes(premasterSecret);
+
+        try {
+            byte[] decrypted = cipher.doFinal(encrypted);
+            if (decrypted.length == PREMASTER_SECRET_LENGTH) System.arraycopy(decrypted, 0, premasterSecret, 0, PREMASTER_SECRET_LENGTH);
+        } catch (BadPaddingException | IllegalBlockSizeException e) {
+            // continue with the random premaster secret; doFinal leaves the cipher initialised either way
+        } catch (ProviderException e) {
+            // the cipher may have been left in an unknown state, so a fresh one is initialised next time
+            ciphers.get().remove(key);
+        }
+
+        premasterSecret[0] = (byte) (clientVersion >>> 8);
+        premasterSecret[1] = (byte) clientVersion;
+        return premasterSecret;
+    }
+
+    private Cipher getCipher(PrivateKey key) throws InvalidKeyException, NoSuchPaddingException, NoSuchAlgorithmException {
+        Map<PrivateKey, Cipher> threadCiphers = ciphers.get();
+
+        Cipher cipher = threadCiphers.get(key);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, key, random);
+            threadCiphers.put(key, cipher);
+        }
+
+        return cipher;
+    }
+}
@@ -1,39 +1,35 @@
 package jiayu.tls;
 
 import java.nio.ByteBuffer;
-import java.security.SecureRandom;
 
 public class Random {
     static final int BYTES = 32;
 
-    private final int gmtUnixTime;
-    private final byte[] randomBytes;
+    // gmt_unix_time followed by 28 random bytes
+    private final byte[] bytes;
 
     Random() {
-        gmtUnixTime = Math.toIntExact(System.currentTimeMillis() / 1000L);
-        randomBytes = new byte[28];
-        new SecureRandom().nextBytes(randomBytes);
+        bytes = new byte[BYTES];
+        RandomnessService.getDefault().nextBytes(bytes);
+        ByteBuffer.wrap(bytes).putInt(Math.toIntExact(System.currentTimeMillis() / 1000L));
     }
 
-    private Random(int gmtUnixTime, byte[] randomBytes) {
-        this.gmtUnixTime = gmtUnixTime;
-        this.randomBytes = randomBytes;
+    private Random(byte[] bytes) {
+        this.bytes = bytes;
     }
 
     public byte[] toBytes() {
-        return ByteBuffer.allocate(32)
-                .putInt(gmtUnixTime)
-                .put(randomBytes)
-                .array();
+        return bytes.clone();
     }
 
-    static Random fromBytes(ByteBuffer buf) {
-        int gmtUnixTime;
-        byte[] randomBytes = new byte[28];
+    void writeTo(ByteBuffer buf) {
+        buf.put(bytes);
+    }
 
-        gmtUnixTime = buf.getInt();
-        buf.get(randomBytes);
+    static Random fromBytes(ByteBuffer buf) {
+        byte[] bytes = new byte[BYTES];
+        buf.get(bytes);
 
-        return new Random(gmtUnixTime, randomBytes);
+        return new Random(bytes);
     }
 }
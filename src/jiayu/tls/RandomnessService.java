@@ -0,0 +1,123 @@
+package jiayu.tls;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Supplies the random values used in handshake messages, such as the hello randoms, session IDs and premaster
+ * secrets.
+ * <p>
+ * Each thread has its own DRBG, seeded once, and takes random bytes from a block generated in advance. Once half of
+ * the block has been used, the next block is generated by a background thread, so in the common case taking random
+ * bytes is an array copy without any locking. Bytes are cleared from the block as they are handed out, so they are
+ * never returned twice.
+ */
+class RandomnessService {
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final RandomnessService DEFAULT = new RandomnessService(DEFAULT_BLOCK_SIZE);
+
+    private final int blockSize;
+    private final ThreadLocal<Blocks> blocks = ThreadLocal.withInitial(() -> new Blocks());
+    private final ThreadPoolExecutor refiller;
+
+    RandomnessService(int blockSize) {
+        if (blockSize < 8) throw new IllegalArgumentException("blockSize must be at least 8");
+
+        this.blockSize = blockSize;
+
+        refiller = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "tls-random-refill");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refiller.allowCoreThreadTimeOut(true);
+    }
+
+    static RandomnessService getDefault() {
+        return DEFAULT;
+    }
+
+    void nextBytes(byte[] bytes) {
+        blocks.get().nextBytes(bytes, 0, bytes.length);
+    }
+
+    int nextInt() {
+        byte[] bytes = new byte[4];
+        nextBytes(bytes);
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | bytes[3] & 0xFF;
+    }
+
+    private static SecureRandom newDrbg() {
+        try {
+            // available from Java 9
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    /**
+     * The random blocks belonging to one thread.
+     */
+    private class Blocks {
+        private final SecureRandom drbg = newDrbg();
+        private final AtomicReference<byte[]> next = new AtomicReference<>();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+
+        private byte[] block = new byte[blockSize];
+        private int position;
+
+        Blocks() {
+            drbg.nextBytes(block);
+        }
+
+        void nextBytes(byte[] bytes, int off, int len) {
+            while (len > 0) {
+                if (position == block.length) swap();
+
+                int n = Math.min(len, block.length - position);
+                System.arraycopy(block, position, bytes, off, n);
+                Arrays.fill(block, position, position + n, (byte) 0);
+
+                position += n;
+                off += n;
+                len -= n;
+            }
+
+            if (position >= block.length / 2) requestRefill();
+        }
+
+        private void swap() {
+            byte[] ready = next.getAndSet(null);
+            if (ready == null) {
+                // the background refill has not finished, so generate the block on this thread
+                ready = block;
+                drbg.nextBytes(ready);
+            }
+
+            block = ready;
+            position = 0;
+        }
+
+        private void requestRefill() {
+            if (next.get() != null || !refilling.compareAndSet(false, true)) return;
+
+            refiller.execute(() -> {
+                try {
+                    byte[] ready = new byte[blockSize];
+                    drbg.nextBytes(ready);
+                    next.set(ready);
+                } finally {
+                    refilling.set(false);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package jiayu.tls;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of buffers large enough to hold any single record, so that records can be read, decrypted, encrypted and
+ * written without allocating a new array for every record.
+ * <p>
+ * Each thread keeps a few released buffers for itself, and buffers beyond those go to a bounded slab shared by all
+ * threads. A buffer is usually released by the thread which acquired it, but a buffer acquired by one thread may be
+ * released by another, as happens when a record is read on the connection's thread and decrypted by the
+ * {@link RecordProtectionPool}. When the slab is full, released buffers are left to the garbage collector.
+ * <p>
+ * A buffer must not be used after it has been released, and must not be released twice. Released buffers are
+ * zeroed up to their limit, so that the plaintext of one record is not left behind for the next user of the buffer.
+ */
+final class RecordBufferPool {
+    /**
+     * The size of every buffer: a record header followed by the largest TLSCiphertext fragment (RFC 5246 section
+     * 6.2.3).
+     */
+    static final int BUFFER_SIZE = Record.HEADER_LENGTH + RecordLayer.MAX_RECORD_LENGTH + 2048;
+
+    static final int THREAD_CACHE_SIZE = 4;
+    static final int DEFAULT_SHARED_CAPACITY = 256;
+
+    private static final RecordBufferPool DEFAULT = new RecordBufferPool(false, DEFAULT_SHARED_CAPACITY);
+
+    private static final byte[] ZEROS = new byte[BUFFER_SIZE];
+
+    private final boolean direct;
+    private final int sharedCapacity;
+
+    private final ThreadLocal<Queue<ByteBuffer>> threadCache = ThreadLocal.withInitial(ArrayDeque::new);
+    private final Queue<ByteBuffer> shared = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger sharedSize = new AtomicInteger();
+
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    /**
+     * @param direct         Whether to allocate direct buffers rather than heap buffers
+     * @param sharedCapacity The maximum number of buffers kept in the shared slab
+     */
+    RecordBufferPool(boolean direct, int sharedCapacity) {
+        this.direct = direct;
+        this.sharedCapacity = sharedCapacity;
+    }
+
+    /**
+     * Returns the pool of heap buffers shared by all connections.
+     */
+    static RecordBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating a new one if none are free.
+     *
+     * @return A buffer of {@link #BUFFER_SIZE} bytes, with its position at zero and its limit at its capacity
+     */
+    ByteBuffer acquire() {
+        acquired.increment();
+
+        ByteBuffer buffer = threadCache.get().poll();
+        if (buffer != null) {
+            threadCacheHits.increment();
+        } else if ((buffer = shared.poll()) != null) {
+            sharedSize.decrementAndGet();
+            sharedHits.increment();
+        } else {
+            allocated.increment();
+            return direct ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer acquired from this pool, overwriting its contents with zeros up to its limit.
+     *
+     * @param buffer The buffer, which the caller must not use again, with its limit at or past the end of the
+     *               region which was used
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() != BUFFER_SIZE || buffer.isDirect() != direct)
+            throw new IllegalArgumentException("buffer was not acquired from this pool");
+
+        int used = buffer.limit();
+        buffer.clear();
+        buffer.put(ZEROS, 0, used);
+
+        released.increment();
+
+        Queue<ByteBuffer> cache = threadCache.get();
+        if (cache.size() < THREAD_CACHE_SIZE) {
+            cache.add(buffer);
+        } else if (sharedSize.incrementAndGet() <= sharedCapacity) {
+            shared.add(buffer);
+        } else {
+            sharedSize.decrementAndGet();
+            discarded.increment();
+        }
+    }
+
+    /**
+     * Returns the number of buffers which have been allocated because the pool had none free.
+     */
+    long getAllocated() {
+        return allocated.sum();
+    }
+
+    long getAcquired() {
+        return acquired.sum();
+    }
+
+    /**
+     * Returns the number of acquisitions satisfied by the acquiring thread's own cache.
+     */
+    long getThreadCacheHits() {
+        return threadCacheHits.sum();
+    }
+
+    /**
+     * Returns the number of acquisitions satisfied by the shared slab.
+     */
+    long getSharedHits() {
+        return sharedHits.sum();
+    }
+
+    long getReleased() {
+        return released.sum();
+    }
+
+    /**
+     * Returns the number of released buffers which were left to the garbage collector because the slab was full.
+     */
+    long getDiscarded() {
+        return discarded.sum();
+    }
+
+    /**
+     * Returns the number of buffers in the shared slab.
+     */
+    int getShared() {
+        return sharedSize.get();
+    }
+}
@@ -0,0 +1,157 @@
+package jiayu.tls;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The keys which protect the records sent by one end of a connection, together with the cipher and mac instances
+ * which use them.
+ * <p>
+ * The keys are copied out of the {@link KeyMaterial} once, when the first record is protected, instead of for every
+ * record. Macs are initialised with the mac key once and reused, and ciphers are reused and only re-initialised
+ * with the next record's IV or nonce. Since records may be protected concurrently, instances are taken from and
+ * returned to small pools rather than shared. {@link #destroy()} wipes the keys and drops the pooled instances.
+ */
+final class RecordKeys {
+    private final BulkCipherAlgorithm encryptionAlgorithm;
+    private final MACAlgorithm macAlgorithm;
+
+    private final Key encKey;
+    private final Key macKey;
+    private final byte[] fixedIV;
+
+    private final Queue<Cipher> ciphers = new ConcurrentLinkedQueue<>();
+    private final Queue<Mac> macs = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean destroyed;
+
+    RecordKeys(BulkCipherAlgorithm encryptionAlgorithm, MACAlgorithm macAlgorithm, byte[] encKey, byte[] macKey, byte[] fixedIV) {
+        this.encryptionAlgorithm = encryptionAlgorithm;
+        this.macAlgorithm = macAlgorithm;
+        this.encKey = new Key(encryptionAlgorithm.keySpec, encKey);
+        this.macKey = new Key(macAlgorithm.name, macKey);
+        this.fixedIV = fixedIV;
+    }
+
+    SecretKey getEncryptionKey() {
+        checkNotDestroyed();
+        return encKey;
+    }
+
+    /**
+     * @return The implicit part of the AEAD nonce, which must not be modified
+     */
+    byte[] getFixedIV() {
+        checkNotDestroyed();
+        return fixedIV;
+    }
+
+    /**
+     * Takes a cipher for the bulk encryption algorithm, which must be initialised with {@link #getEncryptionKey()}
+     * before use.
+     */
+    Cipher takeCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        checkNotDestroyed();
+
+        Cipher cipher = ciphers.poll();
+        return cipher != null ? cipher : Cipher.getInstance(encryptionAlgorithm.transformation);
+    }
+
+    /**
+     * Returns a cipher after a record has been protected with it. A cipher which failed part way through should be
+     * dropped instead.
+     */
+    void releaseCipher(Cipher cipher) {
+        if (!destroyed) ciphers.offer(cipher);
+    }
+
+    /**
+     * Takes a mac which is already initialised with the mac key.
+     */
+    Mac takeMac() throws NoSuchAlgorithmException, InvalidKeyException {
+        checkNotDestroyed();
+
+        Mac mac = macs.poll();
+        if (mac == null) {
+            mac = Mac.getInstance(macAlgorithm.name);
+            mac.init(macKey);
+        }
+
+        return mac;
+    }
+
+    /**
+     * Returns a mac after {@link Mac#doFinal()}, which leaves it ready for the next record.
+     */
+    void releaseMac(Mac mac) {
+        if (!destroyed) macs.offer(mac);
+    }
+
+    /**
+     * Overwrites the keys and IV with zeros and drops the pooled ciphers and macs, which hold their own copies of
+     * the keys.
+     */
+    void destroy() {
+        destroyed = true;
+        encKey.destroy();
+        macKey.destroy();
+        Arrays.fill(fixedIV, (byte) 0);
+        ciphers.clear();
+        macs.clear();
+    }
+
+    private void checkNotDestroyed() {
+        if (destroyed) throw new IllegalStateException("record keys have been destroyed");
+    }
+
+    /**
+     * A secret key which, unlike {@link javax.crypto.spec.SecretKeySpec}, can be wiped.
+     */
+    private static final class Key implements SecretKey {
+        private static final long serialVersionUID = 1L;
+
+        private final String algorithm;
+        private final byte[] key;
+
+        private volatile boolean destroyed;
+
+        Key(String algorithm, byte[] key) {
+            this.algorithm = algorithm;
+            this.key = key;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            if (destroyed) throw new IllegalStateException("key has been destroyed");
+            return key.clone();
+        }
+
+        @Override
+        public void destroy() {
+            destroyed = true;
+            Arrays.fill(key, (byte) 0);
+        }
+
+        @Override
+        public boolean isDestroyed() {
+            return destroyed;
+        }
+    }
+}
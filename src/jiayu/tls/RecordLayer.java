@@ -3,11 +3,21 @@ package jiayu.tls;
 import java.io.IOException;
 import java.net.Socket;
 
+/**
+ * Reads and writes TLS records over a transport.
+ * <p>
+ * The read and write paths are independent: one thread may read incoming messages while any number of threads
+ * write outgoing messages concurrently. Incoming messages must only be read by one thread at a time.
+ */
 public interface RecordLayer {
     int MAX_RECORD_LENGTH = 16384;
 
     static RecordLayer getInstance(Socket socket, ConnectionState readState, ConnectionState writeState) throws IOException {
-        return new DefaultRecordLayerImpl(socket, writeState, readState);
+        return getInstance(Transport.of(socket), readState, writeState);
+    }
+
+    static RecordLayer getInstance(Transport transport, ConnectionState readState, ConnectionState writeState) throws IOException {
+        return new DefaultRecordLayerImpl(transport, readState, writeState);
     }
 
     GenericProtocolMessage getNextIncomingMessage() throws IOException, FatalAlertException;
@@ -24,5 +34,12 @@ public interface RecordLayer {
 
     void close() throws IOException;
 
+    Transport getTransport();
+
+    /**
+     * Returns the socket underlying this record layer.
+     *
+     * @return The socket, or null if the transport does not use one
+     */
     Socket getSocket();
 }
@@ -0,0 +1,51 @@
+package jiayu.tls;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by all connections for protecting and unprotecting records in parallel.
+ * <p>
+ * Records are only handed to the pool when a connection has several of them to process at once, such as during a
+ * bulk transfer. On a single processor there is nothing to gain, so no pool is created.
+ */
+final class RecordProtectionPool {
+    /**
+     * System property which sets the number of threads in the pool, overriding the number of processors.
+     * A value below 2 disables parallel record processing.
+     */
+    static final String THREADS_PROPERTY = "jiayu.tls.recordThreads";
+
+    /**
+     * The maximum number of records of one connection which may be in the pool at once.
+     */
+    static final int MAX_RECORDS_IN_FLIGHT = 16;
+
+    private static final ExecutorService DEFAULT =
+            create(Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+
+    private RecordProtectionPool() {
+
+    }
+
+    /**
+     * Returns the shared pool.
+     *
+     * @return The pool, or null if records should be processed on the calling thread
+     */
+    static ExecutorService getDefault() {
+        return DEFAULT;
+    }
+
+    private static ExecutorService create(int threads) {
+        if (threads < 2) return null;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "tls-record-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
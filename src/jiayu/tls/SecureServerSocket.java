@@ -1,138 +1,370 @@
 package jiayu.tls;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.xml.bind.DatatypeConverter;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
+import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 @SuppressWarnings("Duplicates")
 public class SecureServerSocket {
     private static final Logger logger = Logger.getLogger("jiayu.tls.SecureServerSocket");
+    private final ServerCredentialSelector credentialSelector;
+    private CipherSuiteNegotiator cipherSuiteNegotiator = CipherSuiteNegotiator.getDefault();
+    private PrivateKeyOperator privateKeyOperator = PrivateKeyOperator.getDefault();
     private byte[] serverCert;
     private PrivateKey serverKey;
 
     private ServerSocket serverSocket;
 
     public SecureServerSocket() {
-
+        credentialSelector = new ServerCredentialSelector();
     }
 
+    /**
+     * Sets the private key used for clients which do not request a known host name.
+     */
     public void setServerKey(Path keyFile) throws IOException, InvalidKeySpecException, NoSuchAlgorithmException {
-        if (!Files.exists(keyFile)) throw new FileNotFoundException();
-        if (!Files.isRegularFile(keyFile)) throw new IllegalArgumentException();
-
-        byte[] keyBytes = Files.readAllBytes(keyFile);
-        PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(keyBytes);
-        serverKey = KeyFactory.getInstance("RSA").generatePrivate(keySpec);
+        serverKey = ServerCredentials.readPrivateKey(keyFile);
+        if (serverCert != null) credentialSelector.setDefault(new ServerCredentials(serverCert, serverKey));
     }
 
+    /**
+     * Sets the certificate sent to clients which do not request a known host name.
+     */
     public void setServerCert(Path cert) throws IOException {
-        if (!Files.exists(cert)) throw new FileNotFoundException();
+        serverCert = ServerCredentials.readCertificate(cert);
+        if (serverKey != null) credentialSelector.setDefault(new ServerCredentials(serverCert, serverKey));
+    }
+
+    /**
+     * Adds a certificate and private key to use for clients requesting a host name through the server_name extension.
+     * Host names may be added while the socket is accepting connections.
+     *
+     * @param hostName The host name, which may start with a *. wildcard label
+     * @param certFile The certificate file
+     * @param keyFile  The private key file
+     */
+    public void addServerCredentials(String hostName, Path certFile, Path keyFile) throws IOException, InvalidKeySpecException, NoSuchAlgorithmException {
+        credentialSelector.add(hostName, ServerCredentials.load(certFile, keyFile));
+    }
+
+    public CipherSuiteNegotiator getCipherSuiteNegotiator() {
+        return cipherSuiteNegotiator;
+    }
+
+    public void setCipherSuiteNegotiator(CipherSuiteNegotiator cipherSuiteNegotiator) {
+        this.cipherSuiteNegotiator = cipherSuiteNegotiator;
+    }
 
-        serverCert = Files.readAllBytes(cert);
+    public ServerCredentialSelector getCredentialSelector() {
+        return credentialSelector;
     }
 
     public void bind(int port) throws IOException {
-        if (serverCert == null || serverKey == null)
+        if (credentialSelector.isEmpty())
             throw new IllegalStateException("not ready to accept connections");
         this.serverSocket = new ServerSocket(port);
     }
 
     public SecureSocket acceptSecured() throws IOException {
-        if (serverSocket == null || serverCert == null || serverKey == null)
+        if (serverSocket == null || credentialSelector.isEmpty())
             throw new IllegalStateException("not ready to accept connections");
 
         Socket socket = serverSocket.accept();
 
-        if (serverCert == null) throw new IllegalStateException();
+        return acceptSecured(Transport.of(socket));
+    }
 
-        logger.info("Initiating handshake with " + socket.getInetAddress().getHostAddress());
+    /**
+     * Performs a handshake with a client over an already connected transport. The calling thread waits while the
+     * private key operator decrypts or signs; use {@link #acceptSecuredAsync(Transport, Executor)} to release it.
+     *
+     * @param transport The transport connected to the client
+     * @return The connected socket
+     * @throws IOException If an I/O error occurs or the handshake fails
+     */
+    public SecureSocket acceptSecured(Transport transport) throws IOException {
+        if (credentialSelector.isEmpty())
+            throw new IllegalStateException("not ready to accept connections");
 
-        SecurityParameters currSecParams = new SecurityParameters(ConnectionEnd.CLIENT);
-        ConnectionState currReadState = new ConnectionState();
-        ConnectionState currWriteState = new ConnectionState();
+        ServerHandshake handshake = new ServerHandshake(transport);
+        try {
+            handshake.receiveClientHello();
+            await(handshake.signServerKeyExchange());
+            handshake.receiveClientKeyExchange();
+            return handshake.finish(await(handshake.computePremasterSecret()));
+        } catch (FatalAlertException e) {
+            handshake.failed(e);
+            throw new IOException();
+        } catch (IOException | RuntimeException e) {
+            handshake.failed(e);
+            throw e;
+        }
+    }
 
+    /**
+     * Performs a handshake with a client over an already connected transport without blocking on private key
+     * operations.
+     * <p>
+     * Reading and writing handshake messages runs on the given executor. While the private key operator decrypts
+     * the premaster secret or signs the ServerKeyExchange, the handshake is suspended and holds no thread, and it is
+     * resumed on the executor once the operation completes. If the operator is overloaded, handshakes wait in its
+     * queue instead of occupying the executor.
+     *
+     * @param transport The transport connected to the client
+     * @param executor  The executor which performs the handshake I/O
+     * @return A future for the connected socket, which completes exceptionally with a {@link CompletionException}
+     * caused by an {@link IOException} if an I/O error occurs, or by a {@link FatalAlertException} if the handshake
+     * fails
+     */
+    public CompletableFuture<SecureSocket> acceptSecuredAsync(Transport transport, Executor executor) {
+        if (credentialSelector.isEmpty())
+            throw new IllegalStateException("not ready to accept connections");
+
+        ServerHandshake handshake;
+        try {
+            handshake = new ServerHandshake(transport);
+        } catch (IOException e) {
+            CompletableFuture<SecureSocket> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new CompletionException(e));
+            return failed;
+        }
+
+        CompletableFuture<SecureSocket> result = CompletableFuture
+                .supplyAsync(() -> call(() -> {
+                    handshake.receiveClientHello();
+                    return handshake.signServerKeyExchange();
+                }), executor)
+                .thenCompose(signed -> signed)
+                .thenApplyAsync(v -> call(() -> {
+                    handshake.receiveClientKeyExchange();
+                    return handshake.computePremasterSecret();
+                }), executor)
+                .thenCompose(premasterSecret -> premasterSecret)
+                .thenApplyAsync(premasterSecret -> call(() -> handshake.finish(premasterSecret)), executor)
+                .handle((socket, e) -> {
+                    if (e == null) return socket;
+
+                    // failed private key operations are reported the same way as in acceptSecured
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    if (!(cause instanceof IOException)) cause = toFatalAlert(cause);
+
+                    handshake.failed(cause);
+                    throw new CompletionException(cause);
+                });
+
+        return result;
+    }
+
+    public PrivateKeyOperator getPrivateKeyOperator() {
+        return privateKeyOperator;
+    }
+
+    /**
+     * Sets the operator which performs private key operations during handshakes. By default, operations run on the
+     * pool returned by {@link PrivateKeyOperator#getDefault()}.
+     */
+    public void setPrivateKeyOperator(PrivateKeyOperator privateKeyOperator) {
+        if (privateKeyOperator == null) throw new IllegalArgumentException();
+
+        this.privateKeyOperator = privateKeyOperator;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws FatalAlertException, InterruptedIOException {
         try {
-            currReadState.init(currSecParams);
-            currWriteState.init(currSecParams);
-            logger.fine("Initialising current read and write states...");
-            logger.fine("Current cipher suite: " + currSecParams.getCipherSuite().name());
-        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-            e.printStackTrace();
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw toFatalAlert(e.getCause());
         }
+    }
 
-        RecordLayer recordLayer = RecordLayer.getInstance(socket, currReadState, currWriteState);
+    private static FatalAlertException toFatalAlert(Throwable cause) {
+        if (cause instanceof CompletionException) cause = cause.getCause();
 
-        SecurityParameters securityParameters = new SecurityParameters(ConnectionEnd.SERVER);
-        ConnectionState pendingReadState = new ConnectionState();
-        ConnectionState pendingWriteState = new ConnectionState();
+        if (cause instanceof FatalAlertException) return (FatalAlertException) cause;
+        if (cause instanceof InvalidKeyException || cause instanceof SignatureException)
+            return new FatalAlertException(AlertDescription.DECRYPT_ERROR);
 
-        // receive client hello
-        logger.fine("Waiting for ClientHello... ");
-        ClientHello clientHello;
+        // includes operations rejected by an overloaded operator
+        return new FatalAlertException(AlertDescription.INTERNAL_ERROR);
+    }
+
+    private static <T> T call(HandshakeStep<T> step) {
         try {
+            return step.run();
+        } catch (IOException | FatalAlertException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface HandshakeStep<T> {
+        T run() throws IOException, FatalAlertException;
+    }
+
+    /**
+     * The state of the server side of one handshake, which is advanced one step at a time so that it can be
+     * suspended while a private key operation is in progress.
+     */
+    private class ServerHandshake {
+        private final Transport transport;
+        private final RecordLayer recordLayer;
+        private final SecurityParameters securityParameters = new SecurityParameters(ConnectionEnd.SERVER);
+        private final ConnectionState pendingReadState = new ConnectionState();
+        private final ConnectionState pendingWriteState = new ConnectionState();
+        private final TLSMetrics.HandshakeTimer handshakeTimer;
+        private final PrivateKeyOperator privateKeyOperator = SecureServerSocket.this.privateKeyOperator;
+
+        private ServerCredentials credentials;
+        private ClientHello clientHello;
+        private ServerHello serverHello;
+        private Certificate certificate;
+        private ECDHEKeyExchange keyExchange;
+        private ServerKeyExchange serverKeyExchange;
+        private ServerHelloDone serverHelloDone;
+        private ClientKeyExchange clientKeyExchange;
+
+        ServerHandshake(Transport transport) throws IOException {
+            this.transport = transport;
+
+            logger.info("Initiating handshake with " + transport);
+
+            SecurityParameters currSecParams = new SecurityParameters(ConnectionEnd.CLIENT);
+            ConnectionState currReadState = new ConnectionState();
+            ConnectionState currWriteState = new ConnectionState();
+
+            try {
+                currReadState.init(currSecParams);
+                currWriteState.init(currSecParams);
+                logger.fine("Initialising current read and write states...");
+                logger.fine("Current cipher suite: " + currSecParams.getCipherSuite().name());
+            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                e.printStackTrace();
+            }
+
+            recordLayer = RecordLayer.getInstance(transport, currReadState, currWriteState);
+            handshakeTimer = TLSMetrics.getDefault().startHandshake(ConnectionEnd.SERVER);
+        }
+
+        /**
+         * Receives the ClientHello, then chooses the credentials and cipher suite and sends the ServerHello and
+         * Certificate.
+         */
+        void receiveClientHello() throws IOException, FatalAlertException {
+            // receive client hello
+            logger.fine("Waiting for ClientHello... ");
             clientHello = (ClientHello) recordLayer.getNextIncomingMessage()
                     .asHandshakeMessage(HandshakeType.CLIENT_HELLO);
 //            logger.fine(clientHello);
 
             securityParameters.setClientRandom(clientHello.getRandom().toBytes());
 
+            // choose certificate and key
+            String serverName = clientHello.getServerName();
+            logger.fine("Client requested server name: " + serverName);
+            credentials = credentialSelector.select(serverName);
+            if (credentials == null) throw new FatalAlertException(AlertDescription.UNRECOGNIZED_NAME);
+
             // choose cipher suite
             logger.fine("Client offered cipher suites: " + Arrays.toString(clientHello.getCipherSuites()));
             logger.fine("Choosing cipher suite... ");
-            System.out.flush();
-            CipherSuite selectedCipherSuite = clientHello.getCipherSuites()[0];
+            CipherSuite selectedCipherSuite = cipherSuiteNegotiator.negotiate(clientHello);
             logger.fine("Selected cipher suite: " + selectedCipherSuite.name());
 
             securityParameters.setCipherSuite(selectedCipherSuite);
 
             // send server hello
             logger.fine("Sending ServerHello... ");
-            ServerHello serverHello = new ServerHello(selectedCipherSuite);
+            serverHello = new ServerHello(selectedCipherSuite);
             recordLayer.putNextOutgoingMessage(serverHello);
 
             securityParameters.setServerRandom(serverHello.getRandom().toBytes());
 
             // send server serverCert
             logger.fine("Sending server Certificate... ");
-            Certificate certificate = new Certificate(new ASN1Cert(this.serverCert));
+            certificate = new Certificate(new ASN1Cert(credentials.getCertificate()));
             recordLayer.putNextOutgoingMessage(certificate);
 
+            if (selectedCipherSuite.keyExchangeAlgorithm == KeyExchangeAlgorithm.ECDHE_RSA) {
+                keyExchange = new ECDHEKeyExchange();
+            }
+        }
+
+        /**
+         * Signs the ServerKeyExchange if the key exchange is ephemeral.
+         */
+        CompletableFuture<Void> signServerKeyExchange() {
+            if (keyExchange == null) return CompletableFuture.completedFuture(null);
+
+            byte[] signedContent = ServerKeyExchange.signedContent(keyExchange,
+                    clientHello.getRandom().toBytes(), serverHello.getRandom().toBytes());
+            return privateKeyOperator.sign(credentials.getPrivateKey(), ServerKeyExchange.SIGNATURE_ALGORITHM, signedContent)
+                    .thenAccept(signature -> serverKeyExchange = ServerKeyExchange.fromSignature(keyExchange, signature));
+        }
+
+        /**
+         * Sends the ServerKeyExchange if there is one and the ServerHelloDone, then receives the ClientKeyExchange.
+         */
+        void receiveClientKeyExchange() throws IOException, FatalAlertException {
+            // send server key exchange if the key exchange is ephemeral
+            if (serverKeyExchange != null) {
+                logger.fine("Sending ServerKeyExchange... ");
+                recordLayer.putNextOutgoingMessage(serverKeyExchange);
+            }
+
             // send server hello done
             logger.fine("Sending ServerHelloDone... ");
-            ServerHelloDone serverHelloDone = new ServerHelloDone();
+            serverHelloDone = new ServerHelloDone();
             recordLayer.putNextOutgoingMessage(serverHelloDone);
+            handshakeTimer.endPhase(HandshakePhase.HELLO);
 
             // receive ClientKeyExchange
             logger.fine("Waiting for ClientKeyExchange... ");
-            ClientKeyExchange clientKeyExchange = (ClientKeyExchange) recordLayer.getNextIncomingMessage().asHandshakeMessage(HandshakeType.CLIENT_KEY_EXCHANGE);
+            clientKeyExchange = (ClientKeyExchange) recordLayer.getNextIncomingMessage().asHandshakeMessage(HandshakeType.CLIENT_KEY_EXCHANGE);
+        }
+
+        /**
+         * Computes the premaster secret from the ClientKeyExchange, decrypting it with the private key operator if
+         * the key exchange is RSA.
+         */
+        CompletableFuture<PremasterSecret> computePremasterSecret() {
             logger.fine("Reading premaster secret...");
 
-            // read premaster secret
-            PremasterSecret premasterSecret = PremasterSecret.fromBytes(clientKeyExchange.getEncryptedPremasterSecret());
-            try {
-                premasterSecret.decrypt(serverKey, clientHello.getClientVersion());
-            } catch (BadPaddingException | InvalidKeyException | IllegalBlockSizeException e) {
-                e.printStackTrace();
-                throw new FatalAlertException(AlertDescription.DECRYPT_ERROR);
-            } catch (NoSuchPaddingException | NoSuchAlgorithmException e) {
-                throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
+            if (keyExchange != null) {
+                CompletableFuture<PremasterSecret> premasterSecret = new CompletableFuture<>();
+                try {
+                    premasterSecret.complete(keyExchange.generatePremasterSecret(clientKeyExchange.getECDHPublicPoint()));
+                } catch (FatalAlertException e) {
+                    premasterSecret.completeExceptionally(e);
+                }
+                return premasterSecret;
             }
 
+            byte[] encryptedPremasterSecret = PremasterSecret.fromBytes(clientKeyExchange.getEncryptedPremasterSecret()).getBytes();
+            return privateKeyOperator.decryptPremasterSecret(credentials.getPrivateKey(), encryptedPremasterSecret, clientHello.getClientVersion())
+                    .thenApply(PremasterSecret::fromDecryptedBytes);
+        }
+
+        /**
+         * Derives the keys from the premaster secret and exchanges ChangeCipherSpec and Finished messages.
+         */
+        SecureSocket finish(PremasterSecret premasterSecret) throws IOException, FatalAlertException {
             logger.fine("Decrypted premaster secret: " + DatatypeConverter.printBase64Binary(premasterSecret.getBytes()));
 
             // generate master secret
@@ -153,13 +385,15 @@ public class SecureServerSocket {
             //noinspection Duplicates
             try {
                 logger.fine("Initialising pending read and write states...");
-                pendingWriteState.init(securityParameters);
-                pendingReadState.init(securityParameters);
+                KeyMaterial keyMaterial = KeyMaterial.derive(securityParameters);
+                pendingWriteState.init(securityParameters, keyMaterial);
+                pendingReadState.init(securityParameters, keyMaterial);
                 logger.fine("Pending cipher suite: " + securityParameters.getCipherSuite().name());
             } catch (NoSuchAlgorithmException | InvalidKeyException e) {
                 e.printStackTrace();
                 throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
             }
+            handshakeTimer.endPhase(HandshakePhase.KEY_EXCHANGE);
 
             // receive client ChangeCipherSpec
             /*
@@ -173,7 +407,6 @@ public class SecureServerSocket {
 
             // make pending read state current
             recordLayer.updateReadState(pendingReadState);
-            currReadState = pendingReadState;
 
             // ideally, the record layer should have decrypted the message for us
             logger.fine("Waiting for client Finished....");
@@ -181,8 +414,10 @@ public class SecureServerSocket {
 
             // verify client Finished message
             logger.fine("Verifying client Finished... ");
-            Finished clientFinishedVerify = Finished.createClientFinishedMessage(masterSecret,
-                    clientHello, serverHello, certificate, serverHelloDone, clientKeyExchange);
+            HandshakeMessage[] handshakeMessages = serverKeyExchange == null
+                    ? new HandshakeMessage[]{clientHello, serverHello, certificate, serverHelloDone, clientKeyExchange}
+                    : new HandshakeMessage[]{clientHello, serverHello, certificate, serverKeyExchange, serverHelloDone, clientKeyExchange};
+            Finished clientFinishedVerify = Finished.createClientFinishedMessage(masterSecret, handshakeMessages);
             if (!Arrays.equals(clientFinished.getContent(), clientFinishedVerify.getContent()))
                 throw new FatalAlertException(AlertDescription.DECRYPT_ERROR);
 
@@ -198,23 +433,26 @@ public class SecureServerSocket {
 
             // make the pending write state the current write state
             recordLayer.updateWriteState(pendingWriteState);
-            currWriteState = pendingWriteState;
 
             // send server Finished message
             logger.fine("Sending server Finished...");
-            Finished serverFinished = Finished.createServerFinishedMessage(masterSecret,
-                    clientHello, serverHello, certificate, serverHelloDone, clientKeyExchange, clientFinished);
+            handshakeMessages = Arrays.copyOf(handshakeMessages, handshakeMessages.length + 1);
+            handshakeMessages[handshakeMessages.length - 1] = clientFinished;
+            Finished serverFinished = Finished.createServerFinishedMessage(masterSecret, handshakeMessages);
             recordLayer.putNextOutgoingMessage(serverFinished);
+            handshakeTimer.endPhase(HandshakePhase.FINISHED);
+            handshakeTimer.completed();
 
             logger.info("Handshake complete.");
 
             return new SecureSocket(recordLayer);
-        } catch (FatalAlertException e) {
-            e.printStackTrace();
-            throw new IOException();
         }
-    }
 
+        void failed(Throwable cause) {
+            handshakeTimer.failed();
+            logger.warning("Handshake with " + transport + " failed: " + cause);
+        }
+    }
 
     public void close() throws IOException {
         serverSocket.close();
@@ -17,7 +17,6 @@ import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.logging.Logger;
 
 @SuppressWarnings("Duplicates")
@@ -25,15 +24,20 @@ public class SecureSocket {
     private static final Logger logger = Logger.getLogger("jiayu.tls.SecureSocket");
 
     public static final short CLIENT_VERSION = 0x0303;
-    private static final CipherSuite[] SUPPORTED_CIPHER_SUITES = new CipherSuite[]{CipherSuite.TLS_RSA_WITH_AES_128_CBC_SHA256};
-    
-    private Socket socket;
+
+    private Transport transport;
     private RecordLayer recordLayer;
 
     SecureSocketInputStream in;
     SecureSocketOutputStream out;
 
-    private HashSet<X509Certificate> caCerts;
+    private static final CertificateChainCache verifiedChains = new CertificateChainCache();
+
+    private TrustStore trustStore = TrustStore.getDefault();
+    // until a CA certificate is added, the default store is used as it is instead of being copied
+    private boolean usingDefaultTrustStore = true;
+    private CipherSuiteNegotiator cipherSuiteNegotiator = CipherSuiteNegotiator.getDefault();
+    private boolean useVerifiedChainCache = true;
 
     SecureSocket(RecordLayer recordLayer) {
         this.recordLayer = recordLayer;
@@ -47,32 +51,71 @@ public class SecureSocket {
         connectSecured(host, port);
     }
 
-    public void addCACertificate(X509Certificate caCert) {
-        if (caCerts == null) caCerts = new HashSet<>();
+    public TrustStore getTrustStore() {
+        return trustStore;
+    }
+
+    public void setTrustStore(TrustStore trustStore) {
+        this.trustStore = trustStore;
+        usingDefaultTrustStore = false;
+    }
 
-        caCerts.add(caCert);
-        logger.info(String.format("Added CA cert for %s.", caCert.getSubjectX500Principal().getName()));
+    /**
+     * Sets the cipher suites offered by this client, and their order of preference.
+     */
+    public void setCipherSuiteNegotiator(CipherSuiteNegotiator cipherSuiteNegotiator) {
+        this.cipherSuiteNegotiator = cipherSuiteNegotiator;
+    }
+
+    /**
+     * Sets whether a server certificate chain which has already been verified may be accepted without checking
+     * its signatures again. This is enabled by default.
+     */
+    public void setUseVerifiedChainCache(boolean useVerifiedChainCache) {
+        this.useVerifiedChainCache = useVerifiedChainCache;
+    }
+
+    /**
+     * Trusts a CA certificate for this socket only. The default trust store is copied the first time, so that the
+     * certificate is not trusted by other sockets.
+     */
+    public void addCACertificate(X509Certificate caCert) {
+        if (usingDefaultTrustStore) {
+            trustStore = TrustStore.copyOf(trustStore);
+            usingDefaultTrustStore = false;
+        }
+        trustStore.addTrustAnchor(caCert);
     }
 
     public void addCACertificate(Path caCert) throws IOException, CertificateException {
         if (!Files.exists(caCert)) throw new FileNotFoundException();
         if (!Files.isRegularFile(caCert)) throw new IllegalArgumentException();
 
-        if (caCerts == null) caCerts = new HashSet<>();
-
         X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509")
                 .generateCertificate(Files.newInputStream(caCert));
 
-        caCerts.add(cert);
-        logger.info(String.format("Added CA cert for %s.", cert.getSubjectX500Principal().getName()));
+        addCACertificate(cert);
     }
 
     public void connectSecured(String host, int port) throws IOException {
-        if (caCerts == null || caCerts.isEmpty()) throw new IllegalStateException("no CA certs specified");
+        if (trustStore.isEmpty()) throw new IllegalStateException("no CA certs specified");
+
+        connectSecured(Transport.of(new Socket(host, port)), host);
+    }
+
+    /**
+     * Performs a handshake with a server over an already connected transport.
+     *
+     * @param transport The transport connected to the server
+     * @param host      The host name of the server, which is sent in the server_name extension
+     * @throws IOException If an I/O error occurs
+     */
+    public void connectSecured(Transport transport, String host) throws IOException {
+        if (trustStore.isEmpty()) throw new IllegalStateException("no CA certs specified");
 
         logger.entering(this.getClass().getSimpleName(), "connectSecured");
-        
-        socket = new Socket(host, port);
+
+        this.transport = transport;
 
         logger.info("Initiating handshake...");
         
@@ -90,15 +133,21 @@ public class SecureSocket {
             e.printStackTrace();
         }
 
-        RecordLayer recordLayer = RecordLayer.getInstance(socket, currReadState, currWriteState);
+        RecordLayer recordLayer = RecordLayer.getInstance(transport, currReadState, currWriteState);
 
         SecurityParameters securityParameters = new SecurityParameters(ConnectionEnd.CLIENT);
         ConnectionState pendingReadState = new ConnectionState();
         ConnectionState pendingWriteState = new ConnectionState();
 
+        TLSMetrics.HandshakeTimer handshakeTimer = TLSMetrics.getDefault().startHandshake(ConnectionEnd.CLIENT);
+
         // send client hello
         logger.fine("Sending ClientHello... ");
-        ClientHello clientHello = new ClientHello(SUPPORTED_CIPHER_SUITES);
+        // RFC 6066 does not permit literal IP addresses in server_name
+        CipherSuite[] offeredCipherSuites = cipherSuiteNegotiator.getPreferences();
+        ClientHello clientHello = isHostName(host)
+                ? new ClientHello(host, offeredCipherSuites)
+                : new ClientHello(offeredCipherSuites);
         recordLayer.putNextOutgoingMessage(clientHello);
 
         securityParameters.setClientRandom(clientHello.getRandom().toBytes());
@@ -109,6 +158,8 @@ public class SecureSocket {
             ServerHello serverHello = (ServerHello) recordLayer.getNextIncomingMessage()
                     .asHandshakeMessage(HandshakeType.SERVER_HELLO);
 
+            if (!Arrays.asList(offeredCipherSuites).contains(serverHello.getCipherSuite()))
+                throw new FatalAlertException(AlertDescription.HANDSHAKE_FAILURE);
             securityParameters.setCipherSuite(serverHello.getCipherSuite());
             securityParameters.setServerRandom(serverHello.getRandom().toBytes());
 
@@ -118,73 +169,30 @@ public class SecureSocket {
             Certificate certificate = (Certificate) recordLayer.getNextIncomingMessage()
                     .asHandshakeMessage(HandshakeType.CERTIFICATE);
 
+            // receive server key exchange if the key exchange is ephemeral
+            CipherSuite selectedCipherSuite = serverHello.getCipherSuite();
+            ServerKeyExchange serverKeyExchange = null;
+            if (selectedCipherSuite.keyExchangeAlgorithm == KeyExchangeAlgorithm.ECDHE_RSA) {
+                logger.fine("Waiting for ServerKeyExchange... ");
+                serverKeyExchange = (ServerKeyExchange) recordLayer.getNextIncomingMessage()
+                        .asHandshakeMessage(HandshakeType.SERVER_KEY_EXCHANGE);
+            }
 
             // wait for serverhellodone
             logger.fine("Waiting for ServerHelloDone... ");
             System.out.flush();
             ServerHelloDone serverHelloDone = (ServerHelloDone) recordLayer.getNextIncomingMessage()
                     .asHandshakeMessage(HandshakeType.SERVER_HELLO_DONE);
+            handshakeTimer.endPhase(HandshakePhase.HELLO);
 
             // authenticate server certificate
-            // FIXME: 15/04/2016 authenticates each cert individually instead of as a chain
-            /*
-                I need to check each certificate against the next cert in the certificate list
-                if the certificate is the last ecrt in the certificate list
-                we check it against the cacert instead
-
-                the server cert is always the first certificate in the list
-             */
-            PublicKey serverPublicKey;
             logger.fine("Authenticating server certificates... ");
-            CertificateList certChain = certificate.getCertificateList();
-            if (certChain.getContents().isEmpty()) throw new FatalAlertException(AlertDescription.BAD_CERTIFICATE);
-            X509Certificate serverCert = null;
-            X509Certificate prev = null;
-            X509Certificate current;
-            try {
-                for (ASN1Cert asn1Cert : certChain.getContents()) {
-                    if (prev == null) {
-                        serverCert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(asn1Cert.getContent()));
-                        String serverDN = serverCert.getSubjectX500Principal().getName();
-                        logger.fine("Server DN: " + serverDN);
-//                        if (!serverDN.equals("CN=10.12.17.118,O=Internet Widgits Pty Ltd,ST=Some-State,C=SG")) {
-//                            throw new FatalAlertException(AlertDescription.HANDSHAKE_FAILURE);
-//                        }
-                        serverCert.checkValidity();
-                        prev = serverCert;
-                    } else {
-                        current = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(asn1Cert.getContent()));
-                        logger.fine("Current DN: " + current.getSubjectX500Principal().getName());
-                        current.checkValidity();
-                        prev.verify(current.getPublicKey());
-                        prev = current;
-                    }
-                }
-                assert prev != null;
-                boolean verified = false;
-                for (X509Certificate caCert : caCerts) {
-                    try {
-                        prev.verify(caCert.getPublicKey());
-                        verified = true;
-                        break;
-                    } catch (CertificateException | NoSuchAlgorithmException | InvalidKeyException | SignatureException | NoSuchProviderException ignored) {
-                    }
-                }
-                if (!verified) throw new FatalAlertException(AlertDescription.BAD_CERTIFICATE);
-                serverPublicKey = serverCert.getPublicKey();
-                logger.fine("Server verified.");
-
-            } catch (CertificateExpiredException e) {
-                throw new FatalAlertException(AlertDescription.CERTIFICATE_EXPIRED);
-            } catch (CertificateException | SignatureException e) {
-                throw new FatalAlertException(AlertDescription.BAD_CERTIFICATE);
-            } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchProviderException e) {
-                throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
-            }
+            PublicKey serverPublicKey = authenticate(certificate.getCertificateList()).getPublicKey();
+            logger.fine("Server verified.");
+            handshakeTimer.endPhase(HandshakePhase.AUTHENTICATION);
 
             // generate and send pre-master key
             logger.fine("Generating premaster secret...");
-            CipherSuite selectedCipherSuite = serverHello.getCipherSuite();
             PremasterSecret premasterSecret;
             ClientKeyExchange clientKeyExchange;
             if (selectedCipherSuite.keyExchangeAlgorithm == KeyExchangeAlgorithm.RSA) {
@@ -197,6 +205,14 @@ public class SecureSocket {
                 }
                 logger.fine("Sending ClientKeyExchange...");
                 recordLayer.putNextOutgoingMessage(clientKeyExchange);
+            } else if (selectedCipherSuite.keyExchangeAlgorithm == KeyExchangeAlgorithm.ECDHE_RSA) {
+                logger.fine("Verifying ServerKeyExchange...");
+                serverKeyExchange.verify(serverPublicKey, clientHello.getRandom().toBytes(), serverHello.getRandom().toBytes());
+                ECDHEKeyExchange keyExchange = new ECDHEKeyExchange();
+                premasterSecret = keyExchange.generatePremasterSecret(serverKeyExchange.getPublicPoint());
+                clientKeyExchange = ClientKeyExchange.fromECDHPublicPoint(keyExchange.getPublicPoint());
+                logger.fine("Sending ClientKeyExchange...");
+                recordLayer.putNextOutgoingMessage(clientKeyExchange);
             } else {
                 throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
             }
@@ -218,13 +234,15 @@ public class SecureSocket {
             // initialise the next read and write states
             try {
                 logger.fine("Initialising pending read and write states...");
-                pendingWriteState.init(securityParameters);
-                pendingReadState.init(securityParameters);
+                KeyMaterial keyMaterial = KeyMaterial.derive(securityParameters);
+                pendingWriteState.init(securityParameters, keyMaterial);
+                pendingReadState.init(securityParameters, keyMaterial);
                 logger.fine("Pending cipher suite: " + securityParameters.getCipherSuite().name());
             } catch (NoSuchAlgorithmException | InvalidKeyException e) {
                 e.printStackTrace();
                 throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
             }
+            handshakeTimer.endPhase(HandshakePhase.KEY_EXCHANGE);
 
             // send client ChangeCipherSpec message
             /*
@@ -241,8 +259,10 @@ public class SecureSocket {
 
             // create client Finished message
             logger.fine("Generating client Finished...");
-            Finished clientFinished = Finished.createClientFinishedMessage(masterSecret,
-                    clientHello, serverHello, certificate, serverHelloDone, clientKeyExchange);
+            HandshakeMessage[] handshakeMessages = serverKeyExchange == null
+                    ? new HandshakeMessage[]{clientHello, serverHello, certificate, serverHelloDone, clientKeyExchange}
+                    : new HandshakeMessage[]{clientHello, serverHello, certificate, serverKeyExchange, serverHelloDone, clientKeyExchange};
+            Finished clientFinished = Finished.createClientFinishedMessage(masterSecret, handshakeMessages);
 
             // since we have updated the recordLayer's write state, it should encrypt this for us
             logger.fine("Sending client Finished...");
@@ -267,22 +287,83 @@ public class SecureSocket {
 
             // verify server Finished message
             logger.fine("Verifying server Finished...");
-            Finished serverFinishedVerify = Finished.createServerFinishedMessage(masterSecret,
-                    clientHello, serverHello, certificate, serverHelloDone, clientKeyExchange, clientFinished);
+            handshakeMessages = Arrays.copyOf(handshakeMessages, handshakeMessages.length + 1);
+            handshakeMessages[handshakeMessages.length - 1] = clientFinished;
+            Finished serverFinishedVerify = Finished.createServerFinishedMessage(masterSecret, handshakeMessages);
             if (!Arrays.equals(serverFinished.getContent(), serverFinishedVerify.getContent()))
                 throw new FatalAlertException(AlertDescription.DECRYPT_ERROR);
+            handshakeTimer.endPhase(HandshakePhase.FINISHED);
+            handshakeTimer.completed();
 
             logger.info("Handshake complete.");
 
             this.recordLayer = recordLayer;
             logger.exiting(this.getClass().getSimpleName(), "connectSecured");
         } catch (FatalAlertException e) {
+            handshakeTimer.failed();
             recordLayer.putNextOutgoingMessage(AlertMessage.fatal(e.getAlertDescription()));
             e.printStackTrace();
             throw new RuntimeException();
         }
     }
 
+    private static boolean isHostName(String host) {
+        return !host.contains(":") && !host.matches("[0-9.]+");
+    }
+
+    /**
+     * Authenticates the certificate chain sent by the server.
+     * <p>
+     * Each certificate in the chain must be signed by the next one, and the last certificate must be signed by one of
+     * the CA certificates in the trust store which could have issued it. Chains which have been verified before are looked up in
+     * a shared cache instead of having their signatures checked again.
+     *
+     * @param certChain The certificate list from the server Certificate message
+     * @return The server certificate
+     * @throws FatalAlertException If the chain could not be authenticated
+     */
+    private X509Certificate authenticate(CertificateList certChain) throws FatalAlertException {
+        if (certChain.getContents().isEmpty()) throw new FatalAlertException(AlertDescription.BAD_CERTIFICATE);
+
+        String fingerprint = CertificateChainCache.fingerprint(certChain);
+        X509Certificate cached = useVerifiedChainCache ? verifiedChains.get(fingerprint, trustStore) : null;
+        if (cached != null) {
+            logger.fine("Server DN: " + cached.getSubjectX500Principal().getName() + " (cached)");
+            return cached;
+        }
+
+        try {
+            CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+
+            X509Certificate[] chain = new X509Certificate[certChain.getContents().size()];
+            for (int i = 0; i < chain.length; i++) {
+                chain[i] = (X509Certificate) certificateFactory.generateCertificate(
+                        new ByteArrayInputStream(certChain.getContents().get(i).content));
+                logger.fine((i == 0 ? "Server DN: " : "Current DN: ") + chain[i].getSubjectX500Principal().getName());
+                chain[i].checkValidity();
+                if (i > 0) chain[i - 1].verify(chain[i].getPublicKey());
+            }
+
+            // only the CA certs whose key identifier or subject matches the last certificate can have signed it
+            X509Certificate last = chain[chain.length - 1];
+            for (X509Certificate caCert : trustStore.getCandidateIssuers(last)) {
+                try {
+                    last.verify(caCert.getPublicKey());
+                    verifiedChains.put(fingerprint, chain, caCert);
+                    return chain[0];
+                } catch (SignatureException | InvalidKeyException ignored) {
+                }
+            }
+            throw new FatalAlertException(AlertDescription.BAD_CERTIFICATE);
+        } catch (CertificateExpiredException e) {
+            throw new FatalAlertException(AlertDescription.CERTIFICATE_EXPIRED);
+        } catch (CertificateException | SignatureException e) {
+            throw new FatalAlertException(AlertDescription.BAD_CERTIFICATE);
+        } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchProviderException e) {
+            throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
+        }
+    }
+
     public OutputStream getOutputStream() {
         if (recordLayer == null) throw new IllegalStateException("not connected yet");
 
@@ -301,12 +382,16 @@ public class SecureSocket {
         in.close();
         out.close();
 
-        socket.close();
+        getTransport().close();
+    }
+
+    public Transport getTransport() {
+        if (transport == null) {
+            return recordLayer.getTransport();
+        } else return transport;
     }
 
     public Socket getSocket() {
-        if (socket == null) {
-            return recordLayer.getSocket();
-        } else return socket;
+        return getTransport().getSocket();
     }
 }
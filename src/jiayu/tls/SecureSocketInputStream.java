@@ -22,11 +22,18 @@ public class SecureSocketInputStream extends InputStream {
                 throw new IOException();
             }
         }
-        return byteQueue.dequeue();
+        return byteQueue.dequeue() & 0xFF;
     }
 
     @Override
     public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+
         if (byteQueue.isEmpty()) {
             try {
                 byteQueue.enqueue(recordLayer.getNextIncomingMessage().asApplicationData().getContent());
@@ -35,8 +42,8 @@ public class SecureSocketInputStream extends InputStream {
                 throw new IOException();
             }
         }
-        int bytesRead = Math.min(b.length, byteQueue.size());
-        System.arraycopy(byteQueue.dequeue(bytesRead), 0, b, 0, bytesRead);
+        int bytesRead = Math.min(len, byteQueue.size());
+        System.arraycopy(byteQueue.dequeue(bytesRead), 0, b, off, bytesRead);
         return bytesRead;
     }
 
@@ -7,9 +7,9 @@ public class SecurityParameters {
     private CipherType cipherType;
     private int encKeyLength;
     private int blockLength;
-    //    for AEAD
-//    private int fixedIVLength;
-//    private int recordIVLength;
+    // for AEAD
+    private int fixedIVLength;
+    private int recordIVLength;
     private MACAlgorithm macAlgorithm;
     private int macLength;
     private int macKeyLength;
@@ -46,6 +46,8 @@ public class SecurityParameters {
             cipherType = bulkCipherAlgorithm.type;
             encKeyLength = bulkCipherAlgorithm.encKeyLength;
             blockLength = bulkCipherAlgorithm.blockSize;
+            fixedIVLength = bulkCipherAlgorithm.fixedIVLength;
+            recordIVLength = bulkCipherAlgorithm.recordIVLength;
             macAlgorithm = cipherSuite.macAlgorithm;
             macKeyLength = macAlgorithm.macKeyLength;
             macLength = macAlgorithm.macLength;
@@ -68,13 +70,13 @@ public class SecurityParameters {
         return blockLength;
     }
 
-//    public byte getFixedIVLength() {
-//        return fixedIVLength;
-//    }
-//
-//    public byte getRecordIVLength() {
-//        return recordIVLength;
-//    }
+    public int getFixedIVLength() {
+        return fixedIVLength;
+    }
+
+    public int getRecordIVLength() {
+        return recordIVLength;
+    }
 
     public MACAlgorithm getMacAlgorithm() {
         return macAlgorithm;
@@ -0,0 +1,63 @@
+package jiayu.tls;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Selects the server certificate and private key to use for a connection based on the host name
+ * the client requested through the server_name extension.
+ * <p>
+ * Host names are matched case-insensitively. A name such as {@code *.example.com} matches any host
+ * name exactly one label below example.com. Clients which do not send a server_name, or which ask for
+ * an unknown host, get the default credentials if there are any.
+ */
+public class ServerCredentialSelector {
+    private final ConcurrentHashMap<String, ServerCredentials> byHostName;
+    private volatile ServerCredentials defaultCredentials;
+
+    public ServerCredentialSelector() {
+        byHostName = new ConcurrentHashMap<>();
+    }
+
+    public void add(String hostName, ServerCredentials credentials) {
+        byHostName.put(hostName.toLowerCase(Locale.ROOT), credentials);
+    }
+
+    public ServerCredentials remove(String hostName) {
+        return byHostName.remove(hostName.toLowerCase(Locale.ROOT));
+    }
+
+    public ServerCredentials getDefault() {
+        return defaultCredentials;
+    }
+
+    public void setDefault(ServerCredentials credentials) {
+        defaultCredentials = credentials;
+    }
+
+    public boolean isEmpty() {
+        return defaultCredentials == null && byHostName.isEmpty();
+    }
+
+    /**
+     * Selects the credentials for a host name.
+     *
+     * @param serverName The host name requested by the client, or null if it did not request one
+     * @return The matching credentials, the default credentials, or null if there are neither
+     */
+    public ServerCredentials select(String serverName) {
+        if (serverName == null) return defaultCredentials;
+
+        String hostName = serverName.toLowerCase(Locale.ROOT);
+        ServerCredentials credentials = byHostName.get(hostName);
+        if (credentials != null) return credentials;
+
+        int dot = hostName.indexOf('.');
+        if (dot > 0) {
+            credentials = byHostName.get("*" + hostName.substring(dot));
+            if (credentials != null) return credentials;
+        }
+
+        return defaultCredentials;
+    }
+}
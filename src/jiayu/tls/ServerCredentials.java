@@ -0,0 +1,63 @@
+package jiayu.tls;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+
+/**
+ * A server certificate together with its private key.
+ */
+public class ServerCredentials {
+    private final byte[] certificate;
+    private final PrivateKey privateKey;
+
+    public ServerCredentials(byte[] certificate, PrivateKey privateKey) {
+        if (certificate == null || privateKey == null) throw new IllegalArgumentException();
+
+        this.certificate = certificate;
+        this.privateKey = RSAPrivateKeyService.toCrtForm(privateKey);
+    }
+
+    /**
+     * Loads a DER or PEM encoded certificate and a DER encoded PKCS #8 RSA private key.
+     *
+     * @param certFile The certificate file
+     * @param keyFile  The private key file
+     * @return The loaded credentials
+     * @throws IOException              If an I/O error occurs
+     * @throws InvalidKeySpecException  If the private key could not be parsed
+     * @throws NoSuchAlgorithmException If RSA is not supported
+     */
+    public static ServerCredentials load(Path certFile, Path keyFile) throws IOException, InvalidKeySpecException, NoSuchAlgorithmException {
+        return new ServerCredentials(readCertificate(certFile), readPrivateKey(keyFile));
+    }
+
+    static byte[] readCertificate(Path certFile) throws IOException {
+        if (!Files.exists(certFile)) throw new FileNotFoundException();
+
+        return Files.readAllBytes(certFile);
+    }
+
+    static PrivateKey readPrivateKey(Path keyFile) throws IOException, InvalidKeySpecException, NoSuchAlgorithmException {
+        if (!Files.exists(keyFile)) throw new FileNotFoundException();
+        if (!Files.isRegularFile(keyFile)) throw new IllegalArgumentException();
+
+        byte[] keyBytes = Files.readAllBytes(keyFile);
+        PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(keyBytes);
+        return RSAPrivateKeyService.toCrtForm(KeyFactory.getInstance("RSA").generatePrivate(keySpec));
+    }
+
+    public byte[] getCertificate() {
+        return certificate;
+    }
+
+    public PrivateKey getPrivateKey() {
+        return privateKey;
+    }
+}
@@ -1,7 +1,6 @@
 package jiayu.tls;
 
 import java.nio.ByteBuffer;
-import java.security.SecureRandom;
 import java.util.Arrays;
 
 public class ServerHello extends HandshakeMessage {
@@ -9,7 +8,6 @@ public class ServerHello extends HandshakeMessage {
     private static final byte COMPRESSION_METHOD = 0x00;
 
     private final int length;
-    private final byte[] header;
 
     private final short serverVersion;
     private final Random random;
@@ -19,7 +17,7 @@ public class ServerHello extends HandshakeMessage {
 
     public ServerHello(CipherSuite selectedCipherSuite) {
         this(
-                new SecureRandom().nextInt(),
+                RandomnessService.getDefault().nextInt(),
                 selectedCipherSuite
         );
     }
@@ -50,7 +48,6 @@ public class ServerHello extends HandshakeMessage {
                 + 2                 // selected cipher suite (2 content)
                 + 1;                // selected compression method (1 byte)
 
-        header = createHeader(length);
     }
 
     public short getServerVersion() {
@@ -69,22 +66,17 @@ public class ServerHello extends HandshakeMessage {
         return cipherSuite;
     }
 
-    private byte[] toBytes() {
-        return ByteBuffer.allocate(HEADER_LENGTH + length)
-                .put(header)                  // header
-                .putShort(serverVersion)      // server version
-                .put(random.toBytes())        // random
+    @Override
+    byte[] encode() {
+        ByteBuffer content = writeHeader(ByteBuffer.allocate(HEADER_LENGTH + length), length)  // header
+                .putShort(serverVersion);     // server version
+        random.writeTo(content);              // random
+        return content
                 .put(sessionId.length)        // session id length
                 .put(sessionId.bytes)         // session id
                 .putShort(cipherSuite.value)  // cipher suite
                 .put(compressionMethod)       // compression method
                 .array();
-
-    }
-
-    @Override
-    public byte[] getContent() {
-        return toBytes();
     }
 
     @Override
@@ -101,7 +93,7 @@ public class ServerHello extends HandshakeMessage {
         if (handshake.getType() != HandshakeType.SERVER_HELLO)
             throw new FatalAlertException(AlertDescription.UNEXPECTED_MESSAGE);
 
-        ByteBuffer content = ByteBuffer.wrap(handshake.getContent());
+        ByteBuffer content = handshake.getBody();
 
         short serverVersion = content.getShort();
         Random random = Random.fromBytes(content);
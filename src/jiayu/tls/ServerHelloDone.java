@@ -6,7 +6,7 @@ public class ServerHelloDone extends HandshakeMessage {
     }
 
     @Override
-    public byte[] getContent() {
+    byte[] encode() {
         return createHeader(0);
     }
 
@@ -0,0 +1,169 @@
+package jiayu.tls;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.*;
+
+/**
+ * A ServerKeyExchange message carrying signed ephemeral ECDH parameters, as described in RFC 4492 section 5.4.
+ * Only named curves and SHA-256 with RSA signatures are supported.
+ */
+public class ServerKeyExchange extends HandshakeMessage {
+    private static final byte NAMED_CURVE = 3;
+    private static final byte HASH_SHA256 = 4;
+    private static final byte SIGNATURE_RSA = 1;
+    static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+    private final int length;
+
+    private final short namedCurve;
+    private final byte[] publicPoint;
+    private final byte hashAlgorithm;
+    private final byte signatureAlgorithm;
+    private final byte[] signature;
+
+    private ServerKeyExchange(short namedCurve, byte[] publicPoint, byte hashAlgorithm, byte signatureAlgorithm, byte[] signature) {
+        super(HandshakeType.SERVER_KEY_EXCHANGE);
+
+        this.namedCurve = namedCurve;
+        this.publicPoint = publicPoint;
+        this.hashAlgorithm = hashAlgorithm;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.signature = signature;
+
+        length = 1                      // curve type (1 byte)
+                + 2                     // named curve (2 content)
+                + 1                     // point length (1 byte)
+                + publicPoint.length    // point (point length)
+                + 2                     // signature and hash algorithm (2 content)
+                + 2                     // signature length (2 content)
+                + signature.length;     // signature (signature length)
+
+    }
+
+    /**
+     * Creates a ServerKeyExchange for an ephemeral key pair, signed with the server's private key.
+     *
+     * @param keyExchange  The server's ephemeral ECDH key pair
+     * @param clientRandom The client random from the ClientHello
+     * @param serverRandom The server random from the ServerHello
+     * @param serverKey    The private key corresponding to the server certificate
+     * @return The signed ServerKeyExchange
+     * @throws FatalAlertException If the parameters could not be signed
+     */
+    static ServerKeyExchange createSigned(ECDHEKeyExchange keyExchange, byte[] clientRandom, byte[] serverRandom, PrivateKey serverKey) throws FatalAlertException {
+        try {
+            Signature signer = Signature.getInstance(SIGNATURE_ALGORITHM);
+            signer.initSign(serverKey);
+            signer.update(signedContent(keyExchange, clientRandom, serverRandom));
+
+            return fromSignature(keyExchange, signer.sign());
+        } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
+            throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
+        }
+    }
+
+    /**
+     * Returns the data which the server signs with {@link #SIGNATURE_ALGORITHM} to create a ServerKeyExchange, so
+     * that the signature can be computed elsewhere.
+     *
+     * @see #fromSignature(ECDHEKeyExchange, byte[])
+     */
+    static byte[] signedContent(ECDHEKeyExchange keyExchange, byte[] clientRandom, byte[] serverRandom) {
+        byte[] params = params(ECDHEKeyExchange.SECP256R1, keyExchange.getPublicPoint());
+        return ByteBuffer.allocate(clientRandom.length + serverRandom.length + params.length)
+                .put(clientRandom)
+                .put(serverRandom)
+                .put(params)
+                .array();
+    }
+
+    /**
+     * Creates a ServerKeyExchange from a signature over {@link #signedContent(ECDHEKeyExchange, byte[], byte[])}.
+     */
+    static ServerKeyExchange fromSignature(ECDHEKeyExchange keyExchange, byte[] signature) {
+        return new ServerKeyExchange(ECDHEKeyExchange.SECP256R1, keyExchange.getPublicPoint(), HASH_SHA256, SIGNATURE_RSA, signature);
+    }
+
+    /**
+     * Verifies the signature over the ECDH parameters.
+     *
+     * @param serverKey    The public key from the server certificate
+     * @param clientRandom The client random from the ClientHello
+     * @param serverRandom The server random from the ServerHello
+     * @throws FatalAlertException If the parameters are not supported or the signature is invalid
+     */
+    void verify(PublicKey serverKey, byte[] clientRandom, byte[] serverRandom) throws FatalAlertException {
+        if (namedCurve != ECDHEKeyExchange.SECP256R1) throw new FatalAlertException(AlertDescription.HANDSHAKE_FAILURE);
+        if (hashAlgorithm != HASH_SHA256 || signatureAlgorithm != SIGNATURE_RSA)
+            throw new FatalAlertException(AlertDescription.HANDSHAKE_FAILURE);
+
+        try {
+            Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+            verifier.initVerify(serverKey);
+            verifier.update(clientRandom);
+            verifier.update(serverRandom);
+            verifier.update(params(namedCurve, publicPoint));
+
+            if (!verifier.verify(signature)) throw new FatalAlertException(AlertDescription.DECRYPT_ERROR);
+        } catch (SignatureException e) {
+            throw new FatalAlertException(AlertDescription.DECRYPT_ERROR);
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new FatalAlertException(AlertDescription.INTERNAL_ERROR);
+        }
+    }
+
+    public short getNamedCurve() {
+        return namedCurve;
+    }
+
+    public byte[] getPublicPoint() {
+        return publicPoint;
+    }
+
+    private static byte[] params(short namedCurve, byte[] publicPoint) {
+        return writeParams(ByteBuffer.allocate(1 + 2 + 1 + publicPoint.length), namedCurve, publicPoint).array();
+    }
+
+    private static ByteBuffer writeParams(ByteBuffer buf, short namedCurve, byte[] publicPoint) {
+        return buf.put(NAMED_CURVE)
+                .putShort(namedCurve)
+                .put((byte) publicPoint.length)
+                .put(publicPoint);
+    }
+
+    @Override
+    byte[] encode() {
+        return writeParams(writeHeader(ByteBuffer.allocate(HEADER_LENGTH + length), length), namedCurve, publicPoint)
+                .put(hashAlgorithm)
+                .put(signatureAlgorithm)
+                .putShort((short) signature.length)
+                .put(signature)
+                .array();
+    }
+
+    static ServerKeyExchange interpret(GenericHandshakeMessage handshake) throws FatalAlertException {
+        if (handshake.getType() != HandshakeType.SERVER_KEY_EXCHANGE)
+            throw new FatalAlertException(AlertDescription.UNEXPECTED_MESSAGE);
+
+        try {
+            ByteBuffer content = handshake.getBody();
+
+            if (content.get() != NAMED_CURVE) throw new FatalAlertException(AlertDescription.HANDSHAKE_FAILURE);
+            short namedCurve = content.getShort();
+            byte[] publicPoint = new byte[content.get() & 0xFF];
+            content.get(publicPoint);
+
+            byte hashAlgorithm = content.get();
+            byte signatureAlgorithm = content.get();
+            byte[] signature = new byte[content.getShort() & 0xFFFF];
+            content.get(signature);
+
+            if (content.hasRemaining()) throw new FatalAlertException(AlertDescription.DECODE_ERROR);
+
+            return new ServerKeyExchange(namedCurve, publicPoint, hashAlgorithm, signatureAlgorithm, signature);
+        } catch (BufferUnderflowException e) {
+            throw new FatalAlertException(AlertDescription.DECODE_ERROR);
+        }
+    }
+}
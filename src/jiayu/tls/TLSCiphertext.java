@@ -8,4 +8,8 @@ class TLSCiphertext extends AbstractRecord {
     TLSCiphertext(GenericBlockCipher genericBlockCipher) {
         super(genericBlockCipher.getContentType(), PROTOCOL_VERSION, genericBlockCipher.getContent());
     }
+
+    TLSCiphertext(GenericAEADCipher genericAEADCipher) {
+        super(genericAEADCipher.getContentType(), PROTOCOL_VERSION, genericAEADCipher.getContent());
+    }
 }
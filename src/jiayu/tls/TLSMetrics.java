@@ -0,0 +1,283 @@
+package jiayu.tls;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Counters and latency histograms for handshakes and the record layer.
+ * <p>
+ * Counters are striped {@link LongAdder}s, so connections on different threads do not contend when updating them.
+ * The default registry is shared by every connection in the JVM and is registered with the platform MBean server
+ * under {@value #OBJECT_NAME} the first time it is used. Metrics can also be read directly through the getters
+ * here, or all at once through {@link #getSnapshot()}.
+ */
+public class TLSMetrics implements TLSMetricsMXBean {
+    private static final Logger logger = Logger.getLogger("jiayu.tls.TLSMetrics");
+
+    public static final String OBJECT_NAME = "jiayu.tls:type=TLSMetrics";
+
+    private static volatile TLSMetrics defaultMetrics;
+
+    private final LongAdder[] recordsIn = newAdders(ContentType.values().length);
+    private final LongAdder[] recordsOut = newAdders(ContentType.values().length);
+    private final LongAdder[] bytesIn = newAdders(ContentType.values().length);
+    private final LongAdder[] bytesOut = newAdders(ContentType.values().length);
+    private final LongAdder[] alertsSent = newAdders(AlertDescription.values().length);
+    private final LongAdder[] handshakesCompleted = newAdders(ConnectionEnd.values().length);
+    private final LongAdder[] handshakesFailed = newAdders(ConnectionEnd.values().length);
+    private final LongAdder macFailures = new LongAdder();
+
+    private final LatencyHistogram encryptTime = new LatencyHistogram();
+    private final LatencyHistogram decryptTime = new LatencyHistogram();
+    private final LatencyHistogram[][] handshakeTime;
+
+    public TLSMetrics() {
+        handshakeTime = new LatencyHistogram[ConnectionEnd.values().length][HandshakePhase.values().length];
+        for (LatencyHistogram[] phases : handshakeTime) {
+            for (int i = 0; i < phases.length; i++) phases[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Returns the registry shared by every connection, registering it with JMX if it has not been used before.
+     */
+    public static TLSMetrics getDefault() {
+        if (defaultMetrics == null) {
+            synchronized (TLSMetrics.class) {
+                if (defaultMetrics == null) {
+                    TLSMetrics metrics = new TLSMetrics();
+                    register(metrics);
+                    defaultMetrics = metrics;
+                }
+            }
+        }
+        return defaultMetrics;
+    }
+
+    private static void register(TLSMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException | MBeanRegistrationException | NotCompliantMBeanException | MalformedObjectNameException | SecurityException e) {
+            // metrics are still available through the pull API
+            logger.warning("Could not register " + OBJECT_NAME + ": " + e);
+        }
+    }
+
+    private static LongAdder[] newAdders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+
+    void recordIncoming(ContentType contentType, int recordLength) {
+        recordsIn[contentType.ordinal()].increment();
+        bytesIn[contentType.ordinal()].add(recordLength);
+    }
+
+    void recordOutgoing(ContentType contentType, int recordLength) {
+        recordsOut[contentType.ordinal()].increment();
+        bytesOut[contentType.ordinal()].add(recordLength);
+    }
+
+    void recordAlertSent(AlertDescription alertDescription) {
+        alertsSent[alertDescription.ordinal()].increment();
+    }
+
+    void recordMacFailure() {
+        macFailures.increment();
+    }
+
+    /**
+     * Starts timing a handshake.
+     *
+     * @param connectionEnd The end of the connection performing the handshake
+     * @return A timer which records each phase of the handshake as it is marked
+     */
+    HandshakeTimer startHandshake(ConnectionEnd connectionEnd) {
+        return new HandshakeTimer(connectionEnd);
+    }
+
+    public long getRecordsIn(ContentType contentType) {
+        return recordsIn[contentType.ordinal()].sum();
+    }
+
+    public long getRecordsOut(ContentType contentType) {
+        return recordsOut[contentType.ordinal()].sum();
+    }
+
+    public long getBytesIn(ContentType contentType) {
+        return bytesIn[contentType.ordinal()].sum();
+    }
+
+    public long getBytesOut(ContentType contentType) {
+        return bytesOut[contentType.ordinal()].sum();
+    }
+
+    public long getAlertsSent(AlertDescription alertDescription) {
+        return alertsSent[alertDescription.ordinal()].sum();
+    }
+
+    public long getHandshakesCompleted(ConnectionEnd connectionEnd) {
+        return handshakesCompleted[connectionEnd.ordinal()].sum();
+    }
+
+    public long getHandshakesFailed(ConnectionEnd connectionEnd) {
+        return handshakesFailed[connectionEnd.ordinal()].sum();
+    }
+
+    /**
+     * Returns the time taken to protect each outgoing record.
+     */
+    public LatencyHistogram getEncryptTime() {
+        return encryptTime;
+    }
+
+    /**
+     * Returns the time taken to decrypt and verify each incoming record.
+     */
+    public LatencyHistogram getDecryptTime() {
+        return decryptTime;
+    }
+
+    public LatencyHistogram getHandshakeTime(ConnectionEnd connectionEnd, HandshakePhase phase) {
+        return handshakeTime[connectionEnd.ordinal()][phase.ordinal()];
+    }
+
+    @Override
+    public long getHandshakesCompleted() {
+        return sum(handshakesCompleted);
+    }
+
+    @Override
+    public long getHandshakesFailed() {
+        return sum(handshakesFailed);
+    }
+
+    @Override
+    public long getMacFailures() {
+        return macFailures.sum();
+    }
+
+    @Override
+    public long getAlertsSent() {
+        return sum(alertsSent);
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long sum = 0;
+        for (LongAdder adder : adders) sum += adder.sum();
+        return sum;
+    }
+
+    @Override
+    public Map<String, Long> getSnapshot() {
+        TreeMap<String, Long> snapshot = new TreeMap<>();
+
+        for (ContentType contentType : ContentType.values()) {
+            String name = name(contentType);
+            snapshot.put("records.in." + name, getRecordsIn(contentType));
+            snapshot.put("records.out." + name, getRecordsOut(contentType));
+            snapshot.put("bytes.in." + name, getBytesIn(contentType));
+            snapshot.put("bytes.out." + name, getBytesOut(contentType));
+        }
+
+        for (AlertDescription alertDescription : AlertDescription.values()) {
+            long sent = getAlertsSent(alertDescription);
+            if (sent > 0) snapshot.put("alerts.sent." + name(alertDescription), sent);
+        }
+        snapshot.put("mac.failures", getMacFailures());
+
+        for (ConnectionEnd connectionEnd : ConnectionEnd.values()) {
+            String prefix = "handshake." + name(connectionEnd);
+            snapshot.put(prefix + ".completed", getHandshakesCompleted(connectionEnd));
+            snapshot.put(prefix + ".failed", getHandshakesFailed(connectionEnd));
+            for (HandshakePhase phase : HandshakePhase.values())
+                putHistogram(snapshot, prefix + "." + name(phase), getHandshakeTime(connectionEnd, phase));
+        }
+
+        putHistogram(snapshot, "record.encrypt", encryptTime);
+        putHistogram(snapshot, "record.decrypt", decryptTime);
+
+        // the record buffers are shared by every connection in the JVM, and are not reset with the other metrics
+        RecordBufferPool buffers = RecordBufferPool.getDefault();
+        snapshot.put("buffers.allocated", buffers.getAllocated());
+        snapshot.put("buffers.acquired", buffers.getAcquired());
+        snapshot.put("buffers.hits.thread", buffers.getThreadCacheHits());
+        snapshot.put("buffers.hits.shared", buffers.getSharedHits());
+        snapshot.put("buffers.released", buffers.getReleased());
+        snapshot.put("buffers.discarded", buffers.getDiscarded());
+        snapshot.put("buffers.shared", (long) buffers.getShared());
+
+        return snapshot;
+    }
+
+    private static void putHistogram(Map<String, Long> snapshot, String name, LatencyHistogram histogram) {
+        snapshot.put(name + ".count", histogram.getCount());
+        snapshot.put(name + ".mean", histogram.getMean());
+        snapshot.put(name + ".p50", histogram.getPercentile(50));
+        snapshot.put(name + ".p99", histogram.getPercentile(99));
+        snapshot.put(name + ".p999", histogram.getPercentile(99.9));
+        snapshot.put(name + ".max", histogram.getMax());
+    }
+
+    private static String name(Enum<?> e) {
+        return e.name().toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder[] adders : new LongAdder[][]{recordsIn, recordsOut, bytesIn, bytesOut, alertsSent, handshakesCompleted, handshakesFailed}) {
+            for (LongAdder adder : adders) adder.reset();
+        }
+        macFailures.reset();
+
+        encryptTime.reset();
+        decryptTime.reset();
+        for (LatencyHistogram[] phases : handshakeTime) {
+            for (LatencyHistogram histogram : phases) histogram.reset();
+        }
+    }
+
+    /**
+     * Times the phases of a single handshake. A timer is only used by the thread performing the handshake.
+     */
+    class HandshakeTimer {
+        private final ConnectionEnd connectionEnd;
+        private final long start;
+        private long phaseStart;
+
+        private HandshakeTimer(ConnectionEnd connectionEnd) {
+            this.connectionEnd = connectionEnd;
+            start = phaseStart = System.nanoTime();
+        }
+
+        /**
+         * Records the time since the previous phase ended as the duration of a phase.
+         *
+         * @param phase The phase which has just ended
+         */
+        void endPhase(HandshakePhase phase) {
+            long now = System.nanoTime();
+            getHandshakeTime(connectionEnd, phase).record(now - phaseStart);
+            phaseStart = now;
+        }
+
+        void completed() {
+            getHandshakeTime(connectionEnd, HandshakePhase.TOTAL).record(System.nanoTime() - start);
+            handshakesCompleted[connectionEnd.ordinal()].increment();
+        }
+
+        void failed() {
+            handshakesFailed[connectionEnd.ordinal()].increment();
+        }
+    }
+}
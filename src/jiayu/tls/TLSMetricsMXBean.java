@@ -0,0 +1,24 @@
+package jiayu.tls;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link TLSMetrics}, registered as {@value TLSMetrics#OBJECT_NAME}.
+ */
+public interface TLSMetricsMXBean {
+    long getHandshakesCompleted();
+
+    long getHandshakesFailed();
+
+    long getMacFailures();
+
+    long getAlertsSent();
+
+    /**
+     * Returns every metric by name. Latency histograms are flattened into their count, mean, percentiles and
+     * maximum, in nanoseconds.
+     */
+    Map<String, Long> getSnapshot();
+
+    void reset();
+}
@@ -0,0 +1,32 @@
+package jiayu.tls;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * The reliable byte stream which carries TLS records between the two ends of a connection.
+ * <p>
+ * Connections normally run over a TCP {@link Socket}, but client and server can also be connected in-process
+ * through an {@link InMemoryTransport}.
+ */
+public interface Transport extends Closeable {
+    static Transport of(Socket socket) {
+        return new SocketTransport(socket);
+    }
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Returns the socket underlying this transport.
+     *
+     * @return The socket, or null if this transport does not use one
+     */
+    default Socket getSocket() {
+        return null;
+    }
+}
@@ -0,0 +1,158 @@
+package jiayu.tls;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A set of trusted CA certificates used to authenticate server certificate chains.
+ * <p>
+ * Trust anchors are indexed so that the CA certificates which could have issued a certificate can be found
+ * without trying every anchor in turn. A single default instance is shared by every {@link SecureSocket}
+ * unless another one is explicitly set.
+ */
+public interface TrustStore {
+    static TrustStore getDefault() {
+        return DefaultTrustStoreImpl.DEFAULT;
+    }
+
+    static TrustStore newInstance() {
+        return new DefaultTrustStoreImpl();
+    }
+
+    /**
+     * Creates a trust store which starts with the trust anchors of another. Anchors added to either store later are
+     * not shared with the other.
+     */
+    static TrustStore copyOf(TrustStore trustStore) {
+        TrustStore copy = new DefaultTrustStoreImpl();
+        for (X509Certificate caCert : trustStore.getTrustAnchors()) copy.addTrustAnchor(caCert);
+        return copy;
+    }
+
+    /**
+     * Adds a trusted CA certificate.
+     *
+     * @param caCert The CA certificate
+     */
+    void addTrustAnchor(X509Certificate caCert);
+
+    /**
+     * Checks whether a certificate is one of the trust anchors in this store.
+     *
+     * @param cert The certificate to check
+     * @return true if the certificate is trusted
+     */
+    boolean isTrusted(X509Certificate cert);
+
+    /**
+     * Finds the trust anchors which could have issued a certificate, by matching its authority key identifier
+     * against their subject key identifiers, or else its issuer DN against their subject DNs.
+     *
+     * @param cert The certificate whose issuer is wanted
+     * @return The candidate issuers, which may be empty
+     */
+    List<X509Certificate> getCandidateIssuers(X509Certificate cert);
+
+    /**
+     * Returns the trust anchors in this store.
+     */
+    Collection<X509Certificate> getTrustAnchors();
+
+    int size();
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Adds the CA certificates in a PEM bundle, a DER encoded certificate, or every such file in a directory.
+     *
+     * @param path The file or directory to load
+     * @return The number of CA certificates added
+     * @throws IOException          If an I/O error occurs
+     * @throws CertificateException If a file could not be parsed
+     */
+    default int load(Path path) throws IOException, CertificateException {
+        if (!Files.exists(path)) throw new FileNotFoundException();
+
+        CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+
+        if (!Files.isDirectory(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                int added = 0;
+                for (java.security.cert.Certificate cert : certificateFactory.generateCertificates(in)) {
+                    addTrustAnchor((X509Certificate) cert);
+                    added++;
+                }
+                return added;
+            }
+        }
+
+        int added = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for (Path file : files) {
+                if (!Files.isRegularFile(file)) continue;
+
+                try (InputStream in = Files.newInputStream(file)) {
+                    for (java.security.cert.Certificate cert : certificateFactory.generateCertificates(in)) {
+                        addTrustAnchor((X509Certificate) cert);
+                        added++;
+                    }
+                } catch (CertificateException e) {
+                    Logger.getLogger("jiayu.tls.TrustStore").warning("Skipping " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Adds the trusted certificate entries of a key store.
+     *
+     * @param keyStoreFile The key store file
+     * @param type         The key store type, such as JKS or PKCS12
+     * @param password     The key store password, or null to skip the integrity check
+     * @return The number of CA certificates added
+     * @throws IOException          If an I/O error occurs
+     * @throws CertificateException If a certificate in the key store could not be loaded
+     * @throws KeyStoreException    If the key store type is not supported
+     */
+    default int loadKeyStore(Path keyStoreFile, String type, char[] password) throws IOException, CertificateException, KeyStoreException {
+        if (!Files.exists(keyStoreFile)) throw new FileNotFoundException();
+
+        KeyStore keyStore = KeyStore.getInstance(type);
+        try (InputStream in = Files.newInputStream(keyStoreFile)) {
+            keyStore.load(in, password);
+        } catch (NoSuchAlgorithmException e) {
+            throw new KeyStoreException(e);
+        }
+
+        int added = 0;
+        Enumeration<String> aliases = keyStore.aliases();
+        while (aliases.hasMoreElements()) {
+            String alias = aliases.nextElement();
+            if (!keyStore.isCertificateEntry(alias)) continue;
+
+            java.security.cert.Certificate cert = keyStore.getCertificate(alias);
+            if (cert instanceof X509Certificate) {
+                addTrustAnchor((X509Certificate) cert);
+                added++;
+            }
+        }
+        return added;
+    }
+}
@@ -0,0 +1,146 @@
+package jiayu.tls.filetransfer;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The signatures of the blocks of a stored file, from which a client can describe a new version of the file as a
+ * {@link Delta} against it.
+ * <p>
+ * As in rsync, each full block has a weak rolling checksum, which can be updated cheaply as a window slides over the
+ * new version one byte at a time, and a strong MD5 checksum which confirms a match. A partial block at the end of
+ * the file has no signature and is always sent as literal data.
+ */
+public class BlockSignatures {
+    static final int MIN_BLOCK_SIZE = 2048;
+    static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    private static final int STRONG_BYTES = 16;
+
+    private final int blockSize;
+    private final int[] weak;
+    private final byte[][] strong;
+
+    private BlockSignatures(int blockSize, int[] weak, byte[][] strong) {
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Signs the blocks of a file, using blocks of about the square root of its size.
+     *
+     * @param content The content of the stored file, which may be empty
+     */
+    public static BlockSignatures of(byte[] content) {
+        int blockSize = Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, (int) Math.sqrt(content.length)));
+        return of(content, blockSize);
+    }
+
+    public static BlockSignatures of(byte[] content, int blockSize) {
+        if (blockSize <= 0) throw new IllegalArgumentException("block size must be positive");
+
+        int blockCount = content.length / blockSize;
+        int[] weak = new int[blockCount];
+        byte[][] strong = new byte[blockCount][];
+
+        MessageDigest md = newStrongDigest();
+        for (int i = 0; i < blockCount; i++) {
+            weak[i] = rollingChecksum(content, i * blockSize, blockSize);
+            md.update(content, i * blockSize, blockSize);
+            strong[i] = md.digest();
+        }
+
+        return new BlockSignatures(blockSize, weak, strong);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    int getWeak(int block) {
+        return weak[block];
+    }
+
+    byte[] getStrong(int block) {
+        return strong[block];
+    }
+
+    /**
+     * Computes the weak checksum of a window of bytes: the sum of the bytes in the low 16 bits, and the sum of the
+     * running sums in the high 16 bits.
+     */
+    static int rollingChecksum(byte[] bytes, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += bytes[offset + i] & 0xFF;
+            b += (length - i) * (bytes[offset + i] & 0xFF);
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * Slides a window of {@code length} bytes one byte forward, updating its weak checksum.
+     *
+     * @param checksum The checksum of the window before it moves
+     * @param out      The byte leaving the window
+     * @param in       The byte entering the window
+     */
+    static int roll(int checksum, int length, byte out, byte in) {
+        int a = (checksum - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        int b = ((checksum >>> 16) - length * (out & 0xFF) + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    static MessageDigest newStrongDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // MD5 is supported in all java implementations
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the encoded signatures, preceded by their length.
+     */
+    public byte[] getBytes() {
+        int length = Integer.BYTES + Integer.BYTES + weak.length * (Integer.BYTES + STRONG_BYTES);
+        ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES + length)
+                .putInt(length)
+                .putInt(blockSize)
+                .putInt(weak.length);
+        for (int i = 0; i < weak.length; i++) buf.putInt(weak[i]).put(strong[i]);
+        return buf.array();
+    }
+
+    /**
+     * Reads signatures encoded by {@link #getBytes()}, without their length.
+     *
+     * @throws IllegalArgumentException If the signatures are malformed
+     */
+    public static BlockSignatures fromBytes(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        if (buf.remaining() < 2 * Integer.BYTES) throw new IllegalArgumentException("truncated block signatures");
+
+        int blockSize = buf.getInt();
+        int blockCount = buf.getInt();
+        if (blockSize <= 0 || blockCount < 0 || buf.remaining() != (long) blockCount * (Integer.BYTES + STRONG_BYTES))
+            throw new IllegalArgumentException("malformed block signatures");
+
+        int[] weak = new int[blockCount];
+        byte[][] strong = new byte[blockCount][STRONG_BYTES];
+        for (int i = 0; i < blockCount; i++) {
+            weak[i] = buf.getInt();
+            buf.get(strong[i]);
+        }
+
+        return new BlockSignatures(blockSize, weak, strong);
+    }
+}
@@ -82,4 +82,14 @@ public class Checksum {
     public boolean compareTo(Checksum other) {
         return Arrays.equals(bytes, other.bytes);
     }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Checksum && compareTo((Checksum) o);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
 }
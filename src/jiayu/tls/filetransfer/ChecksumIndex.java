@@ -0,0 +1,83 @@
+package jiayu.tls.filetransfer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An index of the files in a {@link StorageBackend} by the SHA-256 checksum of their content, so that content which
+ * is already stored can be found without receiving it again.
+ * <p>
+ * Stored files may change after they are indexed, so a file is hashed again before it is returned.
+ */
+public class ChecksumIndex {
+    private static final Logger logger = Logger.getLogger("jiayu.tls.filetransfer.ChecksumIndex");
+
+    private final StorageBackend storage;
+    private final ConcurrentHashMap<Checksum, String> files = new ConcurrentHashMap<>();
+
+    public ChecksumIndex(StorageBackend storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Records that a stored file has the given content checksum.
+     */
+    public void add(byte[] checksum, String name) {
+        files.put(Checksum.wrap(checksum), name);
+    }
+
+    /**
+     * Indexes every file already in the backend, taking the checksums the backend keeps where it has them and
+     * hashing the other files. A file which cannot be read is logged and left out of the index.
+     *
+     * @return The number of files which were left out
+     * @throws IOException If the files could not be listed
+     */
+    public int addAll() throws IOException {
+        int skipped = 0;
+        for (String name : storage.list()) {
+            try {
+                byte[] checksum = storage.getChecksum(name);
+                if (checksum == null) {
+                    byte[] content = storage.read(name);
+                    // removed since it was listed
+                    if (content == null) continue;
+                    checksum = Metadata.calculateChecksum(content);
+                }
+                add(checksum, name);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "could not index " + name, e);
+                skipped++;
+            }
+        }
+
+        return skipped;
+    }
+
+    /**
+     * Finds a stored file with the given content checksum.
+     *
+     * @param checksum The SHA-256 checksum of the content
+     * @return The name of a file whose content currently has the checksum, or null if there is none
+     * @throws IOException If an indexed file could not be read
+     */
+    public String find(byte[] checksum) throws IOException {
+        Checksum key = Checksum.wrap(checksum);
+        String name = files.get(key);
+        if (name == null) return null;
+
+        byte[] content = storage.read(name);
+        if (content != null && Arrays.equals(checksum, Metadata.calculateChecksum(content))) return name;
+
+        // the file has since been replaced or removed
+        files.remove(key, name);
+        return null;
+    }
+
+    public int size() {
+        return files.size();
+    }
+}
@@ -0,0 +1,134 @@
+package jiayu.tls.filetransfer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression applied to the content of an uploaded file, declared in its {@link Metadata}.
+ * <p>
+ * Content is compressed before it is encrypted, so compressible files cost less bandwidth and less encryption
+ * work. Compression happens above TLS, one file at a time, and never mixes data from different sources.
+ */
+public enum Compression {
+    NONE(0), DEFLATE(1);
+
+    /**
+     * How much of a file is compressed to decide whether compressing the whole file is worthwhile.
+     */
+    static final int SAMPLE_SIZE = 64 * 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    public final byte value;
+
+    Compression(int value) {
+        this.value = (byte) value;
+    }
+
+    static Compression fromValue(byte value) {
+        for (Compression compression : values()) {
+            if (compression.value == value) return compression;
+        }
+        throw new IllegalArgumentException("unknown compression " + value);
+    }
+
+    /**
+     * Chooses the compression for a file by deflating its first chunk.
+     *
+     * @param content The content of the file
+     * @return DEFLATE if the sample shrinks by at least a tenth, otherwise NONE
+     */
+    public static Compression choose(byte[] content) {
+        int sampleLength = Math.min(content.length, SAMPLE_SIZE);
+        if (sampleLength == 0) return NONE;
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(content, 0, sampleLength);
+            deflater.finish();
+
+            byte[] output = new byte[sampleLength];
+            int compressedLength = 0;
+            while (!deflater.finished() && compressedLength < output.length) {
+                compressedLength += deflater.deflate(output, compressedLength, output.length - compressedLength);
+            }
+
+            return deflater.finished() && compressedLength < sampleLength * 9L / 10 ? DEFLATE : NONE;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes content to a stream, compressed a chunk at a time. The stream is not closed.
+     */
+    public void encode(byte[] content, OutputStream out) throws IOException {
+        if (this == NONE) {
+            out.write(content);
+            return;
+        }
+
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+
+            byte[] chunk = new byte[CHUNK_SIZE];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Reads the content of a file from the remaining bytes of a buffer.
+     *
+     * @param in       The encoded content, which must be consumed entirely
+     * @param filesize The size of the file before it was compressed
+     * @return The content of the file
+     * @throws IOException If the content is corrupt or does not have the expected size
+     */
+    public byte[] decode(ByteBuffer in, int filesize) throws IOException {
+        byte[] content = new byte[filesize];
+
+        if (this == NONE) {
+            if (in.remaining() != filesize) throw new IOException("expected " + filesize + " bytes but got " + in.remaining());
+            in.get(content);
+            return content;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(in.array(), in.arrayOffset() + in.position(), in.remaining());
+
+            int contentLength = 0;
+            byte[] overflow = new byte[1];
+            while (!inflater.finished()) {
+                // once the file is full, inflate into a spare byte to reach the end of the stream or find excess data
+                int inflated = contentLength < filesize
+                        ? inflater.inflate(content, contentLength, filesize - contentLength)
+                        : inflater.inflate(overflow);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                contentLength += inflated;
+                if (contentLength > filesize) break;
+            }
+
+            // the deflated stream must end exactly at the end of the file and of the input
+            if (contentLength != filesize || !inflater.finished() || inflater.getRemaining() > 0)
+                throw new IOException("compressed content does not match the file size");
+
+            in.position(in.limit());
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
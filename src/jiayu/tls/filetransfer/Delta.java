@@ -0,0 +1,151 @@
+package jiayu.tls.filetransfer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes a new version of a file as a sequence of literal data and references to blocks of a stored version, so
+ * that only the bytes which changed are sent.
+ * <p>
+ * Each instruction begins with a byte: {@link #LITERAL} is followed by a length and that many bytes, and
+ * {@link #COPY} by the index of the first block to copy and the number of consecutive blocks.
+ */
+public class Delta {
+    static final byte LITERAL = 0;
+    static final byte COPY = 1;
+
+    private Delta() {
+    }
+
+    /**
+     * Writes the delta of a file against the signatures of a stored version. The stream is not closed.
+     *
+     * @param content The new content of the file
+     * @param base    The signatures of the stored version
+     * @param out     The stream to write the instructions to
+     */
+    public static void encode(byte[] content, BlockSignatures base, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        int blockSize = base.getBlockSize();
+
+        Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+        for (int block = 0; block < base.getBlockCount(); block++) {
+            blocksByWeak.computeIfAbsent(base.getWeak(block), k -> new ArrayList<>(1)).add(block);
+        }
+
+        MessageDigest md = BlockSignatures.newStrongDigest();
+
+        int literalStart = 0;
+        int copyStart = -1;
+        int copyCount = 0;
+
+        int position = 0;
+        int weak = content.length >= blockSize ? BlockSignatures.rollingChecksum(content, 0, blockSize) : 0;
+        while (position + blockSize <= content.length) {
+            int match = findBlock(blocksByWeak.get(weak), base, md, content, position, blockSize);
+
+            if (match >= 0) {
+                if (literalStart < position) {
+                    writeCopy(data, copyStart, copyCount);
+                    copyCount = 0;
+                    writeLiteral(data, content, literalStart, position - literalStart);
+                }
+
+                if (copyCount > 0 && copyStart + copyCount == match) {
+                    copyCount++;
+                } else {
+                    writeCopy(data, copyStart, copyCount);
+                    copyStart = match;
+                    copyCount = 1;
+                }
+
+                position += blockSize;
+                literalStart = position;
+                if (position + blockSize <= content.length) weak = BlockSignatures.rollingChecksum(content, position, blockSize);
+            } else {
+                if (position + blockSize < content.length)
+                    weak = BlockSignatures.roll(weak, blockSize, content[position], content[position + blockSize]);
+                position++;
+            }
+        }
+
+        writeCopy(data, copyStart, copyCount);
+        if (literalStart < content.length) writeLiteral(data, content, literalStart, content.length - literalStart);
+        data.flush();
+    }
+
+    private static int findBlock(List<Integer> candidates, BlockSignatures base, MessageDigest md, byte[] content, int offset, int length) {
+        if (candidates == null) return -1;
+
+        md.update(content, offset, length);
+        byte[] strong = md.digest();
+        for (int block : candidates) {
+            if (Arrays.equals(strong, base.getStrong(block))) return block;
+        }
+        return -1;
+    }
+
+    private static void writeLiteral(DataOutputStream out, byte[] content, int offset, int length) throws IOException {
+        out.writeByte(LITERAL);
+        out.writeInt(length);
+        out.write(content, offset, length);
+    }
+
+    private static void writeCopy(DataOutputStream out, int block, int count) throws IOException {
+        if (count == 0) return;
+
+        out.writeByte(COPY);
+        out.writeInt(block);
+        out.writeInt(count);
+    }
+
+    /**
+     * Rebuilds a file from a stored version and the remaining bytes of a buffer holding a delta against it.
+     *
+     * @param base      The stored version of the file
+     * @param blockSize The block size of the signatures the delta was made from
+     * @param delta     The delta, which must be consumed entirely
+     * @param filesize  The size of the new version
+     * @return The content of the new version
+     * @throws IOException If the delta is malformed or does not produce a file of the expected size
+     */
+    public static byte[] apply(byte[] base, int blockSize, ByteBuffer delta, int filesize) throws IOException {
+        byte[] content = new byte[filesize];
+        int length = 0;
+
+        try {
+            while (delta.hasRemaining()) {
+                byte op = delta.get();
+                if (op == LITERAL) {
+                    int literalLength = delta.getInt();
+                    if (literalLength < 0 || literalLength > filesize - length) throw new IOException("literal overruns file");
+                    delta.get(content, length, literalLength);
+                    length += literalLength;
+                } else if (op == COPY) {
+                    long offset = (long) delta.getInt() * blockSize;
+                    long copyLength = (long) delta.getInt() * blockSize;
+                    if (offset < 0 || copyLength <= 0 || offset + copyLength > base.length) throw new IOException("reference outside stored file");
+                    if (copyLength > filesize - length) throw new IOException("reference overruns file");
+                    System.arraycopy(base, (int) offset, content, length, (int) copyLength);
+                    length += copyLength;
+                } else {
+                    throw new IOException("unknown delta instruction " + op);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated delta", e);
+        }
+
+        if (length != filesize) throw new IOException("delta produces " + length + " bytes instead of " + filesize);
+        return content;
+    }
+}
@@ -0,0 +1,30 @@
+package jiayu.tls.filetransfer;
+
+/**
+ * When a stored file is forced to disk, and so when a client is told that its upload succeeded.
+ */
+public enum Durability {
+    /**
+     * Files are left to the operating system to write back, and an acknowledged upload may be lost in a crash.
+     */
+    NONE,
+
+    /**
+     * Each file, and the directory entry renamed into place for it, is forced to disk before it is acknowledged.
+     */
+    PER_FILE,
+
+    /**
+     * Each file is forced to disk by the thread which wrote it, then the files finished within a short window are
+     * renamed into place together by a background committer, which forces their directory once. All of them are
+     * acknowledged once the batch is durable.
+     */
+    GROUP_COMMIT;
+
+    /**
+     * Parses a durability as written in configuration, for example {@code group-commit}.
+     */
+    public static Durability parse(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
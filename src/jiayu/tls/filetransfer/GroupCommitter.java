@@ -0,0 +1,185 @@
+package jiayu.tls.filetransfer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Makes written files durable in batches.
+ * <p>
+ * Files are forced to disk by the threads which write them, in parallel, before they are submitted. A single
+ * background thread waits for a file to be submitted, collects the other files submitted within a short window,
+ * renames them into place and then forces their directory once for the whole batch. Only then are the futures of
+ * the batch completed, so that every acknowledged file survives a crash.
+ */
+final class GroupCommitter {
+    static final long DEFAULT_WINDOW_MILLIS = 2;
+
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private final Path dir;
+    private final long windowNanos;
+    private final BlockingQueue<PendingFile> pending = new LinkedBlockingQueue<>();
+    private final Thread thread;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder committed = new LongAdder();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param dir          The directory the files are renamed into
+     * @param windowMillis How long to wait for more files after the first file of a batch is submitted
+     */
+    GroupCommitter(Path dir, long windowMillis) {
+        this.dir = dir;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+
+        thread = new Thread(this::run, "storage-commit-" + dir.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Submits a written file to be made durable.
+     *
+     * @param temp   The temporary file holding the content, which has already been forced to disk
+     * @param target The name it is renamed to once it is on disk
+     * @return A future which completes once the file and its name are durable
+     */
+    CompletableFuture<Void> commit(Path temp, Path target) {
+        PendingFile file = new PendingFile(temp, target);
+        if (!running) {
+            file.future.completeExceptionally(new IOException("storage is closed"));
+        } else {
+            pending.add(file);
+        }
+        return file.future;
+    }
+
+    private void run() {
+        List<PendingFile> batch = new ArrayList<>();
+        while (running || !pending.isEmpty()) {
+            try {
+                PendingFile first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    PendingFile next = pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // finish the batch which has been collected, and any files still pending
+                running = false;
+            }
+
+            commitBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void commitBatch(List<PendingFile> batch) {
+        if (batch.isEmpty()) return;
+
+        List<PendingFile> renamed = new ArrayList<>(batch.size());
+        for (PendingFile file : batch) {
+            try {
+                Files.move(file.temp, file.target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                renamed.add(file);
+            } catch (IOException e) {
+                file.fail(e);
+            }
+        }
+
+        try {
+            forceDirectory(dir);
+        } catch (IOException e) {
+            for (PendingFile file : renamed) file.future.completeExceptionally(e);
+            return;
+        }
+
+        batches.increment();
+        committed.add(renamed.size());
+        for (PendingFile file : renamed) file.future.complete(null);
+    }
+
+    /**
+     * Forces the entries of a directory to disk, so that files renamed into it survive a crash.
+     */
+    static void forceDirectory(Path dir) throws IOException {
+        try (FileChannel channel = openDirectory(dir)) {
+            if (channel != null) channel.force(true);
+        }
+    }
+
+    /**
+     * @return A channel for the directory, or null if directories cannot be opened on this platform, in which case
+     * renames are made durable with the file itself
+     */
+    private static FileChannel openDirectory(Path dir) {
+        try {
+            return FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of batches which have been made durable.
+     */
+    long getBatches() {
+        return batches.sum();
+    }
+
+    long getCommitted() {
+        return committed.sum();
+    }
+
+    /**
+     * Stops accepting files, and waits for the files already submitted to be committed.
+     */
+    void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // files submitted as the committer stopped
+        PendingFile file;
+        while ((file = pending.poll()) != null) file.fail(new IOException("storage is closed"));
+    }
+
+    private static final class PendingFile {
+        private final Path temp;
+        private final Path target;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingFile(Path temp, Path target) {
+            this.temp = temp;
+            this.target = target;
+        }
+
+        private void fail(IOException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+            future.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package jiayu.tls.filetransfer;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps stored files in memory. Writes complete immediately.
+ */
+class InMemoryStorageBackend implements StorageBackend {
+    private final ConcurrentHashMap<String, byte[]> files = new ConcurrentHashMap<>();
+
+    @Override
+    public CompletableFuture<Void> write(Metadata metadata, byte[] content) {
+        files.put(metadata.getFilename(), content);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public byte[] read(String name) {
+        return files.get(name);
+    }
+
+    @Override
+    public void link(String source, String target) throws FileNotFoundException {
+        byte[] content = files.get(source);
+        if (content == null) throw new FileNotFoundException(source);
+        files.put(target, content);
+    }
+
+    @Override
+    public List<String> list() {
+        return new ArrayList<>(files.keySet());
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
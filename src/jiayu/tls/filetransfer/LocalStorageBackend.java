@@ -0,0 +1,178 @@
+package jiayu.tls.filetransfer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores files in a directory.
+ * <p>
+ * Each file is written to a temporary file in the same directory, sized up front from its metadata, and then renamed
+ * over its final name, so that a file is never seen half written and a replaced file is never truncated under
+ * another name linked to it.
+ * <p>
+ * How much of this reaches the disk before the write completes depends on the backend's {@link Durability}.
+ */
+class LocalStorageBackend implements StorageBackend {
+    static final int DEFAULT_IO_THREADS = 4;
+
+    private static final String TEMP_PREFIX = ".";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path dir;
+    private final Durability durability;
+    private final ExecutorService ioPool;
+    private final GroupCommitter committer;
+
+    LocalStorageBackend(Path dir, int ioThreads, Durability durability) {
+        this.dir = dir;
+        this.durability = durability;
+        committer = durability == Durability.GROUP_COMMIT ? new GroupCommitter(dir, GroupCommitter.DEFAULT_WINDOW_MILLIS) : null;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ioPool = Executors.newFixedThreadPool(ioThreads, r -> {
+            Thread thread = new Thread(r, "storage-io-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> write(Metadata metadata, byte[] content) {
+        Path target;
+        try {
+            target = resolve(metadata.getFilename());
+        } catch (IllegalArgumentException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        CompletableFuture<Path> written = CompletableFuture.supplyAsync(() -> {
+            try {
+                // with group commit, files are still forced here, on the I/O pool and through the channel they were
+                // written with, so that the committer only has to rename them and force the directory
+                Path temp = writeTemp(target, metadata.getFilesize(), content, durability != Durability.NONE);
+                if (durability == Durability.GROUP_COMMIT) return temp;
+
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                if (durability == Durability.PER_FILE) GroupCommitter.forceDirectory(dir);
+                return target;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, ioPool);
+
+        if (durability != Durability.GROUP_COMMIT) return written.thenApply(path -> null);
+        return written.thenCompose(temp -> committer.commit(temp, target));
+    }
+
+    /**
+     * Writes content to a new temporary file next to its target.
+     *
+     * @param size  The expected size of the file, which is allocated before the content is written
+     * @param force Whether to force the file to disk before returning
+     */
+    private Path writeTemp(Path target, int size, byte[] content, boolean force) throws IOException {
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, TEMP_PREFIX + target.getFileName(), TEMP_SUFFIX);
+        try (RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw")) {
+            file.setLength(size);
+
+            FileChannel channel = file.getChannel();
+            ByteBuffer buf = ByteBuffer.wrap(content);
+            while (buf.hasRemaining()) channel.write(buf, buf.position());
+            if (content.length != size) file.setLength(content.length);
+            if (force) channel.force(true);
+            return temp;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    @Override
+    public byte[] read(String name) throws IOException {
+        Path file = resolve(name);
+        return Files.isRegularFile(file) ? Files.readAllBytes(file) : null;
+    }
+
+    @Override
+    public void link(String source, String target) throws IOException {
+        Path sourceFile = resolve(source);
+        Path targetFile = resolve(target);
+        if (Files.exists(targetFile) && Files.isSameFile(sourceFile, targetFile)) return;
+
+        // link under a temporary name first so that the target is replaced atomically
+        Path temp = dir.resolve(TEMP_PREFIX + targetFile.getFileName() + ".link" + TEMP_SUFFIX);
+        Files.deleteIfExists(temp);
+        try {
+            try {
+                Files.createLink(temp, sourceFile);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                Files.copy(sourceFile, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(temp, targetFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (durability != Durability.NONE) GroupCommitter.forceDirectory(dir);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        List<String> names = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return names;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, Files::isRegularFile)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (!(name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX))) names.add(name);
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public void close() {
+        ioPool.shutdown();
+        if (committer != null) {
+            try {
+                ioPool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            committer.close();
+        }
+    }
+
+    /**
+     * Returns the number of group commits made, or zero if files are not committed in groups.
+     */
+    long getCommitBatches() {
+        return committer != null ? committer.getBatches() : 0;
+    }
+
+    /**
+     * Returns the path of a stored file, which must be directly inside the directory.
+     */
+    Path resolve(String name) {
+        Path file = dir.resolve(name).normalize();
+        if (!dir.normalize().equals(file.getParent())) throw new IllegalArgumentException("invalid file name " + name);
+        return file;
+    }
+}
@@ -13,6 +13,7 @@ public class Metadata {
     private final String filename;
     private final int filesize;
     private final byte[] checksum;
+    private final Compression compression;
 
     private final int length;
 
@@ -29,11 +30,18 @@ public class Metadata {
     }
 
     private Metadata(String filename, int filesize, byte[] checksum) {
+        this(filename, filesize, checksum, Compression.NONE);
+    }
+
+    private Metadata(String filename, int filesize, byte[] checksum, Compression compression) {
         this.filename = filename;
         this.filesize = filesize;
         this.checksum = checksum;
+        this.compression = compression;
 
-        length = Integer.BYTES + filename.length() + Integer.BYTES + SHA_256_BYTES;
+        // the compression is only sent when there is one, so that uncompressed uploads are framed as before
+        length = Integer.BYTES + filename.length() + Integer.BYTES + SHA_256_BYTES
+                + (compression == Compression.NONE ? 0 : 1);
     }
 
     public static Metadata get(Path file) throws IOException {
@@ -52,14 +60,30 @@ public class Metadata {
         return checksum;
     }
 
+    /**
+     * Returns the compression applied to the content which follows the metadata. The file size and checksum are
+     * always those of the uncompressed content.
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Returns metadata for the same file, declaring that its content is sent with a different compression.
+     */
+    public Metadata withCompression(Compression compression) {
+        return new Metadata(filename, filesize, checksum, compression);
+    }
+
     public byte[] getBytes() {
-        return ByteBuffer.allocate(Integer.BYTES + length)
+        ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES + length)
                 .putInt(length)
                 .putInt(filename.length())
                 .put(filename.getBytes())
                 .putInt(filesize)
-                .put(checksum)
-                .array();
+                .put(checksum);
+        if (compression != Compression.NONE) buf.put(compression.value);
+        return buf.array();
     }
 
     public static Metadata fromBytes(byte[] bytes) {
@@ -71,8 +95,9 @@ public class Metadata {
         int filesize = buf.getInt();
         byte[] checksum = new byte[SHA_256_BYTES];
         buf.get(checksum);
+        Compression compression = buf.hasRemaining() ? Compression.fromValue(buf.get()) : Compression.NONE;
 
-        return new Metadata(filename, filesize, checksum);
+        return new Metadata(filename, filesize, checksum, compression);
     }
 
     public static byte[] calculateChecksum(byte[] bytes) {
@@ -0,0 +1,483 @@
+package jiayu.tls.filetransfer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Stores small files by appending them to large, preallocated segment files, so that storing one costs a sequential
+ * write instead of creating a file. Larger files are stored as files of their own by a {@link LocalStorageBackend}
+ * in the same directory.
+ * <p>
+ * Each record in a segment holds a file's name, length and SHA-256 checksum and a CRC-32 of all of these, followed
+ * by its content, and a record without content removes the name. An index from each name to its latest record is
+ * kept in memory and rebuilt by scanning the segments when the backend is opened. Scanning a segment stops at the
+ * first record whose header does not match its CRC, so that a torn or damaged header is never indexed. When each
+ * segment is forced before the next is started, a crash can only tear the records at the end of the last segment,
+ * so only that segment's content is also checked against its SHA-256 on opening. With {@link Durability#NONE} no
+ * segment is ever forced and any of them may end in torn records, so the content of every segment is checked. The
+ * content of a record is checked again each time it is read.
+ * <p>
+ * Segments are only ever appended to. The space held by records which have been replaced or removed is not
+ * reclaimed, so a store whose small files are often overwritten or deleted keeps growing, and can only be shrunk
+ * by copying its live files into a new store.
+ * <p>
+ * Records are written by a single appender thread. Depending on the {@link Durability}, it forces the segment after
+ * every record, or once for all the records it has collected within the group commit window, before the writes
+ * complete.
+ */
+class SegmentStorageBackend implements StorageBackend {
+    static final int SMALL_FILE_THRESHOLD = 64 * 1024;
+    static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    static final String SEGMENT_DIR = ".segments";
+
+    private static final int RECORD_MAGIC = 0x53454731;
+    private static final int TOMBSTONE = -1;
+    private static final int SHA_256_BYTES = 32;
+    private static final int MAX_NAME_BYTES = 4096;
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private final Path segmentDir;
+    private final long segmentSize;
+    private final Durability durability;
+    private final LocalStorageBackend files;
+
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    // the names stored as files of their own, so that storing a small file only deletes a file which exists
+    private final Set<String> largeFiles = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, FileChannel> segments = new ConcurrentHashMap<>();
+    private final BlockingQueue<Append> appends = new LinkedBlockingQueue<>();
+    private final Thread appender;
+
+    // only used by the appender thread after opening
+    private int currentSegment;
+    private long position;
+
+    private volatile boolean running = true;
+
+    SegmentStorageBackend(Path dir, long segmentSize, Durability durability) throws IOException {
+        this.segmentDir = dir.resolve(SEGMENT_DIR);
+        this.segmentSize = segmentSize;
+        this.durability = durability;
+        files = new LocalStorageBackend(dir, LocalStorageBackend.DEFAULT_IO_THREADS, durability);
+
+        Files.createDirectories(segmentDir);
+        open();
+        largeFiles.addAll(files.list());
+
+        appender = new Thread(this::run, "storage-segment-" + dir.getFileName());
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    @Override
+    public CompletableFuture<Void> write(Metadata metadata, byte[] content) {
+        String name = metadata.getFilename();
+        try {
+            // names are checked as if every file were stored on its own
+            files.resolve(name);
+        } catch (IllegalArgumentException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        if (content.length <= SMALL_FILE_THRESHOLD) {
+            return append(name, content, metadata.getChecksum()).thenRun(() -> deleteFile(name));
+        }
+
+        // the record of an older small version must not shadow the file once it is written
+        return files.write(metadata, content).thenCompose(ignored -> {
+            largeFiles.add(name);
+            return index.containsKey(name)
+                    ? append(name, null, null)
+                    : CompletableFuture.completedFuture(null);
+        });
+    }
+
+    @Override
+    public byte[] read(String name) throws IOException {
+        Entry entry = index.get(name);
+        if (entry == null) return files.read(name);
+
+        ByteBuffer content = ByteBuffer.allocate(entry.length);
+        readFully(segments.get(entry.segment), content, entry.offset);
+        if (!Arrays.equals(entry.checksum, Metadata.calculateChecksum(content.array())))
+            throw new IOException("stored content of " + name + " does not match its checksum");
+        return content.array();
+    }
+
+    @Override
+    public void link(String source, String target) throws IOException {
+        files.resolve(target);
+        if (index.containsKey(source)) {
+            byte[] content = read(source);
+            join(append(target, content, Metadata.calculateChecksum(content)));
+            deleteFile(target);
+        } else {
+            files.link(source, target);
+            largeFiles.add(target);
+            if (index.containsKey(target)) join(append(target, null, null));
+        }
+    }
+
+    /**
+     * Returns the checksum recorded with a file stored in a segment. Files stored on their own have none.
+     */
+    @Override
+    public byte[] getChecksum(String name) {
+        Entry entry = index.get(name);
+        return entry != null ? entry.checksum.clone() : null;
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        Set<String> names = new HashSet<>(index.keySet());
+        names.addAll(files.list());
+        return new ArrayList<>(names);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            appender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Append append;
+        while ((append = appends.poll()) != null) append.future.completeExceptionally(new IOException("storage is closed"));
+
+        for (FileChannel segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException ignored) {
+            }
+        }
+        files.close();
+    }
+
+    /**
+     * Returns the location of a file's content in the segments, or null if it is not stored in a segment.
+     */
+    Entry getEntry(String name) {
+        return index.get(name);
+    }
+
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Queues a record to be appended.
+     *
+     * @param content The content of the file, or null to remove the name
+     */
+    private CompletableFuture<Void> append(String name, byte[] content, byte[] checksum) {
+        Append append = new Append(name, content, checksum);
+        if (!running) {
+            append.future.completeExceptionally(new IOException("storage is closed"));
+        } else {
+            appends.add(append);
+        }
+        return append.future;
+    }
+
+    /**
+     * Deletes the file of a larger version of a file which is now stored in a segment, if there is one.
+     */
+    private void deleteFile(String name) {
+        if (!largeFiles.remove(name)) return;
+
+        try {
+            Files.deleteIfExists(files.resolve(name));
+        } catch (IOException ignored) {
+            // the index already points to the new version
+        }
+    }
+
+    private static void join(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.join();
+        } catch (RuntimeException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private void run() {
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(GroupCommitter.DEFAULT_WINDOW_MILLIS);
+        List<Append> batch = new ArrayList<>();
+        while (running || !appends.isEmpty()) {
+            try {
+                Append first = appends.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                if (durability == Durability.GROUP_COMMIT) {
+                    long deadline = System.nanoTime() + windowNanos;
+                    while (batch.size() < MAX_BATCH_SIZE) {
+                        Append next = appends.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                        batch.add(next);
+                    }
+                } else {
+                    appends.drainTo(batch, MAX_BATCH_SIZE - 1);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+
+            appendBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void appendBatch(List<Append> batch) {
+        List<Append> appended = new ArrayList<>(batch.size());
+        Set<FileChannel> unforced = new HashSet<>();
+        for (Append append : batch) {
+            try {
+                append.entry = writeRecord(append);
+                FileChannel segment = segments.get(currentSegment);
+                if (durability == Durability.PER_FILE) {
+                    segment.force(false);
+                } else if (durability == Durability.GROUP_COMMIT) {
+                    unforced.add(segment);
+                }
+                appended.add(append);
+            } catch (IOException e) {
+                append.future.completeExceptionally(e);
+            }
+        }
+
+        try {
+            for (FileChannel segment : unforced) segment.force(false);
+        } catch (IOException e) {
+            for (Append append : appended) append.future.completeExceptionally(e);
+            return;
+        }
+
+        for (Append append : appended) {
+            if (append.entry != null) {
+                index.put(append.name, append.entry);
+            } else {
+                index.remove(append.name);
+            }
+            append.future.complete(null);
+        }
+    }
+
+    /**
+     * Writes a record at the end of the current segment, starting a new segment if it does not fit.
+     *
+     * @return The location of the record's content, or null for a record which removes a name
+     */
+    private Entry writeRecord(Append append) throws IOException {
+        byte[] name = append.name.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) throw new IOException("name is too long");
+
+        int contentLength = append.content != null ? append.content.length : 0;
+        int headerLength = Integer.BYTES + Integer.BYTES + name.length + Integer.BYTES
+                + (append.content != null ? SHA_256_BYTES : 0) + Integer.BYTES;
+        if (headerLength + contentLength > segmentSize) throw new IOException("file is too large for a segment");
+
+        if (position + headerLength + contentLength > segmentSize) startSegment(currentSegment + 1);
+
+        ByteBuffer record = ByteBuffer.allocate(headerLength + contentLength)
+                .putInt(RECORD_MAGIC)
+                .putInt(name.length)
+                .put(name)
+                .putInt(append.content != null ? contentLength : TOMBSTONE);
+        if (append.content != null) record.put(append.checksum);
+        record.putInt(headerCrc(record.array(), record.position()));
+        if (append.content != null) record.put(append.content);
+        record.flip();
+
+        FileChannel segment = segments.get(currentSegment);
+        long recordStart = position;
+        while (record.hasRemaining()) segment.write(record, recordStart + record.position());
+        position += record.limit();
+
+        return append.content != null ? new Entry(currentSegment, recordStart + headerLength, contentLength, append.checksum) : null;
+    }
+
+    private static int headerCrc(byte[] header, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private void startSegment(int segment) throws IOException {
+        FileChannel previous = segments.get(currentSegment);
+        if (previous != null && durability != Durability.NONE) previous.force(false);
+
+        Path file = segmentDir.resolve(segmentName(segment));
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(segmentSize);
+        }
+        if (durability != Durability.NONE) GroupCommitter.forceDirectory(segmentDir);
+
+        segments.put(segment, FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        currentSegment = segment;
+        position = 0;
+    }
+
+    private static String segmentName(int segment) {
+        return String.format("segment-%06d", segment);
+    }
+
+    /**
+     * Opens the existing segments and rebuilds the index from their records.
+     */
+    private void open() throws IOException {
+        TreeMap<Integer, Path> existing = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(segmentDir, "segment-*")) {
+            for (Path file : stream) {
+                try {
+                    existing.put(Integer.parseInt(file.getFileName().toString().substring("segment-".length())), file);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+
+        if (existing.isEmpty()) {
+            startSegment(0);
+            return;
+        }
+
+        for (Map.Entry<Integer, Path> segment : existing.entrySet()) {
+            FileChannel channel = FileChannel.open(segment.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.put(segment.getKey(), channel);
+
+            boolean last = segment.getKey().equals(existing.lastKey());
+            long end = scan(segment.getKey(), channel, last || durability == Durability.NONE);
+            if (last) {
+                currentSegment = segment.getKey();
+                position = end;
+            }
+        }
+    }
+
+    /**
+     * Adds the records of a segment to the index.
+     *
+     * @param verify Whether to check the content of each record against its checksum
+     * @return The position after the last complete record
+     */
+    private long scan(int segment, FileChannel channel, boolean verify) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES * 2);
+
+        while (position + prefix.capacity() <= size) {
+            prefix.clear();
+            readFully(channel, prefix, position);
+            prefix.flip();
+            if (prefix.getInt() != RECORD_MAGIC) break;
+
+            // the name is followed by at least the length and the header CRC
+            int nameLength = prefix.getInt();
+            if (nameLength < 0 || nameLength > MAX_NAME_BYTES
+                    || position + prefix.capacity() + nameLength + Integer.BYTES * 2 > size) break;
+
+            // the rest of the header is read at once, as if it had a checksum
+            ByteBuffer header = ByteBuffer.allocate((int) Math.min(
+                    prefix.capacity() + nameLength + Integer.BYTES + SHA_256_BYTES + Integer.BYTES, size - position));
+            readFully(channel, header, position);
+            header.position(prefix.capacity());
+
+            byte[] name = new byte[nameLength];
+            header.get(name);
+            int contentLength = header.getInt();
+            byte[] checksum = null;
+            if (contentLength != TOMBSTONE) {
+                if (contentLength < 0 || header.remaining() < SHA_256_BYTES + Integer.BYTES) break;
+                checksum = new byte[SHA_256_BYTES];
+                header.get(checksum);
+            }
+
+            // a torn or damaged header
+            if (header.getInt(header.position()) != headerCrc(header.array(), header.position())) break;
+
+            long contentStart = position + header.position() + Integer.BYTES;
+            if (checksum == null) {
+                index.remove(new String(name, StandardCharsets.UTF_8));
+                position = contentStart;
+                continue;
+            }
+            if (contentStart + contentLength > size) break;
+
+            if (verify) {
+                ByteBuffer content = ByteBuffer.allocate(contentLength);
+                readFully(channel, content, contentStart);
+                // a torn write at the end of the segment
+                if (!Arrays.equals(checksum, Metadata.calculateChecksum(content.array()))) break;
+            }
+
+            index.put(new String(name, StandardCharsets.UTF_8), new Entry(segment, contentStart, contentLength, checksum));
+            position = contentStart + contentLength;
+        }
+
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) throw new IOException("segment is truncated");
+        }
+    }
+
+    /**
+     * Where the content of a file is in the segments.
+     */
+    static final class Entry {
+        final int segment;
+        final long offset;
+        final int length;
+        final byte[] checksum;
+
+        private Entry(int segment, long offset, int length, byte[] checksum) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+
+    private static final class Append {
+        private final String name;
+        private final byte[] content;
+        private final byte[] checksum;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Entry entry;
+
+        private Append(String name, byte[] content, byte[] checksum) {
+            this.name = name;
+            this.content = content;
+            this.checksum = checksum;
+        }
+    }
+}
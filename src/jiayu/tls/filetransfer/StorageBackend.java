@@ -0,0 +1,100 @@
+package jiayu.tls.filetransfer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where received files are stored.
+ * <p>
+ * Files are written asynchronously, so that the threads which serve connections never wait for the disk, and a
+ * file only becomes visible under its name once it has been written completely.
+ */
+public interface StorageBackend {
+    /**
+     * Returns a backend which stores files in a directory, writing them on a dedicated pool of I/O threads, without
+     * forcing them to disk.
+     *
+     * @param dir The directory, which is created if it does not exist
+     */
+    static StorageBackend getLocal(Path dir) {
+        return getLocal(dir, Durability.NONE);
+    }
+
+    /**
+     * Returns a backend which stores files in a directory, and completes writes once they are as durable as the
+     * given policy requires.
+     */
+    static StorageBackend getLocal(Path dir, Durability durability) {
+        return new LocalStorageBackend(dir, LocalStorageBackend.DEFAULT_IO_THREADS, durability);
+    }
+
+    /**
+     * Returns a backend which appends small files to preallocated segment files in a directory, instead of storing
+     * each of them as a file of its own.
+     *
+     * @param dir The directory, which is created if it does not exist
+     * @throws IOException If the existing segments could not be read
+     */
+    static StorageBackend getSegmented(Path dir, Durability durability) throws IOException {
+        return new SegmentStorageBackend(dir, SegmentStorageBackend.DEFAULT_SEGMENT_SIZE, durability);
+    }
+
+    /**
+     * Returns a backend which keeps files in memory, for tests.
+     */
+    static StorageBackend newInMemory() {
+        return new InMemoryStorageBackend();
+    }
+
+    /**
+     * Stores a file, replacing any stored file of the same name.
+     *
+     * @param metadata The metadata of the file, which gives its name and size, and whose checksum must be that of
+     *                 the content
+     * @param content  The content of the file, which must not be modified until the write completes
+     * @return A future which completes once the file is stored, and durable if the backend promises durability,
+     * or completes exceptionally if it could not be stored
+     */
+    CompletableFuture<Void> write(Metadata metadata, byte[] content);
+
+    /**
+     * Reads a stored file.
+     *
+     * @param name The name of the file
+     * @return The content of the file, or null if there is no such file
+     * @throws IOException If the file could not be read
+     */
+    byte[] read(String name) throws IOException;
+
+    /**
+     * Stores an existing file under another name as well, without copying its content if possible.
+     *
+     * @param source The name of the stored file
+     * @param target The new name, which replaces any stored file of that name
+     * @throws IOException If the file could not be linked
+     */
+    void link(String source, String target) throws IOException;
+
+    /**
+     * Returns the SHA-256 checksum of a stored file's content, if the backend keeps one, so that it can be found
+     * without reading the file.
+     *
+     * @param name The name of the file
+     * @return The checksum, or null if the backend keeps none for the file
+     */
+    default byte[] getChecksum(String name) {
+        return null;
+    }
+
+    /**
+     * Returns the names of all stored files.
+     */
+    List<String> list() throws IOException;
+
+    /**
+     * Releases the resources of the backend once pending writes are complete.
+     */
+    void close();
+}
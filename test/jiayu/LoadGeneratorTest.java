@@ -0,0 +1,33 @@
+package jiayu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LoadGeneratorTest {
+    @Test
+    public void sizeDistributions() throws Exception {
+        assertEquals(64 * 1024, LoadGenerator.SizeDistribution.parseSize("64K"));
+        assertEquals(1 << 20, LoadGenerator.SizeDistribution.parseSize("1m"));
+        assertEquals(100, LoadGenerator.SizeDistribution.parseSize("100"));
+
+        LoadGenerator.SizeDistribution fixed = LoadGenerator.SizeDistribution.parse("4K");
+        assertEquals(4096, fixed.next());
+        assertEquals(4096, fixed.getMax());
+
+        LoadGenerator.SizeDistribution uniform = LoadGenerator.SizeDistribution.parse("1K-2K");
+        LoadGenerator.SizeDistribution exponential = LoadGenerator.SizeDistribution.parse("exp:1K");
+        for (int i = 0; i < 1000; i++) {
+            int size = uniform.next();
+            assertTrue(size >= 1024 && size <= 2048);
+
+            size = exponential.next();
+            assertTrue(size >= 0 && size <= exponential.getMax());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyRange() throws Exception {
+        LoadGenerator.SizeDistribution.parse("2K-1K");
+    }
+}
@@ -0,0 +1,66 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import static org.junit.Assert.*;
+
+public class CertificateChainCacheTest {
+    private static X509Certificate load(String file) throws Exception {
+        return (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(Files.newInputStream(Paths.get(file)));
+    }
+
+    @Test
+    public void verifiedChainIsFound() throws Exception {
+        X509Certificate cert = load("misc/certs/localhostcert.crt");
+        TrustStore trustStore = TrustStore.newInstance();
+        trustStore.addTrustAnchor(cert);
+
+        CertificateChainCache cache = new CertificateChainCache();
+        assertNull(cache.get("chain", trustStore));
+
+        cache.put("chain", new X509Certificate[]{cert}, cert);
+        assertEquals(cert, cache.get("chain", trustStore));
+        assertNull(cache.get("other chain", trustStore));
+    }
+
+    @Test
+    public void leastRecentlyUsedChainIsEvicted() throws Exception {
+        X509Certificate cert = load("misc/certs/localhostcert.crt");
+        TrustStore trustStore = TrustStore.newInstance();
+        trustStore.addTrustAnchor(cert);
+
+        CertificateChainCache cache = new CertificateChainCache(2);
+        cache.put("a", new X509Certificate[]{cert}, cert);
+        cache.put("b", new X509Certificate[]{cert}, cert);
+        cache.get("a", trustStore);
+        cache.put("c", new X509Certificate[]{cert}, cert);
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a", trustStore));
+        assertNull(cache.get("b", trustStore));
+        assertNotNull(cache.get("c", trustStore));
+    }
+
+    @Test
+    public void chainIsForgottenWhenNoLongerValid() throws Exception {
+        X509Certificate cert = load("misc/certs/localhostcert.crt");
+        X509Certificate expired = load("misc/certs/servercert.crt");
+
+        CertificateChainCache cache = new CertificateChainCache();
+        cache.put("untrusted", new X509Certificate[]{cert}, cert);
+        assertNull(cache.get("untrusted", TrustStore.newInstance()));
+
+        TrustStore trustStore = TrustStore.newInstance();
+        trustStore.addTrustAnchor(expired);
+        cache.put("expired", new X509Certificate[]{expired}, expired);
+        assertNull(cache.get("expired", trustStore));
+
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,65 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CipherSuiteNegotiatorTest {
+    @Test
+    public void fromValue() throws Exception {
+        for (CipherSuite cipherSuite : CipherSuite.values())
+            assertSame(cipherSuite, CipherSuite.fromValue(cipherSuite.value));
+
+        assertNull(CipherSuite.fromValue((short) 0x0A0A));
+        assertNull(CipherSuite.fromValue((short) 0xFFFF));
+    }
+
+    @Test
+    public void negotiateUsesServerPreference() throws Exception {
+        CipherSuiteNegotiator negotiator = new CipherSuiteNegotiator(CipherSuite.TLS_RSA_WITH_AES_128_CBC_SHA256);
+        ClientHello clientHello = new ClientHello(CipherSuite.TLS_NULL_WITH_NULL_NULL, CipherSuite.TLS_RSA_WITH_AES_128_CBC_SHA256);
+
+        assertEquals(CipherSuite.TLS_RSA_WITH_AES_128_CBC_SHA256, negotiator.negotiate(clientHello));
+    }
+
+    @Test
+    public void clientPreferringChaChaGetsChaCha() throws Exception {
+        CipherSuiteNegotiator negotiator = new CipherSuiteNegotiator(CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,
+                CipherSuite.TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256, CipherSuite.TLS_RSA_WITH_AES_128_CBC_SHA256);
+
+        assertEquals(CipherSuite.TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256, negotiator.negotiate(new ClientHello(
+                CipherSuite.TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256, CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256)));
+
+        // otherwise the server's preference still decides, even over a client which lists ChaCha20 second
+        assertEquals(CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256, negotiator.negotiate(new ClientHello(
+                CipherSuite.TLS_RSA_WITH_AES_128_CBC_SHA256, CipherSuite.TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256,
+                CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256)));
+    }
+
+    @Test(expected = FatalAlertException.class)
+    public void negotiateNoCommonCipherSuite() throws Exception {
+        CipherSuiteNegotiator negotiator = new CipherSuiteNegotiator(CipherSuite.TLS_RSA_WITH_AES_128_CBC_SHA256);
+        negotiator.negotiate(new ClientHello(CipherSuite.TLS_NULL_WITH_NULL_NULL));
+    }
+
+    @Test
+    public void unknownCipherSuitesArePreserved() throws Exception {
+        byte[] content = new ClientHello(CipherSuite.TLS_RSA_WITH_AES_128_CBC_SHA256).getContent();
+        // replace the offered cipher suite with one this implementation does not know
+        int offset = HandshakeMessage.HEADER_LENGTH + 2 + Random.BYTES + 1 + 2;
+        content[offset] = (byte) 0x0A;
+        content[offset + 1] = (byte) 0x0A;
+
+        ClientHello received = (ClientHello) new GenericProtocolMessage(ContentType.HANDSHAKE, content)
+                .asHandshakeMessage(HandshakeType.CLIENT_HELLO);
+
+        assertEquals(0, received.getCipherSuites().length);
+        assertArrayEquals(content, received.getContent());
+    }
+
+    @Test
+    public void rankForHardware() throws Exception {
+        assertTrue(CipherSuiteNegotiator.rankForHardware(true).length > 0);
+        assertTrue(CipherSuiteNegotiator.rankForHardware(false).length > 0);
+    }
+}
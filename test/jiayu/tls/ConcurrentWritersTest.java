@@ -0,0 +1,68 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentWritersTest {
+    private static final int WRITERS = 8;
+    private static final int MESSAGES = 40;
+    // larger than one record, so every message is split
+    private static final int MESSAGE_LENGTH = 20000;
+
+    @Test
+    public void messagesFromConcurrentWritersAreNotInterleaved() throws Exception {
+        SecureServerSocket serverSocket = new SecureServerSocket();
+        serverSocket.setServerCert(Paths.get("misc/certs/localhostcert.crt"));
+        serverSocket.setServerKey(Paths.get("misc/certs/serverkey.der"));
+
+        TrustStore trustStore = TrustStore.newInstance();
+        trustStore.load(Paths.get("misc/certs/localhostcert.crt"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + 1);
+        try {
+            InMemoryTransport clientEnd = new InMemoryTransport();
+            Future<SecureSocket> accepted = executor.submit(() -> serverSocket.acceptSecured(clientEnd.getPeer()));
+
+            SecureSocket client = new SecureSocket();
+            client.setTrustStore(trustStore);
+            client.connectSecured(clientEnd, "localhost");
+            SecureSocket server = accepted.get();
+
+            Future<?>[] writers = new Future<?>[WRITERS];
+            for (int i = 0; i < WRITERS; i++) {
+                int writer = i;
+                writers[i] = executor.submit(() -> {
+                    for (int j = 0; j < MESSAGES; j++) client.getOutputStream().write(message(writer, j));
+                    return null;
+                });
+            }
+
+            // each message is filled with its writer and sequence number, and messages from one writer arrive in order
+            int[] expected = new int[WRITERS];
+            byte[] received = new byte[MESSAGE_LENGTH];
+            for (int i = 0; i < WRITERS * MESSAGES; i++) {
+                server.getInputStream().readFully(received);
+                int writer = ByteBuffer.wrap(received).getInt();
+                assertArrayEquals(message(writer, expected[writer]), received);
+                expected[writer]++;
+            }
+
+            for (Future<?> writer : writers) writer.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] message(int writer, int sequence) {
+        ByteBuffer message = ByteBuffer.allocate(MESSAGE_LENGTH);
+        while (message.hasRemaining()) message.putInt(writer).putInt(sequence);
+        return message.array();
+    }
+}
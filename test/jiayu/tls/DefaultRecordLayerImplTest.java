@@ -0,0 +1,222 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DefaultRecordLayerImplTest {
+    private static ConnectionState nullState() throws Exception {
+        ConnectionState state = new ConnectionState();
+        state.init(new SecurityParameters(ConnectionEnd.CLIENT));
+        return state;
+    }
+
+    private static ConnectionState gcmState(ConnectionEnd connectionEnd) throws Exception {
+        SecurityParameters securityParameters = new SecurityParameters(connectionEnd);
+        securityParameters.setCipherSuite(CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256);
+        securityParameters.setMasterSecret(new byte[48]);
+        securityParameters.setClientRandom(new byte[Random.BYTES]);
+        securityParameters.setServerRandom(new byte[Random.BYTES]);
+
+        ConnectionState state = new ConnectionState();
+        state.init(securityParameters);
+        return state;
+    }
+
+    private static byte[] content(int i, int length) {
+        byte[] content = new byte[length];
+        for (int j = 0; j < length; j++) content[j] = (byte) (i + j);
+        return content;
+    }
+
+    @Test
+    public void unexpectedWriteFailureIsReportedToWriter() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        RecordLayer writer = RecordLayer.getInstance(transport, nullState(), nullState());
+        RecordLayer reader = RecordLayer.getInstance(transport.getPeer(), nullState(), nullState());
+
+        ProtocolMessage broken = new ProtocolMessage() {
+            @Override
+            public ContentType getContentType() {
+                return ContentType.APPLICATION_DATA;
+            }
+
+            @Override
+            public byte[] getContent() {
+                throw new IllegalStateException();
+            }
+        };
+
+        try {
+            writer.putNextOutgoingMessage(broken);
+            fail("write should have failed");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        // the write path was released
+        writer.putNextOutgoingMessage(new ApplicationData(new byte[]{1, 2, 3}));
+        assertArrayEquals(new byte[]{1, 2, 3}, reader.getNextIncomingMessage().getContent());
+    }
+
+    @Test
+    public void recordsReadAheadAreDeliveredInOrder() throws Exception {
+        RecordBufferPool buffers = new RecordBufferPool(false, 64);
+        ExecutorService recordPool = Executors.newFixedThreadPool(2);
+        try {
+            InMemoryTransport transport = new InMemoryTransport(1 << 20);
+            RecordLayer writer = new DefaultRecordLayerImpl(transport, gcmState(ConnectionEnd.CLIENT), gcmState(ConnectionEnd.CLIENT), null, buffers);
+            RecordLayer reader = new DefaultRecordLayerImpl(transport.getPeer(), gcmState(ConnectionEnd.SERVER), gcmState(ConnectionEnd.SERVER), recordPool, buffers);
+
+            // more records than fit in one read ahead window
+            int records = 3 * RecordProtectionPool.MAX_RECORDS_IN_FLIGHT + 5;
+            for (int i = 0; i < records; i++) writer.putNextOutgoingMessage(new ApplicationData(content(i, 100)));
+
+            for (int i = 0; i < records; i++) {
+                assertArrayEquals(content(i, 100), reader.getNextIncomingMessage().getContent());
+            }
+            assertEquals(buffers.getAcquired(), buffers.getReleased());
+        } finally {
+            recordPool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void recordsAreCarriedInDirectBuffers() throws Exception {
+        RecordBufferPool buffers = new RecordBufferPool(true, 64);
+        ExecutorService recordPool = Executors.newFixedThreadPool(2);
+        try {
+            InMemoryTransport transport = new InMemoryTransport(1 << 20);
+            RecordLayer writer = new DefaultRecordLayerImpl(transport, gcmState(ConnectionEnd.CLIENT), gcmState(ConnectionEnd.CLIENT), recordPool, buffers);
+            RecordLayer reader = new DefaultRecordLayerImpl(transport.getPeer(), gcmState(ConnectionEnd.SERVER), gcmState(ConnectionEnd.SERVER), recordPool, buffers);
+
+            // a message split into records which are encrypted in parallel, followed by records read ahead
+            byte[] large = content(0, 3 * RecordLayer.MAX_RECORD_LENGTH);
+            writer.putNextOutgoingMessage(new ApplicationData(large));
+            for (int i = 1; i <= 10; i++) writer.putNextOutgoingMessage(new ApplicationData(content(i, 100)));
+
+            ByteQueue received = new ByteQueue();
+            while (received.size() < large.length) received.enqueue(reader.getNextIncomingMessage().getContent());
+            assertArrayEquals(large, received.dequeue(large.length));
+            for (int i = 1; i <= 10; i++) {
+                assertArrayEquals(content(i, 100), reader.getNextIncomingMessage().getContent());
+            }
+            assertEquals(buffers.getAcquired(), buffers.getReleased());
+        } finally {
+            recordPool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void badRecordMacStopsDeliveryOfRecordsReadAhead() throws Exception {
+        RecordBufferPool buffers = new RecordBufferPool(false, 64);
+        ExecutorService recordPool = Executors.newFixedThreadPool(2);
+        try {
+            InMemoryTransport captured = new InMemoryTransport();
+            RecordLayer writer = new DefaultRecordLayerImpl(captured, gcmState(ConnectionEnd.CLIENT), gcmState(ConnectionEnd.CLIENT), null, buffers);
+            for (int i = 0; i < 10; i++) writer.putNextOutgoingMessage(new ApplicationData(content(i, 10)));
+
+            // header, explicit nonce, content and tag
+            int recordLength = Record.HEADER_LENGTH + 8 + 10 + GenericAEADCipherEncryptionProvider.TAG_LENGTH;
+            byte[] stream = new byte[10 * recordLength];
+            new DataInputStream(captured.getPeer().getInputStream()).readFully(stream);
+            stream[5 * recordLength + Record.HEADER_LENGTH + 8] ^= 1;
+
+            InMemoryTransport transport = new InMemoryTransport();
+            transport.getOutputStream().write(stream);
+            transport.close();
+            RecordLayer reader = new DefaultRecordLayerImpl(transport.getPeer(), gcmState(ConnectionEnd.SERVER), gcmState(ConnectionEnd.SERVER), recordPool, buffers);
+
+            for (int i = 0; i < 5; i++) {
+                assertArrayEquals(content(i, 10), reader.getNextIncomingMessage().getContent());
+            }
+            try {
+                reader.getNextIncomingMessage();
+                fail("record with a bad mac should have been rejected");
+            } catch (FatalAlertException e) {
+                assertEquals(AlertDescription.BAD_RECORD_MAC, e.getAlertDescription());
+            }
+
+            // the records after it, which had already been read ahead, are never delivered
+            try {
+                reader.getNextIncomingMessage();
+                fail("records after a bad record should not be delivered");
+            } catch (FatalAlertException e) {
+                assertEquals(AlertDescription.DECODE_ERROR, e.getAlertDescription());
+            }
+            assertEquals(buffers.getAcquired(), buffers.getReleased());
+        } finally {
+            recordPool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void largeMessageIsEncryptedInParallelAndWrittenInOrder() throws Exception {
+        RecordBufferPool buffers = new RecordBufferPool(false, 64);
+        ExecutorService recordPool = Executors.newFixedThreadPool(2);
+        try {
+            InMemoryTransport transport = new InMemoryTransport(1 << 20);
+            RecordLayer writer = new DefaultRecordLayerImpl(transport, gcmState(ConnectionEnd.CLIENT), gcmState(ConnectionEnd.CLIENT), recordPool, buffers);
+            RecordLayer reader = new DefaultRecordLayerImpl(transport.getPeer(), gcmState(ConnectionEnd.SERVER), gcmState(ConnectionEnd.SERVER), null, buffers);
+
+            byte[] message = content(7, 20 * RecordLayer.MAX_RECORD_LENGTH + 123);
+            writer.putNextOutgoingMessage(new ApplicationData(message));
+
+            byte[] received = new byte[message.length];
+            int offset = 0;
+            while (offset < received.length) {
+                byte[] record = reader.getNextIncomingMessage().getContent();
+                System.arraycopy(record, 0, received, offset, record.length);
+                offset += record.length;
+            }
+            assertArrayEquals(message, received);
+            assertEquals(buffers.getAcquired(), buffers.getReleased());
+        } finally {
+            recordPool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedEncryptionReleasesRecordsInFlight() throws Exception {
+        RecordBufferPool buffers = new RecordBufferPool(false, 64);
+        // fails the third record of a message without running it
+        ExecutorService recordPool = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>()) {
+            private final AtomicInteger submitted = new AtomicInteger();
+
+            @Override
+            protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+                if (submitted.incrementAndGet() == 3) return new FutureTask<>(() -> {
+                    throw new IllegalStateException();
+                });
+                return super.newTaskFor(callable);
+            }
+        };
+        try {
+            InMemoryTransport transport = new InMemoryTransport(1 << 20);
+            RecordLayer writer = new DefaultRecordLayerImpl(transport, gcmState(ConnectionEnd.CLIENT), gcmState(ConnectionEnd.CLIENT), recordPool, buffers);
+
+            try {
+                writer.putNextOutgoingMessage(new ApplicationData(new byte[6 * RecordLayer.MAX_RECORD_LENGTH]));
+                fail("write should have failed");
+            } catch (IOException e) {
+                // expected
+            }
+            assertTrue(buffers.getAcquired() > 2);
+            assertEquals(buffers.getAcquired(), buffers.getReleased());
+        } finally {
+            recordPool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+
+import static org.junit.Assert.*;
+
+public class ECDHEKeyExchangeTest {
+    @Test
+    public void bothEndsAgree() throws Exception {
+        ECDHEKeyExchange server = new ECDHEKeyExchange();
+        ECDHEKeyExchange client = new ECDHEKeyExchange();
+
+        assertEquals(65, server.getPublicPoint().length);
+        assertArrayEquals(server.generatePremasterSecret(client.getPublicPoint()).getBytes(),
+                client.generatePremasterSecret(server.getPublicPoint()).getBytes());
+    }
+
+    @Test(expected = FatalAlertException.class)
+    public void pointNotOnCurve() throws Exception {
+        byte[] point = new ECDHEKeyExchange().getPublicPoint();
+        point[point.length - 1] ^= 1;
+
+        new ECDHEKeyExchange().generatePremasterSecret(point);
+    }
+
+    @Test
+    public void serverKeyExchangeSignature() throws Exception {
+        PrivateKey serverKey = ServerCredentials.readPrivateKey(Paths.get("misc/certs/serverkey.der"));
+        PublicKey serverPublicKey = CertificateFactory.getInstance("X.509")
+                .generateCertificate(Files.newInputStream(Paths.get("misc/certs/servercert.crt")))
+                .getPublicKey();
+        byte[] clientRandom = new Random().toBytes();
+        byte[] serverRandom = new Random().toBytes();
+
+        ServerKeyExchange sent = ServerKeyExchange.createSigned(new ECDHEKeyExchange(), clientRandom, serverRandom, serverKey);
+        ServerKeyExchange received = (ServerKeyExchange) new GenericProtocolMessage(ContentType.HANDSHAKE, sent.getContent())
+                .asHandshakeMessage(HandshakeType.SERVER_KEY_EXCHANGE);
+
+        assertEquals(ECDHEKeyExchange.SECP256R1, received.getNamedCurve());
+        received.verify(serverPublicKey, clientRandom, serverRandom);
+
+        try {
+            received.verify(serverPublicKey, serverRandom, clientRandom);
+            fail();
+        } catch (FatalAlertException e) {
+            assertEquals(AlertDescription.DECRYPT_ERROR, e.getAlertDescription());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class GenericAEADCipherEncryptionProviderTest {
+    private static ConnectionState serverReadState() throws Exception {
+        SecurityParameters securityParameters = new SecurityParameters(ConnectionEnd.SERVER);
+        securityParameters.setCipherSuite(CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256);
+        securityParameters.setMasterSecret(new byte[48]);
+        securityParameters.setClientRandom(new byte[Random.BYTES]);
+        securityParameters.setServerRandom(new byte[Random.BYTES]);
+
+        ConnectionState readState = new ConnectionState();
+        readState.init(securityParameters, KeyMaterial.derive(securityParameters));
+        return readState;
+    }
+
+    @Test
+    public void explicitNonceIsChosenBySender() throws Exception {
+        ConnectionState readState = serverReadState();
+        byte[] plaintext = "hello".getBytes();
+        long seqNum = 3;
+
+        // a peer which does not use the sequence number as the explicit nonce
+        byte[] nonceExplicit = {1, 2, 3, 4, 5, 6, 7, 8};
+        byte[] nonce = ByteBuffer.allocate(12).put(readState.getClientWriteIV()).put(nonceExplicit).array();
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(readState.getClientWriteKey(), "AES"), new GCMParameterSpec(128, nonce));
+        cipher.updateAAD(ByteBuffer.allocate(13).putLong(seqNum).put(ContentType.APPLICATION_DATA.value)
+                .putShort(Record.PROTOCOL_VERSION).putShort((short) plaintext.length).array());
+        byte[] ciphertext = cipher.doFinal(plaintext);
+
+        ByteBuffer fragment = ByteBuffer.allocate(nonceExplicit.length + ciphertext.length).put(nonceExplicit).put(ciphertext);
+        fragment.flip();
+        GenericAEADCipherEncryptionProvider.decrypt(readState, seqNum, ContentType.APPLICATION_DATA, Record.PROTOCOL_VERSION, fragment);
+
+        assertArrayEquals(plaintext, Arrays.copyOfRange(fragment.array(), fragment.position(), fragment.limit()));
+
+        // the sequence number is still authenticated
+        fragment.clear();
+        fragment.put(nonceExplicit).put(ciphertext).flip();
+        try {
+            GenericAEADCipherEncryptionProvider.decrypt(readState, seqNum + 1, ContentType.APPLICATION_DATA, Record.PROTOCOL_VERSION, fragment);
+            fail();
+        } catch (FatalAlertException e) {
+            assertEquals(AlertDescription.BAD_RECORD_MAC, e.getAlertDescription());
+        }
+    }
+}
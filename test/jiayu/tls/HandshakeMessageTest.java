@@ -0,0 +1,66 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class HandshakeMessageTest {
+    @Test
+    public void receivedMessagesKeepTheirEncoding() throws Exception {
+        byte[] encoded = new ClientHello("localhost", CipherSuite.TLS_RSA_WITH_AES_128_CBC_SHA256).getContent();
+
+        ClientHello clientHello = (ClientHello) new GenericProtocolMessage(ContentType.HANDSHAKE, encoded)
+                .asHandshakeMessage(HandshakeType.CLIENT_HELLO);
+
+        assertEquals("localhost", clientHello.getServerName());
+        assertArrayEquals(new CipherSuite[]{CipherSuite.TLS_RSA_WITH_AES_128_CBC_SHA256}, clientHello.getCipherSuites());
+        assertSame(encoded, clientHello.getContent());
+    }
+
+    @Test
+    public void certificatesAreReadFromTheMessageBody() throws Exception {
+        byte[] der = Files.readAllBytes(Paths.get("misc/certs/localhostcert.crt"));
+        Certificate certificate = new Certificate(new ASN1Cert(der), new ASN1Cert(der));
+
+        // the encoding is computed once
+        byte[] encoded = certificate.getContent();
+        assertSame(encoded, certificate.getContent());
+
+        Certificate received = (Certificate) new GenericProtocolMessage(ContentType.HANDSHAKE, encoded.clone())
+                .asHandshakeMessage(HandshakeType.CERTIFICATE);
+        assertEquals(2, received.getCertificateList().getContents().size());
+        for (ASN1Cert asn1Cert : received.getCertificateList().getContents()) assertTrue(Arrays.equals(der, asn1Cert.content));
+    }
+
+    @Test
+    public void truncatedCertificateIsADecodeError() throws Exception {
+        byte[] der = Files.readAllBytes(Paths.get("misc/certs/localhostcert.crt"));
+        byte[] encoded = new Certificate(new ASN1Cert(der)).getContent().clone();
+
+        // claim one more byte for the certificate than the list holds
+        encoded[HandshakeMessage.HEADER_LENGTH + CertificateList.LENGTH_BYTES + 2]++;
+
+        try {
+            new GenericProtocolMessage(ContentType.HANDSHAKE, encoded).asHandshakeMessage(HandshakeType.CERTIFICATE);
+            fail();
+        } catch (FatalAlertException e) {
+            assertEquals(AlertDescription.DECODE_ERROR, e.getAlertDescription());
+        }
+    }
+
+    @Test
+    public void typesAreLookedUpByValue() throws Exception {
+        for (ContentType contentType : ContentType.values()) assertSame(contentType, ContentType.valueOf(contentType.value));
+        for (HandshakeType handshakeType : HandshakeType.values()) assertSame(handshakeType, HandshakeType.valueOf(handshakeType.value));
+        for (AlertDescription desc : AlertDescription.values()) assertSame(desc, AlertDescription.valueOf(desc.value));
+    }
+
+    @Test(expected = FatalAlertException.class)
+    public void unknownHandshakeType() throws Exception {
+        HandshakeType.valueOf((byte) 0xFF);
+    }
+}
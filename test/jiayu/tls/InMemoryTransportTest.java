@@ -0,0 +1,81 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class InMemoryTransportTest {
+    @Test
+    public void pipeWrapsAround() throws Exception {
+        InMemoryTransport a = new InMemoryTransport(7);
+        OutputStream out = a.getOutputStream();
+        InputStream in = a.getPeer().getInputStream();
+
+        byte[] buf = new byte[5];
+        for (int i = 0; i < 10; i++) {
+            out.write(new byte[]{1, 2, 3, 4, 5});
+            assertEquals(5, in.read(buf));
+            assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, buf);
+        }
+
+        // the reader sees what was written before the writer closed, then end-of-stream
+        out.write(9);
+        a.close();
+        assertEquals(9, in.read());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void handshakeAndTransfer() throws Exception {
+        SecureServerSocket serverSocket = new SecureServerSocket();
+        serverSocket.setServerCert(Paths.get("misc/certs/localhostcert.crt"));
+        serverSocket.setServerKey(Paths.get("misc/certs/serverkey.der"));
+
+        TrustStore trustStore = TrustStore.newInstance();
+        trustStore.load(Paths.get("misc/certs/localhostcert.crt"));
+
+        byte[] data = new byte[100000];
+        new java.util.Random(1).nextBytes(data);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (CipherSuite cipherSuite : CipherSuiteNegotiator.getDefault().getPreferences()) {
+                CipherSuiteNegotiator negotiator = new CipherSuiteNegotiator(cipherSuite);
+                serverSocket.setCipherSuiteNegotiator(negotiator);
+
+                // data larger than the pipe forces both ends to make progress concurrently
+                InMemoryTransport clientEnd = new InMemoryTransport();
+                Future<Void> server = executor.submit(() -> {
+                    SecureSocket accepted = serverSocket.acceptSecured(clientEnd.getPeer());
+                    byte[] received = new byte[data.length];
+                    accepted.getInputStream().readFully(received);
+                    accepted.getOutputStream().write(received);
+                    return null;
+                });
+
+                SecureSocket client = new SecureSocket();
+                client.setTrustStore(trustStore);
+                client.setCipherSuiteNegotiator(negotiator);
+                client.connectSecured(clientEnd, "localhost");
+                client.getOutputStream().write(data);
+
+                byte[] echoed = new byte[data.length];
+                client.getInputStream().readFully(echoed);
+                server.get();
+
+                assertTrue(cipherSuite.name(), Arrays.equals(data, echoed));
+                client.getTransport().close();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
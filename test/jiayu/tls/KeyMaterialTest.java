@@ -0,0 +1,59 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class KeyMaterialTest {
+    @Test
+    public void keyBlockIsSplitInOrder() throws Exception {
+        SecurityParameters securityParameters = new SecurityParameters(ConnectionEnd.CLIENT);
+        securityParameters.setCipherSuite(CipherSuite.TLS_RSA_WITH_AES_128_CBC_SHA256);
+        securityParameters.setMasterSecret(new byte[48]);
+        securityParameters.setClientRandom(new byte[Random.BYTES]);
+        securityParameters.setServerRandom(new byte[Random.BYTES]);
+
+        PRF prf = PRF.getInstance(PRFAlgorithm.TLS_PRF_SHA256);
+        prf.init(new byte[48], "key expansion", new byte[Random.BYTES], new byte[Random.BYTES]);
+        byte[] expected = prf.getBytes(2 * (32 + 16));
+
+        KeyMaterial keyMaterial = KeyMaterial.derive(securityParameters);
+        assertArrayEquals(Arrays.copyOfRange(expected, 0, 32), keyMaterial.getClientWriteMACKey());
+        assertArrayEquals(Arrays.copyOfRange(expected, 32, 64), keyMaterial.getServerWriteMACKey());
+        assertArrayEquals(Arrays.copyOfRange(expected, 64, 80), keyMaterial.getClientWriteKey());
+        assertArrayEquals(Arrays.copyOfRange(expected, 80, 96), keyMaterial.getServerWriteKey());
+        assertEquals(0, keyMaterial.getClientWriteIV().length);
+
+        // both states of a connection see the same keys, and lose them together
+        ConnectionState readState = new ConnectionState();
+        ConnectionState writeState = new ConnectionState();
+        readState.init(securityParameters, keyMaterial);
+        writeState.init(securityParameters, keyMaterial);
+        assertArrayEquals(readState.getServerWriteKey(), writeState.getServerWriteKey());
+
+        // record keys are copied once and wiped with the state which copied them
+        RecordKeys recordKeys = writeState.getServerWriteKeys();
+        assertSame(recordKeys, writeState.getServerWriteKeys());
+        SecretKey encryptionKey = recordKeys.getEncryptionKey();
+        assertArrayEquals(writeState.getServerWriteKey(), encryptionKey.getEncoded());
+
+        writeState.destroyKeys();
+        assertTrue(keyMaterial.isDestroyed());
+        assertTrue(encryptionKey.isDestroyed());
+        try {
+            recordKeys.takeCipher();
+            fail("record keys should not be usable after they have been destroyed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            readState.getServerWriteKey();
+            fail("keys should not be readable after they have been destroyed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
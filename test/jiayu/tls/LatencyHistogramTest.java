@@ -0,0 +1,56 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsCoverEveryValue() throws Exception {
+        for (long value : new long[]{0, 1, 7, 8, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value <= LatencyHistogram.upperBoundOf(bucket));
+            if (bucket > 0) assertTrue(value > LatencyHistogram.upperBoundOf(bucket - 1));
+        }
+    }
+
+    @Test
+    public void percentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+
+        for (int i = 1; i <= 1000; i++) histogram.record(i * 1000);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getMean());
+        assertEquals(1000000, histogram.getMax());
+
+        // percentiles are accurate to within one bucket, or 12.5%
+        assertEquals(500000, histogram.getPercentile(50), 500000 / 8);
+        assertEquals(990000, histogram.getPercentile(99), 990000 / 8);
+        assertEquals(1000000, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        TLSMetrics metrics = new TLSMetrics();
+        metrics.recordOutgoing(ContentType.HANDSHAKE, 100);
+        metrics.recordOutgoing(ContentType.HANDSHAKE, 50);
+        metrics.recordAlertSent(AlertDescription.BAD_RECORD_MAC);
+
+        TLSMetrics.HandshakeTimer timer = metrics.startHandshake(ConnectionEnd.SERVER);
+        timer.endPhase(HandshakePhase.HELLO);
+        timer.completed();
+
+        assertEquals(2L, (long) metrics.getSnapshot().get("records.out.handshake"));
+        assertEquals(150L, (long) metrics.getSnapshot().get("bytes.out.handshake"));
+        assertEquals(1L, (long) metrics.getSnapshot().get("alerts.sent.bad_record_mac"));
+        assertEquals(1L, (long) metrics.getSnapshot().get("handshake.server.completed"));
+        assertEquals(1L, (long) metrics.getSnapshot().get("handshake.server.hello.count"));
+        assertEquals(0L, (long) metrics.getSnapshot().get("handshake.client.total.count"));
+    }
+}
@@ -0,0 +1,56 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import javax.xml.bind.DatatypeConverter;
+
+import static org.junit.Assert.*;
+
+public class PRFTest {
+    // test vectors for the TLS 1.2 PRF published on the IETF TLS mailing list
+    private static final byte[] SHA256_SECRET = DatatypeConverter.parseHexBinary("9bbe436ba940f017b17652849a71db35");
+    private static final byte[] SHA256_SEED = DatatypeConverter.parseHexBinary("a0ba9f936cda311827a6f796ffd5198c");
+    private static final byte[] SHA256_OUTPUT = DatatypeConverter.parseHexBinary(
+            "e3f229ba727be17b8d122620557cd453c2aab21d07c3d495329b52d4e61edb5a6b301791e90d35c9c9a46b4e14baf9af"
+                    + "0fa022f7077def17abfd3797c0564bab4fbc91666e9def9b97fce34f796789baa48082d122ee42c5a72e5a5110fff7"
+                    + "0187347b66");
+
+    private static final byte[] SHA384_SECRET = DatatypeConverter.parseHexBinary("b80b733d6ceefcdc71566ea48e5567df");
+    private static final byte[] SHA384_SEED = DatatypeConverter.parseHexBinary("cd665cf6a8447dd6ff8b27555edb7465");
+    private static final byte[] SHA384_OUTPUT = DatatypeConverter.parseHexBinary(
+            "7b0c18e9ced410ed1804f2cfa34a336a1c14dffb4900bb5fd7942107e81c83cde9ca0faa60be9fe34f82b1233c9146a0"
+                    + "e534cb400fed2700884f9dc236f80edd8bfa961144c9e8d792eca722a7b32fc3d416d473ebc2c5fd4abfdad05d9184"
+                    + "259b5bf8cd4d90fa0d31e2dec479e4f1a26066f2eea9a69236a3e52655c9e9aee691c8f3a26854308d5eaa3be85e09"
+                    + "90703d73e56f");
+
+    @Test
+    public void sha256() throws Exception {
+        PRF prf = PRF.getInstance(PRFAlgorithm.TLS_PRF_SHA256);
+        prf.init(SHA256_SECRET, "test label", SHA256_SEED);
+        assertArrayEquals(SHA256_OUTPUT, prf.getBytes(SHA256_OUTPUT.length));
+    }
+
+    @Test
+    public void sha384() throws Exception {
+        PRF prf = PRF.getInstance(PRFAlgorithm.TLS_PRF_SHA384);
+        prf.init(SHA384_SECRET, "test label", SHA384_SEED);
+        assertArrayEquals(SHA384_OUTPUT, prf.getBytes(SHA384_OUTPUT.length));
+    }
+
+    @Test
+    public void outputContinuesAcrossCalls() throws Exception {
+        PRF prf = PRF.getInstance(PRFAlgorithm.TLS_PRF_SHA256);
+        prf.init(SHA256_SECRET, "test label", new byte[0], SHA256_SEED);
+
+        // lengths which start and end both on and off the 32-byte block boundaries
+        byte[] output = new byte[SHA256_OUTPUT.length];
+        int[] lengths = {5, 27, 32, 3, 33};
+        int offset = 0;
+        for (int length : lengths) {
+            prf.getBytes(output, offset, length);
+            offset += length;
+        }
+
+        assertArrayEquals(SHA256_OUTPUT, output);
+    }
+}
@@ -0,0 +1,179 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PrivateKeyOperatorTest {
+    @Test
+    public void asyncHandshakeReleasesExecutorDuringKeyOperation() throws Exception {
+        // holds every private key operation until the test releases it
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        CountDownLatch started = new CountDownLatch(1);
+        PrivateKeyOperator delegate = PrivateKeyOperator.getDefault();
+        PrivateKeyOperator gated = new PrivateKeyOperator() {
+            @Override
+            public CompletableFuture<byte[]> decryptPremasterSecret(PrivateKey key, byte[] encryptedPremasterSecret, short clientVersion) {
+                started.countDown();
+                return release.thenCompose(v -> delegate.decryptPremasterSecret(key, encryptedPremasterSecret, clientVersion));
+            }
+
+            @Override
+            public CompletableFuture<byte[]> sign(PrivateKey key, String algorithm, byte[] data) {
+                started.countDown();
+                return release.thenCompose(v -> delegate.sign(key, algorithm, data));
+            }
+        };
+
+        SecureServerSocket serverSocket = new SecureServerSocket();
+        serverSocket.setServerCert(Paths.get("misc/certs/localhostcert.crt"));
+        serverSocket.setServerKey(Paths.get("misc/certs/serverkey.der"));
+        serverSocket.setPrivateKeyOperator(gated);
+
+        TrustStore trustStore = TrustStore.newInstance();
+        trustStore.load(Paths.get("misc/certs/localhostcert.crt"));
+
+        ExecutorService io = Executors.newSingleThreadExecutor();
+        ExecutorService client = Executors.newSingleThreadExecutor();
+        try {
+            InMemoryTransport clientEnd = new InMemoryTransport();
+            CompletableFuture<SecureSocket> accepted = serverSocket.acceptSecuredAsync(clientEnd.getPeer(), io);
+            Future<SecureSocket> connected = client.submit(() -> {
+                SecureSocket socket = new SecureSocket();
+                socket.setTrustStore(trustStore);
+                socket.connectSecured(clientEnd, "localhost");
+                return socket;
+            });
+
+            // the only I/O thread is free to run other work while the handshake waits for the key operation
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertFalse(accepted.isDone());
+            assertTrue(io.submit(() -> true).get(5, TimeUnit.SECONDS));
+
+            release.complete(null);
+            SecureSocket server = accepted.get(10, TimeUnit.SECONDS);
+            connected.get(10, TimeUnit.SECONDS).getOutputStream().write(new byte[]{1, 2, 3});
+
+            byte[] received = new byte[3];
+            server.getInputStream().readFully(received);
+            assertArrayEquals(new byte[]{1, 2, 3}, received);
+        } finally {
+            io.shutdownNow();
+            client.shutdownNow();
+        }
+    }
+
+    @Test
+    public void asyncHandshakeMapsFailedKeyOperationToFatalAlert() throws Exception {
+        PrivateKeyOperator failing = new PrivateKeyOperator() {
+            @Override
+            public CompletableFuture<byte[]> decryptPremasterSecret(PrivateKey key, byte[] encryptedPremasterSecret, short clientVersion) {
+                return failed(new SignatureException());
+            }
+
+            @Override
+            public CompletableFuture<byte[]> sign(PrivateKey key, String algorithm, byte[] data) {
+                return failed(new SignatureException());
+            }
+
+            private CompletableFuture<byte[]> failed(Throwable cause) {
+                CompletableFuture<byte[]> future = new CompletableFuture<>();
+                future.completeExceptionally(cause);
+                return future;
+            }
+        };
+
+        SecureServerSocket serverSocket = new SecureServerSocket();
+        serverSocket.setServerCert(Paths.get("misc/certs/localhostcert.crt"));
+        serverSocket.setServerKey(Paths.get("misc/certs/serverkey.der"));
+        serverSocket.setPrivateKeyOperator(failing);
+
+        TrustStore trustStore = TrustStore.newInstance();
+        trustStore.load(Paths.get("misc/certs/localhostcert.crt"));
+
+        ExecutorService io = Executors.newSingleThreadExecutor();
+        ExecutorService client = Executors.newSingleThreadExecutor();
+        try {
+            InMemoryTransport clientEnd = new InMemoryTransport();
+            CompletableFuture<SecureSocket> accepted = serverSocket.acceptSecuredAsync(clientEnd.getPeer(), io);
+            client.submit(() -> {
+                SecureSocket socket = new SecureSocket();
+                socket.setTrustStore(trustStore);
+                socket.connectSecured(clientEnd, "localhost");
+                return socket;
+            });
+
+            try {
+                accepted.get(10, TimeUnit.SECONDS);
+                fail("handshake should have failed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof FatalAlertException);
+                assertEquals(AlertDescription.DECRYPT_ERROR, ((FatalAlertException) e.getCause()).getAlertDescription());
+            } finally {
+                clientEnd.getPeer().close();
+            }
+        } finally {
+            io.shutdownNow();
+            client.shutdownNow();
+        }
+    }
+
+    @Test
+    public void decryptsBurstOfPremasterSecrets() throws Exception {
+        PrivateKey privateKey = ServerCredentials.readPrivateKey(Paths.get("misc/certs/serverkey.der"));
+        PublicKey publicKey = CertificateFactory.getInstance("X.509")
+                .generateCertificate(new java.io.FileInputStream("misc/certs/localhostcert.crt"))
+                .getPublicKey();
+        PrivateKeyOperator operator = PrivateKeyOperator.newLocalInstance(1, 64);
+
+        // more decryptions than the single thread can keep up with, so that later ones are taken in batches
+        PremasterSecret[] premasterSecrets = new PremasterSecret[32];
+        List<CompletableFuture<byte[]>> decrypted = new ArrayList<>();
+        for (int i = 0; i < premasterSecrets.length; i++) {
+            premasterSecrets[i] = PremasterSecret.newRSAPremasterSecret((short) 0x0303);
+            byte[] encrypted = PremasterSecret.fromBytes(premasterSecrets[i].getEncryptedBytes(publicKey)).getBytes();
+            decrypted.add(operator.decryptPremasterSecret(privateKey, encrypted, (short) 0x0303));
+        }
+
+        for (int i = 0; i < premasterSecrets.length; i++) {
+            assertArrayEquals(premasterSecrets[i].getBytes(), decrypted.get(i).get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        PrivateKey privateKey = ServerCredentials.readPrivateKey(Paths.get("misc/certs/serverkey.der"));
+        PrivateKeyOperator operator = PrivateKeyOperator.newLocalInstance(1, 1);
+
+        CompletableFuture<?>[] signatures = new CompletableFuture<?>[64];
+        for (int i = 0; i < signatures.length; i++) {
+            signatures[i] = operator.sign(privateKey, ServerKeyExchange.SIGNATURE_ALGORITHM, new byte[32]);
+        }
+
+        CompletableFuture<?> last = signatures[signatures.length - 1];
+        try {
+            last.join();
+            fail("operation should have been rejected");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(128, ((byte[]) signatures[0].get()).length);
+    }
+}
@@ -0,0 +1,76 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RSAPrivateKeyServiceTest {
+    private static final short CLIENT_VERSION = 0x0303;
+
+    @Test
+    public void decryptsPremasterSecrets() throws Exception {
+        PrivateKey privateKey = ServerCredentials.readPrivateKey(Paths.get("misc/certs/serverkey.der"));
+        assertTrue(privateKey instanceof RSAPrivateCrtKey);
+
+        PublicKey publicKey = CertificateFactory.getInstance("X.509")
+                .generateCertificate(new java.io.FileInputStream("misc/certs/localhostcert.crt"))
+                .getPublicKey();
+
+        PremasterSecret first = PremasterSecret.newRSAPremasterSecret(CLIENT_VERSION);
+        PremasterSecret second = PremasterSecret.newRSAPremasterSecret(CLIENT_VERSION);
+
+        RSAPrivateKeyService service = new RSAPrivateKeyService();
+        byte[][] decrypted = service.decryptPremasterSecrets(privateKey,
+                new byte[][]{encrypt(first, publicKey), encrypt(second, publicKey)},
+                new short[]{CLIENT_VERSION, CLIENT_VERSION});
+
+        assertArrayEquals(first.getBytes(), decrypted[0]);
+        assertArrayEquals(second.getBytes(), decrypted[1]);
+        assertArrayEquals(first.getBytes(), service.decryptPremasterSecret(privateKey, encrypt(first, publicKey), CLIENT_VERSION));
+    }
+
+    @Test
+    public void malformedPremasterSecretIsReplacedWithRandom() throws Exception {
+        PrivateKey privateKey = ServerCredentials.readPrivateKey(Paths.get("misc/certs/serverkey.der"));
+        RSAPrivateKeyService service = new RSAPrivateKeyService();
+
+        byte[] garbage = new byte[128];
+        Arrays.fill(garbage, (byte) 0x5A);
+
+        byte[] premasterSecret = service.decryptPremasterSecret(privateKey, garbage, CLIENT_VERSION);
+        assertEquals(48, premasterSecret.length);
+        assertEquals(CLIENT_VERSION, ByteBuffer.wrap(premasterSecret).getShort());
+        assertFalse(Arrays.equals(premasterSecret, service.decryptPremasterSecret(privateKey, garbage, CLIENT_VERSION)));
+    }
+
+    @Test
+    public void malformedPremasterSecretDoesNotDisturbTheNextDecryption() throws Exception {
+        PrivateKey privateKey = ServerCredentials.readPrivateKey(Paths.get("misc/certs/serverkey.der"));
+        PublicKey publicKey = CertificateFactory.getInstance("X.509")
+                .generateCertificate(new java.io.FileInputStream("misc/certs/localhostcert.crt"))
+                .getPublicKey();
+
+        byte[] garbage = new byte[128];
+        Arrays.fill(garbage, (byte) 0x5A);
+        PremasterSecret premasterSecret = PremasterSecret.newRSAPremasterSecret(CLIENT_VERSION);
+
+        RSAPrivateKeyService service = new RSAPrivateKeyService();
+        byte[][] decrypted = service.decryptPremasterSecrets(privateKey,
+                new byte[][]{garbage, encrypt(premasterSecret, publicKey)},
+                new short[]{CLIENT_VERSION, CLIENT_VERSION});
+
+        assertArrayEquals(premasterSecret.getBytes(), decrypted[1]);
+    }
+
+    private static byte[] encrypt(PremasterSecret premasterSecret, PublicKey publicKey) throws Exception {
+        return PremasterSecret.fromBytes(premasterSecret.getEncryptedBytes(publicKey)).getBytes();
+    }
+}
@@ -0,0 +1,44 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RandomnessServiceTest {
+    @Test
+    public void valuesAreNotRepeatedAcrossBlocks() throws Exception {
+        RandomnessService service = new RandomnessService(64);
+
+        // 28-byte values straddle the 64-byte block boundaries, both with and without a background refill
+        Set<String> values = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] bytes = new byte[28];
+            service.nextBytes(bytes);
+            assertTrue(values.add(Arrays.toString(bytes)));
+            if (i % 10 == 0) Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void threadsHaveIndependentBlocks() throws Exception {
+        RandomnessService service = new RandomnessService(64);
+        Set<Integer> values = Collections.synchronizedSet(new HashSet<>());
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) values.add(service.nextInt());
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        // 4000 random ints are very unlikely to collide
+        assertTrue(values.size() > 3990);
+    }
+}
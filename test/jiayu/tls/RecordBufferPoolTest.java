@@ -0,0 +1,79 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class RecordBufferPoolTest {
+    @Test
+    public void releasedBuffersAreReused() throws Exception {
+        RecordBufferPool pool = new RecordBufferPool(false, 8);
+
+        ByteBuffer buffer = pool.acquire();
+        assertEquals(RecordBufferPool.BUFFER_SIZE, buffer.remaining());
+        buffer.put((byte) 1).flip();
+        pool.release(buffer);
+
+        // the same buffer comes back from the thread's cache, cleared
+        ByteBuffer reused = pool.acquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(RecordBufferPool.BUFFER_SIZE, reused.limit());
+
+        assertEquals(1, pool.getAllocated());
+        assertEquals(2, pool.getAcquired());
+        assertEquals(1, pool.getThreadCacheHits());
+        assertEquals(1, pool.getReleased());
+    }
+
+    @Test
+    public void releasedBuffersAreZeroed() throws Exception {
+        RecordBufferPool pool = new RecordBufferPool(true, 8);
+
+        ByteBuffer buffer = pool.acquire();
+        for (int i = 0; i < 1000; i++) buffer.put((byte) 0x5A);
+        buffer.flip();
+        pool.release(buffer);
+
+        ByteBuffer reused = pool.acquire();
+        assertSame(buffer, reused);
+        while (reused.hasRemaining()) assertEquals(0, reused.get());
+    }
+
+    @Test
+    public void buffersReleasedByAnotherThreadAreShared() throws Exception {
+        RecordBufferPool pool = new RecordBufferPool(true, 2);
+
+        ByteBuffer[] buffers = new ByteBuffer[RecordBufferPool.THREAD_CACHE_SIZE + 3];
+        Thread acquirer = new Thread(() -> {
+            for (int i = 0; i < buffers.length; i++) buffers[i] = pool.acquire();
+        });
+        acquirer.start();
+        acquirer.join();
+        assertTrue(buffers[0].isDirect());
+
+        // this thread's cache takes the first few, the slab the next two, and the last is discarded
+        for (ByteBuffer buffer : buffers) pool.release(buffer);
+        assertEquals(2, pool.getShared());
+        assertEquals(1, pool.getDiscarded());
+
+        Thread sharer = new Thread(() -> {
+            pool.acquire();
+            pool.acquire();
+            pool.acquire();
+        });
+        sharer.start();
+        sharer.join();
+
+        assertEquals(2, pool.getSharedHits());
+        assertEquals(0, pool.getShared());
+        assertEquals(buffers.length + 1, pool.getAllocated());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void foreignBuffersAreRejected() throws Exception {
+        new RecordBufferPool(false, 8).release(ByteBuffer.allocate(16));
+    }
+}
@@ -0,0 +1,45 @@
+package jiayu.tls;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+public class ServerCredentialSelectorTest {
+    private ServerCredentials credentials;
+
+    @Before
+    public void setUp() throws Exception {
+        credentials = ServerCredentials.load(Paths.get("misc/certs/servercert.crt"), Paths.get("misc/certs/serverkey.der"));
+    }
+
+    @Test
+    public void selectByServerName() throws Exception {
+        ServerCredentialSelector selector = new ServerCredentialSelector();
+        ServerCredentials other = new ServerCredentials(new byte[1], credentials.getPrivateKey());
+        selector.add("store.example.com", credentials);
+        selector.add("*.tenants.example.com", other);
+
+        assertSame(credentials, selector.select("Store.Example.com"));
+        assertSame(other, selector.select("a.tenants.example.com"));
+        assertNull(selector.select("a.b.tenants.example.com"));
+        assertNull(selector.select(null));
+
+        selector.setDefault(other);
+        assertSame(other, selector.select("unknown.example.com"));
+    }
+
+    @Test
+    public void clientHelloServerName() throws Exception {
+        ClientHello clientHello = new ClientHello("store.example.com", CipherSuite.TLS_RSA_WITH_AES_128_CBC_SHA256);
+
+        ClientHello received = (ClientHello) new GenericProtocolMessage(ContentType.HANDSHAKE, clientHello.getContent())
+                .asHandshakeMessage(HandshakeType.CLIENT_HELLO);
+
+        assertEquals("store.example.com", received.getServerName());
+        assertArrayEquals(clientHello.getContent(), received.getContent());
+        assertNull(new ClientHello(CipherSuite.TLS_RSA_WITH_AES_128_CBC_SHA256).getServerName());
+    }
+}
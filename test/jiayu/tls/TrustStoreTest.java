@@ -0,0 +1,65 @@
+package jiayu.tls;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import static org.junit.Assert.*;
+
+public class TrustStoreTest {
+    @Test
+    public void loadAndFindIssuer() throws Exception {
+        TrustStore trustStore = TrustStore.newInstance();
+        assertTrue(trustStore.isEmpty());
+
+        assertEquals(1, trustStore.load(Paths.get("misc/certs/servercert.crt")));
+
+        X509Certificate serverCert = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(Files.newInputStream(Paths.get("misc/certs/servercert.crt")));
+        assertTrue(trustStore.isTrusted(serverCert));
+
+        // servercert.crt is self-signed, so it is its own issuer
+        assertEquals(1, trustStore.getCandidateIssuers(serverCert).size());
+        assertEquals(serverCert, trustStore.getCandidateIssuers(serverCert).get(0));
+    }
+
+    @Test
+    public void caCertsAddedToASocketAreNotShared() throws Exception {
+        X509Certificate caCert = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(Files.newInputStream(Paths.get("misc/certs/localhostcert.crt")));
+
+        SecureSocket trusting = new SecureSocket();
+        SecureSocket other = new SecureSocket();
+        trusting.addCACertificate(caCert);
+
+        assertTrue(trusting.getTrustStore().isTrusted(caCert));
+        assertFalse(other.getTrustStore().isTrusted(caCert));
+        assertFalse(TrustStore.getDefault().isTrusted(caCert));
+    }
+
+    @Test
+    public void copiesStartWithTheAnchorsOfTheOriginal() throws Exception {
+        TrustStore original = TrustStore.newInstance();
+        original.load(Paths.get("misc/certs/servercert.crt"));
+
+        TrustStore copy = TrustStore.copyOf(original);
+        copy.load(Paths.get("misc/certs/localhostcert.crt"));
+
+        assertEquals(2, copy.size());
+        assertEquals(1, original.size());
+    }
+
+    @Test
+    public void unknownIssuer() throws Exception {
+        TrustStore trustStore = TrustStore.newInstance();
+        trustStore.load(Paths.get("misc/certs/servercert.crt"));
+
+        X509Certificate oldServerCert = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(Files.newInputStream(Paths.get("misc/certs/oldservercert.crt")));
+        assertFalse(trustStore.isTrusted(oldServerCert));
+        assertTrue(trustStore.getCandidateIssuers(oldServerCert).isEmpty());
+    }
+}
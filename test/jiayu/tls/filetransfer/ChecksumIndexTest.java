@@ -0,0 +1,91 @@
+package jiayu.tls.filetransfer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static org.junit.Assert.*;
+
+public class ChecksumIndexTest {
+    @Test
+    public void storedContentIsFoundByChecksum() throws Exception {
+        StorageBackend storage = StorageBackend.newInMemory();
+        storage.write(new Metadata("a.txt", "hello".getBytes()), "hello".getBytes()).join();
+
+        ChecksumIndex index = new ChecksumIndex(storage);
+        index.addAll();
+        assertEquals(1, index.size());
+
+        assertEquals("a.txt", index.find(Metadata.calculateChecksum("hello".getBytes())));
+        assertNull(index.find(Metadata.calculateChecksum("goodbye".getBytes())));
+    }
+
+    @Test
+    public void changedFilesAreForgotten() throws Exception {
+        StorageBackend storage = StorageBackend.newInMemory();
+        Metadata metadata = new Metadata("a.txt", "hello".getBytes());
+        storage.write(metadata, "hello".getBytes()).join();
+
+        ChecksumIndex index = new ChecksumIndex(storage);
+        index.add(metadata.getChecksum(), "a.txt");
+
+        storage.write(new Metadata("a.txt", "goodbye".getBytes()), "goodbye".getBytes()).join();
+        assertNull(index.find(metadata.getChecksum()));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void emptyBackendHasNothingToIndex() throws Exception {
+        ChecksumIndex index = new ChecksumIndex(StorageBackend.newInMemory());
+        index.addAll();
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void unreadableFilesAreSkipped() throws Exception {
+        StorageBackend storage = new UnreadableStorageBackend("bad.txt", null);
+        storage.write(new Metadata("bad.txt", "broken".getBytes()), "broken".getBytes()).join();
+        storage.write(new Metadata("a.txt", "hello".getBytes()), "hello".getBytes()).join();
+
+        ChecksumIndex index = new ChecksumIndex(storage);
+        assertEquals(1, index.addAll());
+        assertEquals(1, index.size());
+        assertEquals("a.txt", index.find(Metadata.calculateChecksum("hello".getBytes())));
+    }
+
+    @Test
+    public void checksumsKeptByTheBackendAreNotRecalculated() throws Exception {
+        byte[] checksum = Metadata.calculateChecksum("hello".getBytes());
+        StorageBackend storage = new UnreadableStorageBackend("a.txt", checksum);
+        storage.write(new Metadata("a.txt", "hello".getBytes()), "hello".getBytes()).join();
+
+        ChecksumIndex index = new ChecksumIndex(storage);
+        assertEquals(0, index.addAll());
+        assertEquals(1, index.size());
+    }
+
+    /**
+     * Keeps files in memory, but fails to read one of them.
+     */
+    private static class UnreadableStorageBackend extends InMemoryStorageBackend {
+        private final String unreadable;
+        private final byte[] checksum;
+
+        UnreadableStorageBackend(String unreadable, byte[] checksum) {
+            this.unreadable = unreadable;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public byte[] read(String name) {
+            if (name.equals(unreadable)) throw new UncheckedIOException(new IOException("cannot read " + name));
+            return super.read(name);
+        }
+
+        @Override
+        public byte[] getChecksum(String name) {
+            return name.equals(unreadable) ? checksum : null;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package jiayu.tls.filetransfer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+    private static byte[] csv(int rows) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < rows; i++) sb.append(i).append(",sensor-").append(i % 7).append(",").append(i * 31 % 1000).append('\n');
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void compressibleContentIsDeflated() throws Exception {
+        byte[] content = csv(20000);
+        assertEquals(Compression.DEFLATE, Compression.choose(content));
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        Compression.DEFLATE.encode(content, encoded);
+        assertTrue(encoded.size() < content.length / 3);
+
+        assertArrayEquals(content, Compression.DEFLATE.decode(ByteBuffer.wrap(encoded.toByteArray()), content.length));
+    }
+
+    @Test
+    public void incompressibleContentIsSentAsIs() throws Exception {
+        byte[] content = new byte[200000];
+        new Random(1).nextBytes(content);
+        assertEquals(Compression.NONE, Compression.choose(content));
+        assertEquals(Compression.NONE, Compression.choose(new byte[0]));
+    }
+
+    @Test
+    public void metadataDeclaresCompression() throws Exception {
+        byte[] content = csv(10);
+        Metadata metadata = new Metadata("data.csv", content);
+        byte[] uncompressed = metadata.getBytes();
+
+        // uncompressed uploads are framed exactly as before compression existed
+        assertEquals(Integer.BYTES + Integer.BYTES + "data.csv".length() + Integer.BYTES + 32, uncompressed.length);
+        assertEquals(Compression.NONE, Metadata.fromBytes(Arrays.copyOfRange(uncompressed, Integer.BYTES, uncompressed.length)).getCompression());
+
+        byte[] compressed = metadata.withCompression(Compression.DEFLATE).getBytes();
+        Metadata received = Metadata.fromBytes(Arrays.copyOfRange(compressed, Integer.BYTES, compressed.length));
+        assertEquals(Compression.DEFLATE, received.getCompression());
+        assertEquals(content.length, received.getFilesize());
+        assertArrayEquals(metadata.getChecksum(), received.getChecksum());
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongFilesizeIsRejected() throws Exception {
+        byte[] content = csv(1000);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        Compression.DEFLATE.encode(content, encoded);
+
+        Compression.DEFLATE.decode(ByteBuffer.wrap(encoded.toByteArray()), content.length - 1);
+    }
+}
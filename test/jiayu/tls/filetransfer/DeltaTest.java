@@ -0,0 +1,87 @@
+package jiayu.tls.filetransfer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeltaTest {
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] delta(byte[] content, BlockSignatures base) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Delta.encode(content, base, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] roundTrip(byte[] stored, byte[] content) throws IOException {
+        // the signatures as the client reads them, without their length
+        byte[] encoded = BlockSignatures.of(stored).getBytes();
+        BlockSignatures signatures = BlockSignatures.fromBytes(Arrays.copyOfRange(encoded, Integer.BYTES, encoded.length));
+        byte[] delta = delta(content, signatures);
+        return Delta.apply(stored, signatures.getBlockSize(), ByteBuffer.wrap(delta), content.length);
+    }
+
+    @Test
+    public void appendedDataIsSentAsLiteral() throws Exception {
+        byte[] stored = random(1_000_000, 1);
+        byte[] content = Arrays.copyOf(stored, stored.length + 10_000);
+        System.arraycopy(random(10_000, 2), 0, content, stored.length, 10_000);
+
+        BlockSignatures signatures = BlockSignatures.of(stored);
+        byte[] delta = delta(content, signatures);
+        assertTrue(delta.length < content.length / 10);
+
+        assertArrayEquals(content, Delta.apply(stored, signatures.getBlockSize(), ByteBuffer.wrap(delta), content.length));
+    }
+
+    @Test
+    public void insertedBytesShiftLaterBlocks() throws Exception {
+        byte[] stored = random(200_000, 3);
+        byte[] content = new byte[stored.length + 3];
+        System.arraycopy(stored, 0, content, 0, 100_000);
+        content[100_000] = 'a';
+        content[100_001] = 'b';
+        content[100_002] = 'c';
+        System.arraycopy(stored, 100_000, content, 100_003, stored.length - 100_000);
+
+        BlockSignatures signatures = BlockSignatures.of(stored);
+        byte[] delta = delta(content, signatures);
+        assertTrue(delta.length < 3 * signatures.getBlockSize());
+
+        assertArrayEquals(content, roundTrip(stored, content));
+    }
+
+    @Test
+    public void withoutStoredFileEverythingIsLiteral() throws Exception {
+        byte[] content = random(5000, 4);
+        assertEquals(0, BlockSignatures.of(new byte[0]).getBlockCount());
+        assertArrayEquals(content, roundTrip(new byte[0], content));
+    }
+
+    @Test
+    public void rollingChecksumMatchesRecomputation() throws Exception {
+        byte[] bytes = random(100, 5);
+        int checksum = BlockSignatures.rollingChecksum(bytes, 0, 32);
+        for (int i = 1; i + 32 <= bytes.length; i++) {
+            checksum = BlockSignatures.roll(checksum, 32, bytes[i - 1], bytes[i + 31]);
+            assertEquals(BlockSignatures.rollingChecksum(bytes, i, 32), checksum);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void referenceOutsideStoredFileIsRejected() throws Exception {
+        ByteBuffer delta = ByteBuffer.allocate(9).put(Delta.COPY).putInt(1).putInt(1);
+        delta.flip();
+        Delta.apply(new byte[2048], 2048, delta, 2048);
+    }
+}
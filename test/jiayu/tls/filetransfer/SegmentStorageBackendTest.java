@@ -0,0 +1,185 @@
+package jiayu.tls.filetransfer;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class SegmentStorageBackendTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<StorageBackend> backends = new ArrayList<>();
+
+    /**
+     * Registers a backend to be closed after the test, whether or not it passes. Closing a backend twice is
+     * harmless, so tests which reopen a store close the first backend themselves.
+     */
+    private <T extends StorageBackend> T closeAfter(T storage) {
+        backends.add(storage);
+        return storage;
+    }
+
+    private static void write(StorageBackend storage, String name, byte[] content) {
+        storage.write(new Metadata(name, content), content).join();
+    }
+
+    private static void joinAll(List<CompletableFuture<Void>> futures) {
+        for (CompletableFuture<Void> future : futures) future.join();
+    }
+
+    @After
+    public void closeBackends() {
+        for (StorageBackend storage : backends) storage.close();
+    }
+
+    @Test
+    public void smallFilesArePackedIntoSegments() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        SegmentStorageBackend storage = closeAfter(new SegmentStorageBackend(dir, 64 * 1024, Durability.GROUP_COMMIT));
+
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] content = new byte[1000];
+            content[0] = (byte) i;
+            writes.add(storage.write(new Metadata(i + ".bin", content), content));
+        }
+        joinAll(writes);
+
+        // 100 KB of records rolls over into a second segment, and no file is created for any of them
+        assertEquals(2, storage.getSegmentCount());
+        assertEquals(1, dir.toFile().list().length);
+        assertEquals(100, storage.list().size());
+        for (int i = 0; i < 100; i++) assertEquals((byte) i, storage.read(i + ".bin")[0]);
+    }
+
+    @Test
+    public void largeFilesAreStoredOnTheirOwn() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        StorageBackend storage = closeAfter(StorageBackend.getSegmented(dir, Durability.NONE));
+
+        byte[] large = new byte[SegmentStorageBackend.SMALL_FILE_THRESHOLD + 1];
+        write(storage, "a.bin", "small".getBytes());
+        write(storage, "a.bin", large);
+        assertArrayEquals(large, Files.readAllBytes(dir.resolve("a.bin")));
+        assertArrayEquals(large, storage.read("a.bin"));
+
+        write(storage, "a.bin", "small again".getBytes());
+        assertFalse(Files.exists(dir.resolve("a.bin")));
+        assertArrayEquals("small again".getBytes(), storage.read("a.bin"));
+    }
+
+    @Test
+    public void indexIsRebuiltWhenReopened() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        StorageBackend storage = closeAfter(StorageBackend.getSegmented(dir, Durability.PER_FILE));
+        write(storage, "a.txt", "hello".getBytes());
+        write(storage, "b.txt", "first".getBytes());
+        write(storage, "b.txt", new byte[SegmentStorageBackend.SMALL_FILE_THRESHOLD + 1]);
+        storage.link("a.txt", "c.txt");
+        storage.close();
+
+        SegmentStorageBackend reopened = closeAfter(new SegmentStorageBackend(dir, SegmentStorageBackend.DEFAULT_SEGMENT_SIZE, Durability.NONE));
+        assertArrayEquals("hello".getBytes(), reopened.read("a.txt"));
+        assertArrayEquals("hello".getBytes(), reopened.read("c.txt"));
+        assertNull(reopened.getEntry("b.txt"));
+        assertEquals(SegmentStorageBackend.SMALL_FILE_THRESHOLD + 1, reopened.read("b.txt").length);
+
+        // appends continue after the existing records
+        write(reopened, "d.txt", "world".getBytes());
+        assertArrayEquals("hello".getBytes(), reopened.read("a.txt"));
+        assertArrayEquals("world".getBytes(), reopened.read("d.txt"));
+    }
+
+    @Test
+    public void tornRecordIsDiscardedWhenReopened() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        SegmentStorageBackend storage = closeAfter(new SegmentStorageBackend(dir, SegmentStorageBackend.DEFAULT_SEGMENT_SIZE, Durability.NONE));
+        write(storage, "a.txt", "hello".getBytes());
+        write(storage, "b.txt", "world".getBytes());
+        SegmentStorageBackend.Entry entry = storage.getEntry("b.txt");
+        storage.close();
+
+        try (RandomAccessFile segment = new RandomAccessFile(dir.resolve(SegmentStorageBackend.SEGMENT_DIR).resolve("segment-000000").toFile(), "rw")) {
+            segment.seek(entry.offset);
+            segment.write('W');
+        }
+
+        SegmentStorageBackend reopened = closeAfter(new SegmentStorageBackend(dir, SegmentStorageBackend.DEFAULT_SEGMENT_SIZE, Durability.NONE));
+        assertArrayEquals("hello".getBytes(), reopened.read("a.txt"));
+        assertNull(reopened.read("b.txt"));
+    }
+
+    @Test
+    public void tornRecordInEarlierSegmentIsDiscardedWithoutDurability() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        SegmentStorageBackend storage = closeAfter(new SegmentStorageBackend(dir, 64 * 1024, Durability.NONE));
+        for (int i = 0; i < 100; i++) write(storage, i + ".bin", new byte[1000]);
+        SegmentStorageBackend.Entry entry = storage.getEntry("50.bin");
+        assertEquals(0, entry.segment);
+        storage.close();
+
+        // the first segment was never forced, so its tail may have been lost even though the second survived
+        try (RandomAccessFile segment = new RandomAccessFile(dir.resolve(SegmentStorageBackend.SEGMENT_DIR).resolve("segment-000000").toFile(), "rw")) {
+            segment.seek(entry.offset);
+            segment.write(1);
+        }
+
+        SegmentStorageBackend reopened = closeAfter(new SegmentStorageBackend(dir, 64 * 1024, Durability.NONE));
+        assertArrayEquals(new byte[1000], reopened.read("49.bin"));
+        assertNull(reopened.read("50.bin"));
+        assertArrayEquals(new byte[1000], reopened.read("99.bin"));
+        assertFalse(reopened.list().contains("50.bin"));
+    }
+
+    @Test
+    public void recordWithDamagedHeaderIsNotIndexed() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        SegmentStorageBackend storage = closeAfter(new SegmentStorageBackend(dir, SegmentStorageBackend.DEFAULT_SEGMENT_SIZE, Durability.NONE));
+        write(storage, "a.txt", "hello".getBytes());
+        write(storage, "b.txt", "world".getBytes());
+        SegmentStorageBackend.Entry entry = storage.getEntry("b.txt");
+        storage.close();
+
+        // magic, name length, name, content length, checksum and header CRC
+        long recordStart = entry.offset - (Integer.BYTES * 2 + "b.txt".length() + Integer.BYTES + 32 + Integer.BYTES);
+        try (RandomAccessFile segment = new RandomAccessFile(dir.resolve(SegmentStorageBackend.SEGMENT_DIR).resolve("segment-000000").toFile(), "rw")) {
+            segment.seek(recordStart + Integer.BYTES * 2);
+            segment.write('c');
+        }
+
+        SegmentStorageBackend reopened = closeAfter(new SegmentStorageBackend(dir, SegmentStorageBackend.DEFAULT_SEGMENT_SIZE, Durability.NONE));
+        assertEquals(Collections.singletonList("a.txt"), reopened.list());
+    }
+
+    @Test
+    public void damagedContentIsDetectedWhenRead() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        SegmentStorageBackend storage = closeAfter(new SegmentStorageBackend(dir, SegmentStorageBackend.DEFAULT_SEGMENT_SIZE, Durability.NONE));
+        write(storage, "a.txt", "hello".getBytes());
+        SegmentStorageBackend.Entry entry = storage.getEntry("a.txt");
+
+        try (RandomAccessFile segment = new RandomAccessFile(dir.resolve(SegmentStorageBackend.SEGMENT_DIR).resolve("segment-000000").toFile(), "rw")) {
+            segment.seek(entry.offset);
+            segment.write('j');
+        }
+
+        try {
+            storage.read("a.txt");
+            fail("damaged content should not be returned");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
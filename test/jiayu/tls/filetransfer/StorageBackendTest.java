@@ -0,0 +1,124 @@
+package jiayu.tls.filetransfer;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.Assert.*;
+
+public class StorageBackendTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<StorageBackend> backends = new ArrayList<>();
+
+    /**
+     * Registers a backend to be closed after the test, whether or not it passes.
+     */
+    private <T extends StorageBackend> T closeAfter(T storage) {
+        backends.add(storage);
+        return storage;
+    }
+
+    private static void joinAll(List<CompletableFuture<Void>> futures) {
+        for (CompletableFuture<Void> future : futures) future.join();
+    }
+
+    @After
+    public void closeBackends() {
+        for (StorageBackend storage : backends) storage.close();
+    }
+
+    @Test
+    public void localFilesAppearWhenComplete() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        StorageBackend storage = closeAfter(StorageBackend.getLocal(dir));
+
+        byte[] content = new byte[100_000];
+        content[99_999] = 1;
+        storage.write(new Metadata("a.bin", content), content).join();
+
+        assertArrayEquals(content, Files.readAllBytes(dir.resolve("a.bin")));
+        assertArrayEquals(content, storage.read("a.bin"));
+        assertNull(storage.read("b.bin"));
+
+        // no temporary files are left behind
+        assertEquals(Collections.singletonList("a.bin"), storage.list());
+        assertEquals(1, dir.toFile().list().length);
+    }
+
+    @Test
+    public void replacingAFileLeavesItsLinksAlone() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        StorageBackend storage = closeAfter(StorageBackend.getLocal(dir));
+
+        storage.write(new Metadata("a.txt", "hello".getBytes()), "hello".getBytes()).join();
+        storage.link("a.txt", "b.txt");
+        storage.write(new Metadata("a.txt", "goodbye".getBytes()), "goodbye".getBytes()).join();
+
+        assertArrayEquals("goodbye".getBytes(), storage.read("a.txt"));
+        assertArrayEquals("hello".getBytes(), storage.read("b.txt"));
+    }
+
+    @Test
+    public void namesOutsideTheDirectoryAreRejected() throws Exception {
+        StorageBackend storage = closeAfter(StorageBackend.getLocal(folder.getRoot().toPath()));
+        try {
+            storage.write(new Metadata("../escaped", new byte[1]), new byte[1]).join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void groupCommitsAcknowledgeFilesTogether() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        LocalStorageBackend storage = closeAfter(new LocalStorageBackend(dir, 4, Durability.GROUP_COMMIT));
+
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            byte[] content = ("file " + i).getBytes();
+            writes.add(storage.write(new Metadata(i + ".txt", content), content));
+        }
+        joinAll(writes);
+
+        for (int i = 0; i < 32; i++) assertArrayEquals(("file " + i).getBytes(), storage.read(i + ".txt"));
+        assertEquals(32, storage.list().size());
+        assertTrue(storage.getCommitBatches() >= 1 && storage.getCommitBatches() < 32);
+    }
+
+    @Test
+    public void perFileWritesAreComplete() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        StorageBackend storage = closeAfter(StorageBackend.getLocal(dir, Durability.PER_FILE));
+
+        storage.write(new Metadata("a.txt", "hello".getBytes()), "hello".getBytes()).join();
+        assertArrayEquals("hello".getBytes(), Files.readAllBytes(dir.resolve("a.txt")));
+    }
+
+    @Test
+    public void durabilityIsParsedFromConfiguration() throws Exception {
+        assertEquals(Durability.GROUP_COMMIT, Durability.parse("group-commit"));
+        assertEquals(Durability.PER_FILE, Durability.parse("PER_FILE"));
+    }
+
+    @Test
+    public void inMemoryFilesCanBeLinked() throws Exception {
+        StorageBackend storage = StorageBackend.newInMemory();
+        storage.write(new Metadata("a.txt", "hello".getBytes()), "hello".getBytes()).join();
+        storage.link("a.txt", "b.txt");
+
+        assertArrayEquals("hello".getBytes(), storage.read("b.txt"));
+        assertEquals(2, storage.list().size());
+    }
+}